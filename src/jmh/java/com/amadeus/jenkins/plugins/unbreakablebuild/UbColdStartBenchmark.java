@@ -0,0 +1,93 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import hudson.EnvVars;
+import hudson.model.Run;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>
+ * Cold benchmarks of the notify path: the first call in a fresh JVM, class loading and interpretation included,
+ * which is what the first unbreakable build after a restart of Jenkins pays.
+ * <p>
+ * The notification is measured from the environment of the run to the answer of an in-process WireMock, the
+ * outbox, the host guard and the http client being created by the call. It is measured warm by
+ * {@link UbNotifyPathBenchmark}.
+ * Run with {@code mvn -Pjmh test-compile exec:exec -Djmh.args="UbColdStartBenchmark"}
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+@State(Scope.Benchmark)
+public class UbColdStartBenchmark {
+
+    private WireMockRule bitbucket;
+    private EnvVars envVars;
+    private Run<?, ?> run;
+    private final PrintStream logger = new PrintStream(OutputStream.nullOutputStream());
+    private final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("git-user", "git-secret");
+
+    @Setup
+    public void setUp() {
+        bitbucket = new WireMockRule(options().dynamicPort());
+        bitbucket.start();
+        MockBitbucketHelper.stubNotificationWith(bitbucket);
+        envVars = UbNotifyPathBenchmark.envVars("http://localhost:" + bitbucket.port(), "repository");
+        run = mock(Run.class);
+        when(run.getExternalizableId()).thenReturn(UbNotifyPathBenchmark.JOB_NAME + "#1");
+    }
+
+    @TearDown
+    public void tearDown() {
+        bitbucket.stop();
+    }
+
+    @Benchmark
+    public String generateBitbucketPayload() {
+        return UbUtils.generateBitbucketPayload(
+                "https://jenkins.example.org/job/ISOLATION-ZONE/job/my-repository/job/UB%2F1234/56/",
+                "ISOLATION-ZONE", "1234", "SUCCESS");
+    }
+
+    @Benchmark
+    public UbBranchPojo fromUbBranchName() {
+        return UbBranchPojo.fromUbBranchName(UbNotifyPathBenchmark.REF_SPEC);
+    }
+
+    @Benchmark
+    public String getIsolationZoneName() {
+        return UbUtils.getIsolationZoneName(UbNotifyPathBenchmark.JOB_NAME);
+    }
+
+    @Benchmark
+    public UbJenkinsEnvBean envBean() {
+        return new UbJenkinsEnvBean(envVars, run);
+    }
+
+    @Benchmark
+    public Run<?, ?> notifyBitbucket() throws Exception {
+        new UbJenkinsEnvBean(envVars, run).notifyBitbucket(UbJenkinsEnvBean.Status.SUCCESS, logger, credentials, run);
+        return run;
+    }
+}
@@ -0,0 +1,150 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import hudson.EnvVars;
+import hudson.model.Run;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>
+ * Warm benchmarks of the notify path, from the environment of the run to the answer of an in-process WireMock
+ * standing for Bitbucket. The multi-threaded variants notify one repository per thread, the notifications of a
+ * repository being sent one after the other.
+ * <p>
+ * The results are written as JSON (target/jmh-result.json by default), see the jmh profile of the pom.
+ * Run with {@code mvn -Pjmh test-compile exec:exec -Djmh.args="UbNotifyPathBenchmark"}
+ * <p>
+ * The host guard is opened wide, so that its rate limit is not what is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dcom.amadeus.jenkins.plugins.unbreakablebuild.UbHostGuard.ratePerSecond=1000000",
+        "-Dcom.amadeus.jenkins.plugins.unbreakablebuild.UbHostGuard.burst=1000000"})
+public class UbNotifyPathBenchmark {
+
+    static final String REF_SPEC = UbBranchPojo.UB_BRANCH_PREFIX + "1234";
+    static final String JOB_NAME = "ISOLATION-ZONE/my-repository/UB%2Ftarget%2Fmaster%2FPR%2F1234%2Ftry%2F1";
+
+    /**
+     * The Bitbucket stub, shared by the threads
+     */
+    @State(Scope.Benchmark)
+    public static class Bitbucket {
+        WireMockRule server;
+
+        @Setup(Level.Trial)
+        public void start() {
+            server = new WireMockRule(options().dynamicPort());
+            server.start();
+            MockBitbucketHelper.stubNotificationWith(server);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    /**
+     * The run of a thread, on its own repository
+     */
+    @State(Scope.Thread)
+    public static class Context {
+        private static final AtomicLong RUN_NUMBERS = new AtomicLong();
+
+        EnvVars envVars;
+        Run<?, ?> run;
+        UbJenkinsEnvBean bean;
+        PrintStream logger = new PrintStream(OutputStream.nullOutputStream());
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("git-user", "git-secret");
+
+        @Setup(Level.Trial)
+        public void setUp(Bitbucket bitbucket, ThreadParams thread) {
+            envVars = envVars("http://localhost:" + bitbucket.server.port(), "repository" + thread.getThreadIndex());
+            run = mock(Run.class);
+            // a new run each time, the outbox does not send the same outcome of a run twice
+            when(run.getExternalizableId()).thenAnswer(i -> JOB_NAME + '#' + RUN_NUMBERS.incrementAndGet());
+            bean = new UbJenkinsEnvBean(envVars, run);
+        }
+    }
+
+    static EnvVars envVars(String bitbucketUrl, String repositorySlug) {
+        EnvVars envVars = new EnvVars();
+        envVars.put(UbJenkinsEnvBean.EnvVarName.SCM_URL.toString(), bitbucketUrl);
+        envVars.put(UbJenkinsEnvBean.EnvVarName.BITBUCKET_PROJECT.toString(), "project");
+        envVars.put(UbJenkinsEnvBean.EnvVarName.BITBUCKET_REPOSITORY.toString(), repositorySlug);
+        envVars.put(UbJenkinsEnvBean.EnvVarName.UNBREAKABLE_REFSPEC.toString(), REF_SPEC);
+        envVars.put(UbJenkinsEnvBean.EnvVarName.COMMIT.toString(), "1aed25f357e");
+        envVars.put(UbJenkinsEnvBean.EnvVarName.JOB_DISPLAY_URL.toString(),
+                "https://jenkins.example.org/job/ISOLATION-ZONE/job/my-repository/job/UB%2F1234/56/");
+        envVars.put(UbJenkinsEnvBean.EnvVarName.JOB_NAME.toString(), JOB_NAME);
+        return envVars;
+    }
+
+    @Benchmark
+    public String generateBitbucketPayload() {
+        return UbUtils.generateBitbucketPayload(
+                "https://jenkins.example.org/job/ISOLATION-ZONE/job/my-repository/job/UB%2F1234/56/",
+                "ISOLATION-ZONE", "1234", "SUCCESS");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generateBitbucketPayloadMultiThreaded() {
+        return generateBitbucketPayload();
+    }
+
+    @Benchmark
+    public UbBranchPojo fromUbBranchName() {
+        return UbBranchPojo.fromUbBranchName(REF_SPEC);
+    }
+
+    @Benchmark
+    public String getIsolationZoneName() {
+        return UbUtils.getIsolationZoneName(JOB_NAME);
+    }
+
+    @Benchmark
+    public UbJenkinsEnvBean envBean(Context context) {
+        return new UbJenkinsEnvBean(context.envVars, context.run);
+    }
+
+    @Benchmark
+    public Run<?, ?> notifyBitbucket(Context context) throws Exception {
+        context.bean.notifyBitbucket(UbJenkinsEnvBean.Status.SUCCESS, context.logger, context.credentials,
+                context.run);
+        return context.run;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Run<?, ?> notifyBitbucketMultiThreaded(Context context) throws Exception {
+        return notifyBitbucket(context);
+    }
+}
@@ -0,0 +1,51 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Compares the payload encoder with the former map + JSONObject implementation.
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:exec -Djmh.args="UbPayloadEncoderBenchmark -prof gc"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UbPayloadEncoderBenchmark {
+
+    private final String jobUrl = "https://jenkins.example.org/job/ISOLATION-ZONE/job/my-repository/job/UB%2F1234/56/";
+    private final String isolationZone = "ISOLATION-ZONE";
+    private final String mergeRequestId = "1234";
+    private final String buildStatus = "SUCCESS";
+
+    @Benchmark
+    public String encoder() {
+        return UbPayloadEncoder.encode(jobUrl, isolationZone, mergeRequestId, buildStatus);
+    }
+
+    @Benchmark
+    public String jsonObject() {
+        Map<String, String> jsonInternal = new HashMap<>();
+        jsonInternal.put("jobUrl", jobUrl);
+        jsonInternal.put("isolationZone", isolationZone);
+        jsonInternal.put("mergeRequestId", mergeRequestId);
+        jsonInternal.put("result", buildStatus);
+        return new JSONObject(jsonInternal).toString();
+    }
+}
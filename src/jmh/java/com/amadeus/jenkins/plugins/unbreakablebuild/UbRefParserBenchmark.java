@@ -0,0 +1,59 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Compares the ref parser with the former regex, which was matched twice per ref.
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:exec -Djmh.args="UbRefParserBenchmark -prof gc"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UbRefParserBenchmark {
+
+    private static final Pattern UB_BRANCH_PATTERN = Pattern.compile(UbBranchPojo.UB_BRANCH_REGEX);
+
+    @Param({"refs/ubuilds/123456", "refs/heads/feature/my-branch"})
+    public String ref;
+
+    private final UbRefParser parser =
+            UbRefParser.of(Arrays.asList("refs/ubuilds/", "refs/merge-queue/", "refs/pull-requests/"));
+
+    @Benchmark
+    public String regex() {
+        Matcher m = UB_BRANCH_PATTERN.matcher(ref);
+        if (m.matches() && UB_BRANCH_PATTERN.matcher(ref).matches()) {
+            return m.group("mergeRequestId");
+        }
+        return null;
+    }
+
+    @Benchmark
+    public UbBranchPojo parser() {
+        return parser.parse(ref);
+    }
+
+    @Benchmark
+    public UbBranchPojo cached() {
+        return UbBranchPojo.fromUbBranchName(ref);
+    }
+}
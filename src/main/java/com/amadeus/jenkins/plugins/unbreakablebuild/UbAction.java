@@ -1,13 +1,192 @@
 package com.amadeus.jenkins.plugins.unbreakablebuild;
 
 import hudson.model.Action;
+import hudson.model.Run;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Locale;
 
 /**
  * This action has for sole purpose to be added to a Run
  * in order to tell that an unbreakableBuild step was called
+ * <p>
+ * It is the claim of the run: the first verb (or the build listener) adding it is the only one to notify Bitbucket.
+ * <p>
+ * The one which claimed the run records how long its phases took, and the answer of Bitbucket. They are shown on the
+ * page of the run and exported by its REST API. The phases not recorded are null, so they are not saved.
  */
+@ExportedBean
 public class UbAction implements Action {
 
+    // the message of Bitbucket is kept short, it is saved with the run
+    static final int MAX_MESSAGE_LENGTH = 200;
+
+    // null for the actions recorded before the claim existed
+    private final String claimedBy;
+    private final String notificationId;
+
+    private volatile Long credentialsNanos;
+    private volatile Long environmentNanos;
+    private volatile Long bitbucketNanos;
+    private volatile Integer attempts;
+    private volatile Integer statusCode;
+    private volatile String message;
+
+    public UbAction() {
+        this(null, null);
+    }
+
+    UbAction(@CheckForNull String claimedBy, @CheckForNull String notificationId) {
+        this.claimedBy = claimedBy;
+        this.notificationId = notificationId;
+    }
+
+    /**
+     * Claims the run for a notification, first verb wins.
+     * <p>
+     * Claiming again with the same notification id (e.g. a resumed step) succeeds.
+     *
+     * @param run            the run
+     * @param actionName     ubValidate, ubFail... (logging purposes)
+     * @param notificationId the id of the notification to send
+     * @return the claim of the run, the caller may notify Bitbucket if it {@link #isClaimedBy(String)} it
+     */
+    @Nonnull
+    static UbAction claim(@Nonnull Run<?, ?> run, String actionName, @Nonnull String notificationId) {
+        // the parallel branches of a pipeline run on different threads
+        synchronized (run) {
+            UbAction existing = run.getAction(UbAction.class);
+            if (existing != null) {
+                return existing;
+            }
+            UbAction claim = new UbAction(actionName, notificationId);
+            run.addAction(claim);
+            return claim;
+        }
+    }
+
+    /**
+     * Gives up the claim of the run, e.g. its notification could not even be queued, or has been withdrawn by
+     * an aborted verb: the verbs or the {@link UbBuildListener} notify Bitbucket instead
+     */
+    static void release(@Nonnull Run<?, ?> run, @Nonnull UbAction claim) {
+        synchronized (run) {
+            run.removeAction(claim);
+        }
+    }
+
+    /**
+     * @return whether the run has been claimed for this notification
+     */
+    boolean isClaimedBy(String otherNotificationId) {
+        return notificationId != null && notificationId.equals(otherNotificationId);
+    }
+
+    /**
+     * @return the verb which claimed the run, null if unknown
+     */
+    @CheckForNull
+    @Exported
+    public String getClaimedBy() {
+        return claimedBy;
+    }
+
+    /**
+     * @return whether the run has been claimed because it was superseded, Bitbucket is not notified of it
+     */
+    public boolean isSuperseded() {
+        return UbSupersedeTracker.CLAIM_NAME.equals(claimedBy);
+    }
+
+    void recordCredentials(long nanos) {
+        credentialsNanos = nanos;
+    }
+
+    void recordEnvironment(long nanos) {
+        environmentNanos = nanos;
+    }
+
+    /**
+     * @param nanos    from the submission of the notification to the answer of Bitbucket, retries included
+     * @param attempts number of requests sent
+     * @param bbResult the last answer of Bitbucket
+     */
+    void recordNotification(long nanos, int attempts, UbUtils.BitbucketQueryResult bbResult) {
+        String answer = bbResult.getMessage();
+        if (answer != null && answer.length() > MAX_MESSAGE_LENGTH) {
+            answer = answer.substring(0, MAX_MESSAGE_LENGTH) + "...";
+        }
+        this.bitbucketNanos = nanos;
+        this.attempts = attempts;
+        // a superseded notification got no answer, it has no http code
+        this.statusCode = bbResult.isSuperseded() ? null : bbResult.getStatusCode();
+        this.message = answer;
+    }
+
+    /**
+     * @return the time spent finding the Bitbucket credentials, in nanoseconds, null if not recorded
+     */
+    @CheckForNull
+    @Exported
+    public Long getCredentialsNanos() {
+        return credentialsNanos;
+    }
+
+    /**
+     * @return the time spent collecting the environment of the run, in nanoseconds, null if not recorded
+     */
+    @CheckForNull
+    @Exported
+    public Long getEnvironmentNanos() {
+        return environmentNanos;
+    }
+
+    /**
+     * @return the time spent notifying Bitbucket, in nanoseconds, null if not recorded
+     */
+    @CheckForNull
+    @Exported
+    public Long getBitbucketNanos() {
+        return bitbucketNanos;
+    }
+
+    /**
+     * @return the number of requests sent to Bitbucket, null if not recorded
+     */
+    @CheckForNull
+    @Exported
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the http code of the last answer of Bitbucket (-1 if none), null if not recorded or superseded
+     */
+    @CheckForNull
+    @Exported
+    public Integer getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the message of the last answer of Bitbucket, null if not recorded
+     */
+    @CheckForNull
+    @Exported
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the duration in milliseconds, for display
+     */
+    public static String formatNanos(@CheckForNull Long nanos) {
+        return nanos == null ? "-" : String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+    }
+
     /**
      * Gets the file name of the icon. here null.
      */
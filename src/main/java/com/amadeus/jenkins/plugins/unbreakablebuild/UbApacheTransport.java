@@ -0,0 +1,220 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.util.Timer;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * HTTP/1.1 transport, through the pooled non blocking apache clients of {@link UbHttpClients}.
+ * The requests sent together are pipelined on one connection.
+ */
+final class UbApacheTransport implements UbTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbApacheTransport.class);
+
+    @Override
+    public <T> CompletableFuture<T> post(UbBitbucketServer server, String url, String payload,
+                                         UsernamePasswordCredentials credentials, String idempotencyKey,
+                                         Function<HttpResponse, T> responseReader,
+                                         Function<Exception, T> errorReader) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        HttpHost httpHost;
+        try {
+            httpHost = toHttpHost(url);
+        } catch (MalformedURLException e) {
+            result.complete(errorReader.apply(e));
+            return result;
+        }
+        HttpClientContext context = newPreemptiveAuthContext(httpHost, credentials);
+
+        // the client is shared, it must not be closed here
+        CloseableHttpAsyncClient cli = UbHttpClients.asyncForBitbucket(server.getServerUrl());
+
+        UbBoundedResponseConsumer consumer = new UbBoundedResponseConsumer();
+        Future<HttpResponse> httpFuture = cli.execute(
+                HttpAsyncMethods.create(httpHost, newBitbucketPost(server, url, payload, idempotencyKey)),
+                consumer, context,
+                new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse res) {
+                        result.complete(responseReader.apply(res));
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        // the response was too big, we closed the connection, but we have what we need
+                        HttpResponse abandoned = consumer.getAbandonedResponse();
+                        if (abandoned != null) {
+                            result.complete(responseReader.apply(abandoned));
+                            return;
+                        }
+                        LOGGER.error("Issue while notifying Bitbucket", e);
+                        result.complete(errorReader.apply(e));
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.cancel(false);
+                    }
+                });
+        // the caller gave up (e.g. the step was stopped), no need to wait for bitbucket
+        result.whenComplete((ignored, t) -> {
+            if (result.isCancelled()) {
+                httpFuture.cancel(true);
+            }
+        });
+        applyRequestTimeout(server, result, httpFuture, () -> errorReader.apply(requestTimeoutException(server)));
+        return result;
+    }
+
+    @Override
+    public <T> CompletableFuture<List<T>> postAll(UbBitbucketServer server, List<String> urls, List<String> payloads,
+                                                  UsernamePasswordCredentials credentials,
+                                                  List<String> idempotencyKeys,
+                                                  Function<HttpResponse, T> responseReader,
+                                                  Function<Exception, T> errorReader) {
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
+        HttpHost httpHost;
+        try {
+            httpHost = toHttpHost(urls.get(0));
+        } catch (MalformedURLException e) {
+            result.complete(Collections.nCopies(urls.size(), errorReader.apply(e)));
+            return result;
+        }
+        HttpClientContext context = newPreemptiveAuthContext(httpHost, credentials);
+
+        List<HttpAsyncRequestProducer> producers = new ArrayList<>(urls.size());
+        List<UbBoundedResponseConsumer> consumers = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            producers.add(HttpAsyncMethods.create(httpHost,
+                    newBitbucketPost(server, urls.get(i), payloads.get(i), idempotencyKeys.get(i))));
+            consumers.add(new UbBoundedResponseConsumer());
+        }
+
+        // the client is shared, it must not be closed here
+        Future<List<HttpResponse>> httpFuture = UbHttpClients.pipeliningForBitbucket(server.getServerUrl()).execute(
+                httpHost, producers, consumers, context,
+                new FutureCallback<List<HttpResponse>>() {
+                    @Override
+                    public void completed(List<HttpResponse> responses) {
+                        List<T> results = new ArrayList<>(responses.size());
+                        for (HttpResponse res : responses) {
+                            results.add(responseReader.apply(res));
+                        }
+                        result.complete(results);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        LOGGER.error("Issue while notifying Bitbucket", e);
+                        // the responses received before the failure are kept
+                        List<T> results = new ArrayList<>(consumers.size());
+                        for (UbBoundedResponseConsumer consumer : consumers) {
+                            HttpResponse res = consumer.getResult() != null
+                                    ? consumer.getResult() : consumer.getAbandonedResponse();
+                            results.add(res == null ? errorReader.apply(e) : responseReader.apply(res));
+                        }
+                        result.complete(results);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.cancel(false);
+                    }
+                });
+        applyRequestTimeout(server, result, httpFuture,
+                () -> Collections.nCopies(urls.size(), errorReader.apply(requestTimeoutException(server))));
+        return result;
+    }
+
+    /**
+     * Gives up on the request when Bitbucket did not answer within the request timeout of the server,
+     * the socket timeout only bounds the silence between two packets.
+     */
+    private static <T> void applyRequestTimeout(UbBitbucketServer server, CompletableFuture<T> result,
+                                                Future<?> httpFuture, Supplier<T> timeoutResult) {
+        ScheduledFuture<?> deadline = Timer.get().schedule(() -> {
+            if (result.complete(timeoutResult.get())) {
+                httpFuture.cancel(true);
+            }
+        }, server.getRequestTimeoutSeconds(), TimeUnit.SECONDS);
+        result.whenComplete((ignored, t) -> deadline.cancel(false));
+    }
+
+    private static SocketTimeoutException requestTimeoutException(UbBitbucketServer server) {
+        return new SocketTimeoutException("No answer from " + server.getServerUrl() + " within "
+                + server.getRequestTimeoutSeconds() + " seconds");
+    }
+
+    private static HttpHost toHttpHost(String url) throws MalformedURLException {
+        URL realUrl = new URL(url);
+        return new HttpHost(realUrl.getHost(), realUrl.getPort(), realUrl.getProtocol());
+    }
+
+    private static HttpClientContext newPreemptiveAuthContext(
+            HttpHost httpHost, UsernamePasswordCredentials usernamePasswordCredentials) {
+        CredentialsProvider credsProvider = new BasicCredentialsProvider();
+        credsProvider.setCredentials(AuthScope.ANY, usernamePasswordCredentials);
+
+        // by default, apache http client does not do
+        // preemptive auth: https://hc.apache.org/httpcomponents-client-ga/tutorial/html/authentication.html#d5e717
+        // so we force it
+        AuthCache authCache = new BasicAuthCache();
+        authCache.put(httpHost, new BasicScheme());
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(credsProvider);
+        context.setAuthCache(authCache);
+        return context;
+    }
+
+    private static HttpPost newBitbucketPost(UbBitbucketServer server, String url, String payload,
+                                             String idempotencyKey) {
+        HttpPost post = new HttpPost(url);
+        post.setConfig(RequestConfig.custom()
+                .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(server.getConnectTimeoutSeconds()))
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(server.getSocketTimeoutSeconds()))
+                .setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(server.getRequestTimeoutSeconds()))
+                .build());
+
+        post.setHeader("Content-type", "application/json");
+        if (idempotencyKey != null) {
+            post.setHeader(UbUtils.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+        }
+
+        // attach the payload
+        post.setEntity(new StringEntity(payload, StandardCharsets.UTF_8));
+        return post;
+    }
+}
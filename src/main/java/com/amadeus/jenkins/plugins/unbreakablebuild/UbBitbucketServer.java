@@ -0,0 +1,236 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.Nonnull;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>
+ * The http settings used to notify one Bitbucket, matched on the SCM_URL of the runs.
+ */
+public class UbBitbucketServer extends AbstractDescribableImpl<UbBitbucketServer> {
+
+    static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    static final int DEFAULT_SOCKET_TIMEOUT_SECONDS = 30;
+    static final int DEFAULT_REQUEST_TIMEOUT_SECONDS = 60;
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+    static final int DEFAULT_MAX_IN_FLIGHT = 10;
+    static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+
+    private final String serverUrl;
+    private int connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+    private int socketTimeoutSeconds = DEFAULT_SOCKET_TIMEOUT_SECONDS;
+    private int requestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT_SECONDS;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private Transport transport = Transport.APACHE_HTTP_CLIENT;
+    private String refNamespaces;
+    private Long batchWindowMillis;
+
+    /**
+     * The http client used to notify a Bitbucket
+     */
+    public enum Transport {
+        APACHE_HTTP_CLIENT("Apache HttpClient (HTTP/1.1, pipelining)", new UbApacheTransport()),
+        JAVA_HTTP_CLIENT("Java HttpClient (HTTP/2, multiplexing)", new UbJavaHttpTransport());
+
+        private final String displayName;
+        private final UbTransport transport;
+
+        Transport(String displayName, UbTransport transport) {
+            this.displayName = displayName;
+            this.transport = transport;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        UbTransport transport() {
+            return transport;
+        }
+    }
+
+    /**
+     * @param serverUrl the Bitbucket base URL, as found in the SCM_URL of the runs
+     */
+    @DataBoundConstructor
+    public UbBitbucketServer(String serverUrl) {
+        this.serverUrl = UbHttpClients.normalize(serverUrl);
+    }
+
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = atLeast(connectTimeoutSeconds, 1);
+    }
+
+    public int getSocketTimeoutSeconds() {
+        return socketTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setSocketTimeoutSeconds(int socketTimeoutSeconds) {
+        this.socketTimeoutSeconds = atLeast(socketTimeoutSeconds, 1);
+    }
+
+    public int getRequestTimeoutSeconds() {
+        return requestTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setRequestTimeoutSeconds(int requestTimeoutSeconds) {
+        this.requestTimeoutSeconds = atLeast(requestTimeoutSeconds, 1);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = atLeast(maxConnections, 1);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @DataBoundSetter
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = atLeast(maxInFlight, 1);
+    }
+
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    @DataBoundSetter
+    public void setKeepAliveSeconds(int keepAliveSeconds) {
+        this.keepAliveSeconds = atLeast(keepAliveSeconds, 0);
+    }
+
+    public Transport getTransport() {
+        // not there in the configurations saved before it existed
+        return transport == null ? Transport.APACHE_HTTP_CLIENT : transport;
+    }
+
+    @DataBoundSetter
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return how long the notifications to this Bitbucket wait to be sent in one batch, 0 when not batched
+     */
+    public long getBatchWindowMillis() {
+        // the system property is the default, and the value of the configurations saved before it existed
+        return batchWindowMillis == null ? UbNotificationBatcher.WINDOW_MILLIS : batchWindowMillis;
+    }
+
+    @DataBoundSetter
+    public void setBatchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = Math.max(batchWindowMillis, 0L);
+    }
+
+    /**
+     * @return the ref namespaces of the unbreakable builds of this Bitbucket, on top of {@code refs/ubuilds/},
+     * separated by commas or spaces
+     */
+    public String getRefNamespaces() {
+        return refNamespaces;
+    }
+
+    @DataBoundSetter
+    public void setRefNamespaces(String refNamespaces) {
+        this.refNamespaces = Util.fixEmptyAndTrim(refNamespaces);
+    }
+
+    List<String> getRefNamespaceList() {
+        return refNamespaces == null ? Collections.emptyList() : Arrays.asList(Util.tokenize(refNamespaces, ", \n"));
+    }
+
+    /**
+     * @return whether this entry is the one of the given Bitbucket base URL
+     */
+    boolean matches(String bitbucketUrl) {
+        return serverUrl.equalsIgnoreCase(UbHttpClients.normalize(bitbucketUrl));
+    }
+
+    private static int atLeast(int value, int min) {
+        return Math.max(value, min);
+    }
+
+    /**
+     * Same settings, the configuration is applied again only when they changed
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UbBitbucketServer)) {
+            return false;
+        }
+        UbBitbucketServer server = (UbBitbucketServer) o;
+        return serverUrl.equals(server.serverUrl)
+                && connectTimeoutSeconds == server.connectTimeoutSeconds
+                && socketTimeoutSeconds == server.socketTimeoutSeconds
+                && requestTimeoutSeconds == server.requestTimeoutSeconds
+                && maxConnections == server.maxConnections
+                && maxInFlight == server.maxInFlight
+                && keepAliveSeconds == server.keepAliveSeconds
+                && getTransport() == server.getTransport()
+                && getBatchWindowMillis() == server.getBatchWindowMillis()
+                && Objects.equals(refNamespaces, server.refNamespaces);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(serverUrl, connectTimeoutSeconds, socketTimeoutSeconds, requestTimeoutSeconds,
+                maxConnections, maxInFlight, keepAliveSeconds, getTransport(), getBatchWindowMillis(), refNamespaces);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<UbBitbucketServer> {
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Bitbucket server";
+        }
+
+        public FormValidation doCheckServerUrl(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("The Bitbucket URL is mandatory");
+            }
+            try {
+                new URL(value.trim());
+                return FormValidation.ok();
+            } catch (MalformedURLException e) {
+                return FormValidation.error("Not a valid URL: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.util.SystemProperties;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Reads a Bitbucket response without trusting its size: the default consumer buffers the whole body on the heap,
+ * which is a lot when a proxy answers with a big html error page.
+ * <ul>
+ *     <li>only the first bytes of the body are kept, and only for json (or untyped) content,</li>
+ *     <li>the rest is read into a small buffer and dropped, so that the connection goes back to the pool,</li>
+ *     <li>past a limit, the connection is closed instead of being drained.</li>
+ * </ul>
+ * The response given to the readers holds an in memory entity with the kept bytes.
+ */
+final class UbBoundedResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbBoundedResponseConsumer.class);
+
+    static final int MAX_BODY_BYTES =
+            SystemProperties.getInteger(UbBoundedResponseConsumer.class.getName() + ".maxBodyBytes", 64 * 1024);
+
+    static final long MAX_DRAINED_BYTES =
+            SystemProperties.getLong(UbBoundedResponseConsumer.class.getName() + ".maxDrainedBytes", 1024 * 1024L);
+
+    private final int maxBodyBytes;
+    private final long maxDrainedBytes;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+    private volatile HttpResponse response;
+    private volatile boolean abandoned;
+    private ContentType contentType;
+    private ByteArrayOutputStream body;
+    private boolean keepBody;
+    private long drained;
+
+    UbBoundedResponseConsumer() {
+        this(MAX_BODY_BYTES, MAX_DRAINED_BYTES);
+    }
+
+    UbBoundedResponseConsumer(int maxBodyBytes, long maxDrainedBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+        this.maxDrainedBytes = maxDrainedBytes;
+    }
+
+    /**
+     * @param contentType the content type of a response, null if it has none
+     * @return whether the body may be json, and is worth parsing
+     */
+    static boolean isJson(ContentType contentType) {
+        return contentType == null || contentType.getMimeType().toLowerCase(Locale.ROOT).contains("json");
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse httpResponse) {
+        this.response = httpResponse;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType entityContentType) {
+        this.contentType = entityContentType;
+        this.keepBody = isJson(entityContentType);
+        long length = entity.getContentLength();
+        int initialSize = length < 0 ? 256 : (int) Math.min(length, maxBodyBytes);
+        this.body = new ByteArrayOutputStream(keepBody ? initialSize : 0);
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        int read;
+        while ((read = decoder.read(buffer)) > 0) {
+            int kept = keepBody ? Math.min(read, maxBodyBytes - body.size()) : 0;
+            body.write(buffer.array(), 0, kept);
+            drained += read - kept;
+            buffer.clear();
+            if (drained > maxDrainedBytes) {
+                LOGGER.warn("Response of Bitbucket bigger than {} bytes, closing the connection", maxDrainedBytes);
+                abandoned = true;
+                ioControl.shutdown();
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+        return boundedResponse();
+    }
+
+    @Override
+    protected void releaseResources() {
+        // nothing held but the kept bytes, which are in the result
+    }
+
+    /**
+     * @return the response (with the kept bytes) if the connection has been closed because the body was too big,
+     * null otherwise
+     */
+    HttpResponse getAbandonedResponse() {
+        return abandoned ? boundedResponse() : null;
+    }
+
+    private HttpResponse boundedResponse() {
+        HttpResponse httpResponse = response;
+        if (httpResponse != null && body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray(), contentType);
+            httpResponse.setEntity(entity);
+        }
+        return httpResponse;
+    }
+}
@@ -0,0 +1,157 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.model.listeners.ItemListener;
+import jenkins.scm.api.SCMHead;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Tells whether the runs of a branch job are unbreakable builds, so that the {@link UbBuildListener} does not
+ * compute the environment of every run to find it out.
+ * <p>
+ * The branch jobs of the {@code refs/ubuilds/N} heads are tagged when they are created. The other ones are tagged
+ * by their first run, as soon as it starts. A job tagged as not an unbreakable build is checked again after a while
+ * (a day by default, system property
+ * {@code com.amadeus.jenkins.plugins.unbreakablebuild.UbBranchJobProperty.recheckMillis}), e.g. its repository has
+ * been registered in Bitbucket meanwhile. In strict mode (system property
+ * {@code com.amadeus.jenkins.plugins.unbreakablebuild.UbBranchJobProperty.strict}), the jobs which are not tagged
+ * are not unbreakable builds.
+ */
+public class UbBranchJobProperty extends JobProperty<Job<?, ?>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbBranchJobProperty.class);
+
+    static final boolean STRICT = SystemProperties.getBoolean(UbBranchJobProperty.class.getName() + ".strict");
+
+    static final long RECHECK_MILLIS = SystemProperties.getLong(UbBranchJobProperty.class.getName() + ".recheckMillis",
+            TimeUnit.DAYS.toMillis(1));
+
+    private final boolean unbreakable;
+    // 0 for the jobs tagged before it was recorded
+    private final long taggedAt;
+
+    UbBranchJobProperty(boolean unbreakable) {
+        this(unbreakable, System.currentTimeMillis());
+    }
+
+    UbBranchJobProperty(boolean unbreakable, long taggedAt) {
+        this.unbreakable = unbreakable;
+        this.taggedAt = taggedAt;
+    }
+
+    public boolean isUnbreakable() {
+        return unbreakable;
+    }
+
+    /**
+     * @return whether the job is tagged as not an unbreakable build for too long to be trusted
+     */
+    private boolean isStale() {
+        return !unbreakable && System.currentTimeMillis() - taggedAt >= RECHECK_MILLIS;
+    }
+
+    /**
+     * @return whether the runs of the job are unbreakable builds, null if not known yet (or to be checked again)
+     */
+    @CheckForNull
+    static Boolean isUnbreakable(Job<?, ?> job) {
+        UbBranchJobProperty property = job.getProperty(UbBranchJobProperty.class);
+        if (property != null && !property.isStale()) {
+            return property.unbreakable;
+        }
+        return STRICT ? Boolean.FALSE : null;
+    }
+
+    /**
+     * @return whether the runs of the job are known to be unbreakable builds: the job is tagged as such, or it is
+     * not tagged yet but built from an unbreakable build head
+     */
+    static boolean isKnownUnbreakable(Job<?, ?> job) {
+        Boolean unbreakable = isUnbreakable(job);
+        if (unbreakable != null) {
+            return unbreakable;
+        }
+        // e.g. a job created before the plugin was installed
+        BranchJobProperty branch = job.getProperty(BranchJobProperty.class);
+        return branch != null && isUnbreakableHead(branch.getBranch().getHead());
+    }
+
+    /**
+     * Records whether the runs of the job are unbreakable builds, it is only a hint: failing to save it is logged
+     */
+    static void tag(Job<?, ?> job, boolean unbreakable) {
+        UbBranchJobProperty property = job.getProperty(UbBranchJobProperty.class);
+        if (property != null && property.unbreakable == unbreakable && !property.isStale()) {
+            return;
+        }
+        synchronized (job) {
+            try (BulkChange bc = new BulkChange(job)) {
+                job.removeProperty(UbBranchJobProperty.class);
+                job.addProperty(new UbBranchJobProperty(unbreakable));
+                bc.commit();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to tag {} as {}an unbreakable build: {}", job.getFullName(),
+                        unbreakable ? "" : "not ", e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return whether this head is the one of an unbreakable build
+     */
+    static boolean isUnbreakableHead(SCMHead head) {
+        return UbBranchPojo.getMergeRequestIdFromUbBranchName(head.getName()) != null;
+    }
+
+    /**
+     * Not configurable, the property is managed by the plugin
+     */
+    @Extension
+    public static class DescriptorImpl extends JobPropertyDescriptor {
+        @Override
+        public boolean isApplicable(Class<? extends Job> jobType) {
+            return false;
+        }
+    }
+
+    /**
+     * Tags the branch jobs of the unbreakable build heads as soon as they are created
+     */
+    @Extension
+    public static class Classifier extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            classify(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            classify(item);
+        }
+
+        private static void classify(Item item) {
+            if (!(item instanceof WorkflowJob)) {
+                return;
+            }
+            WorkflowJob job = (WorkflowJob) item;
+            BranchJobProperty branch = job.getProperty(BranchJobProperty.class);
+            if (branch != null && isUnbreakableHead(branch.getBranch().getHead())) {
+                tag(job, true);
+            }
+        }
+    }
+}
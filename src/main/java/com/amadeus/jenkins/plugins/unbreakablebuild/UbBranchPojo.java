@@ -1,34 +1,63 @@
 package com.amadeus.jenkins.plugins.unbreakablebuild;
 
+import hudson.Util;
+import jenkins.util.SystemProperties;
+
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>
  * used to transform the unbreakablebuild branchName into a Pojo
+ * <p>
+ * The refs of the unbreakable builds are {@code <namespace><mergeRequestId>}. The namespaces are
+ * {@code refs/ubuilds/}, the ones of the system property
+ * {@code com.amadeus.jenkins.plugins.unbreakablebuild.UbBranchPojo.namespaces} (comma separated, e.g.
+ * {@code refs/merge-queue/}) and the ones of the Bitbucket servers configured. The parsed refs are cached.
  */
 public final class UbBranchPojo {
 
     static final String UB_BRANCH_PREFIX = "refs/ubuilds/";
 
-    // Branch name shape: refs/ubuilds//{mergeRequestId}
+    // Branch name shape: refs/ubuilds//{mergeRequestId}, the reference of the parser in the default namespace
     static final String UB_BRANCH_REGEX = UB_BRANCH_PREFIX + "(?<mergeRequestId>[0-9]+)";
 
-    private static final Pattern UB_BRANCH_PATTERN = Pattern.compile(UB_BRANCH_REGEX);
+    private static final String NAMESPACES = SystemProperties.getString(UbBranchPojo.class.getName() + ".namespaces");
+
+    // enough for the refs of the builds running, they are all parsed again when it is full
+    private static final int MAX_CACHED = 1024;
+
+    // the parser and its cache are replaced together, a ref parsed with former namespaces is not cached anymore
+    private static volatile Parsing parsing = new Parsing(UbRefParser.of(defaultNamespaces()));
 
     private final String targetBranchName;
 
+    private final String namespace;
+
     private final String mergeRequestId;
 
+    private final long mergeRequestNumber;
+
     /**
      * Constructor
      *
-     * @param targetBranchName the unbreakable branch
+     * @param targetBranchName   the unbreakable branch
+     * @param namespace          the namespace of the unbreakable branch
+     * @param mergeRequestId     the merge request id
+     * @param mergeRequestNumber the merge request id, -1 if it does not fit in a long
      */
-    private UbBranchPojo(@Nonnull String targetBranchName) {
+    UbBranchPojo(@Nonnull String targetBranchName, @Nonnull String namespace, @Nonnull String mergeRequestId,
+                 long mergeRequestNumber) {
         this.targetBranchName = targetBranchName;
-        this.mergeRequestId = getMergeRequestIdFromUbBranchName(targetBranchName);
+        this.namespace = namespace;
+        this.mergeRequestId = mergeRequestId;
+        this.mergeRequestNumber = mergeRequestNumber;
     }
 
     /**
@@ -40,6 +69,15 @@ public final class UbBranchPojo {
         return targetBranchName;
     }
 
+    /**
+     * Get the namespace of the branch
+     *
+     * @return the prefix of the branch name, e.g. {@code refs/ubuilds/}
+     */
+    String getNamespace() {
+        return namespace;
+    }
+
     /**
      * Get the merge request id
      *
@@ -49,20 +87,75 @@ public final class UbBranchPojo {
         return mergeRequestId;
     }
 
+    /**
+     * Get the merge request id as a number
+     *
+     * @return the merge request id, -1 if it is too large for a long
+     */
+    long getMergeRequestNumber() {
+        return mergeRequestNumber;
+    }
+
+    @CheckForNull
     static UbBranchPojo fromUbBranchName(@Nonnull String ubBranchName) {
-        UbBranchPojo result = null;
-        String id = getMergeRequestIdFromUbBranchName(ubBranchName);
-        if (id != null) {
-            result = new UbBranchPojo(ubBranchName);
-        }
-        return result;
+        return parsing.parse(ubBranchName);
     }
 
+    @CheckForNull
     static String getMergeRequestIdFromUbBranchName(@Nonnull String ubBranchName) {
-        Matcher m = UB_BRANCH_PATTERN.matcher(ubBranchName);
-        if (m.matches()) {
-            return m.group("mergeRequestId");
+        UbBranchPojo pojo = fromUbBranchName(ubBranchName);
+        return pojo == null ? null : pojo.mergeRequestId;
+    }
+
+    /**
+     * @param namespaces the namespaces configured, on top of the default ones
+     */
+    static void configureNamespaces(@Nonnull Collection<String> namespaces) {
+        List<String> all = defaultNamespaces();
+        all.addAll(namespaces);
+        parsing = new Parsing(UbRefParser.of(all));
+    }
+
+    /**
+     * @return the namespaces of the unbreakable builds
+     */
+    static List<String> getNamespaces() {
+        return parsing.parser.getNamespaces();
+    }
+
+    private static List<String> defaultNamespaces() {
+        List<String> namespaces = new ArrayList<>();
+        namespaces.add(UB_BRANCH_PREFIX);
+        if (NAMESPACES != null) {
+            namespaces.addAll(Arrays.asList(Util.tokenize(NAMESPACES, ", ")));
+        }
+        return namespaces;
+    }
+
+    /**
+     * A parser and the refs it parsed
+     */
+    private static final class Parsing {
+        private final UbRefParser parser;
+        private final Map<String, UbBranchPojo> cache = new ConcurrentHashMap<>();
+
+        private Parsing(UbRefParser parser) {
+            this.parser = parser;
+        }
+
+        @CheckForNull
+        private UbBranchPojo parse(String ubBranchName) {
+            UbBranchPojo result = cache.get(ubBranchName);
+            if (result == null) {
+                result = parser.parse(ubBranchName);
+                if (result != null) {
+                    if (cache.size() >= MAX_CACHED) {
+                        cache.clear();
+                    }
+                    cache.put(ubBranchName, result);
+                }
+            }
+            return result;
         }
-        return null;
     }
 }
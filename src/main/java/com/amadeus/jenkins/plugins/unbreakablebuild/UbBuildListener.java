@@ -7,14 +7,24 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 import jenkins.scm.api.SCMRevisionAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 @Extension
 public class UbBuildListener extends RunListener<Run<?, ?>> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbBuildListener.class);
+
+    private static final String LISTENER_NAME = "UbBuildListener";
+
     /**
      * This method is called once the job is completed. At that moment we will
      * try to identify whether it was an unbreakable build and if so, we figure
@@ -27,6 +37,11 @@ public class UbBuildListener extends RunListener<Run<?, ?>> {
     @Override
     public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
 
+        if (Boolean.FALSE.equals(UbBranchJobProperty.isUnbreakable(run.getParent()))) {
+            // known not to be an unbreakable build job -> early exit, for (almost) free
+            return;
+        }
+
         SCMRevisionAction scmRevisionAction = run.getAction(SCMRevisionAction.class);
 
         if (scmRevisionAction == null) {
@@ -34,58 +49,179 @@ public class UbBuildListener extends RunListener<Run<?, ?>> {
             // early exit
             return;
         }
+        if (run.getAction(UbAction.class) != null) {
+            // an ubAction has been already called -> normal use case -> exit, without computing the environment
+            return;
+        }
         PrintStream jenkinsLogger = listener.getLogger();
+        UbListenerExecutor executor = UbListenerExecutor.get();
+        String notificationId = UUID.randomUUID().toString();
+        Result result = run.getResult();
         try {
-            EnvVars environment = run.getEnvironment(listener);
-
-            // if not null -> unbreakable build run
-            if (!UbJenkinsEnvBean.isUnbreakableBuild(environment)) {
-                // the branch is not an unbreakable build -> early exit
-                return;
+            // a slow bitbucket must not hold the thread finalizing the build for ever:
+            // the work is done by a worker, the outcome is handled here while the result can still be changed
+            Fallback fallback = executor.call(() -> notifyBitbucket(run, listener, notificationId, result));
+            if (fallback != null) {
+                UbJenkinsEnvBean.endNotification(fallback.bbResult, fallback.status, jenkinsLogger, run);
             }
-
-            // if ubFail or ubValidate has NOT been called then this ubAction is null
-            if (run.getAction(UbAction.class) != null) {
-                // an ubAction has been already called -> normal use case -> exit
-                return;
+        } catch (TimeoutException e) {
+            // the outcome is unknown: the build must not look successful, nor be merged by Bitbucket
+            run.setResult(Result.FAILURE);
+            UbUtils.jenkinsLog(jenkinsLogger, String.format("%n Unbreakable build: no answer of Bitbucket within "
+                    + "%d seconds, the build has been marked as failed. Bitbucket is notified of the failure in the "
+                    + "background, check the status of the merge request in Bitbucket%n",
+                    executor.getTimeoutSeconds()));
+            if (Result.SUCCESS.equals(result)) {
+                replaceWithFailure(run, notificationId, executor);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(run, jenkinsLogger, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // e.g. the Failure of a missing credential, the result of the build has been set
+                throw (RuntimeException) cause;
+            }
+            fail(run, jenkinsLogger, cause);
+        }
+    }
 
-            // -- at this point, ubFail or ubValidate has NOT been called and MUST be called --
-
+    private static void fail(Run<?, ?> run, PrintStream jenkinsLogger, Throwable e) {
+        run.setResult(Result.FAILURE);
+        UbUtils.jenkinsLog(jenkinsLogger, "\n -- UbBuildListener --\n"
+                + "The following exception occurred while trying to "
+                + "get the UB_ACTION_CALLED environment variable" + "\n");
+        throw new UbTechnicalException("Occurred while notifying Bitbucket (unbreakableBuild)", e);
+    }
 
-            // trying to get the plugin credentials, because they are needed
-            // this one will throw an exception nothing matches the IZ_USER credentials
-            org.apache.http.auth.UsernamePasswordCredentials credentials =
-                    UbUtils.getBitbucketCredentialsOrFail(run, jenkinsLogger);
+    /**
+     * The success of the run is withdrawn from the outbox (unless already sent), and Bitbucket is notified of the
+     * failure instead, after it on the stripe of the repository
+     *
+     * @param notificationId the id of the notification of the success
+     */
+    private static void replaceWithFailure(Run<?, ?> run, String notificationId, UbListenerExecutor executor) {
+        // the worker still preparing the success, if any, finds the run claimed
+        if (!UbAction.claim(run, LISTENER_NAME, notificationId).isClaimedBy(notificationId)) {
+            // a verb notified Bitbucket meanwhile
+            return;
+        }
+        UbNotificationOutbox.get().withdraw(notificationId);
+        if (!executor.offer(() -> notifyFailure(run))) {
+            LOGGER.warn("No room left to notify Bitbucket of the failure of {}, its success has been withdrawn", run);
+        }
+    }
 
-            // find the current status of the build and call the proper method
-            Result result = run.getResult();
+    /**
+     * Runs on a worker of the {@link UbListenerExecutor}, the run is completed: its log is closed
+     */
+    private static void notifyFailure(Run<?, ?> run) {
+        try {
+            UbContextAction ubContext = run.getAction(UbContextAction.class);
+            if (ubContext == null) {
+                EnvVars environment = run.getEnvironment(TaskListener.NULL);
+                if (!UbJenkinsEnvBean.isUnbreakableBuild(environment)) {
+                    return;
+                }
+                ubContext = UbJenkinsEnvBean.snapshot(run, environment);
+            }
+            UbJenkinsEnvBean.collectEnvAndSubmitNotification(UbFailStep.UB_ACTION_NAME,
+                    UUID.randomUUID().toString(), ubContext, null, UbJenkinsEnvBean.Status.FAILURE,
+                    UbUtils.getBitbucketCredentialsOrFail(run, null), run);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to notify Bitbucket of the failure of {}: {}", run, e.toString());
+        }
+    }
 
-            UbUtils.jenkinsLog(jenkinsLogger, "\n Unbreakable build: unbreakable verb "
-                    + "hasn't been called. We will call it with current build status: " + result + "\n");
+    /**
+     * Runs on a worker of the {@link UbListenerExecutor}
+     *
+     * @param notificationId the id of the notification, if the run is not claimed yet
+     * @param result         the result of the run, before the notification
+     * @return the future outcome of the notification, null if there is nothing to notify
+     */
+    private static CompletableFuture<Fallback> notifyBitbucket(Run<?, ?> run, TaskListener listener,
+                                                               String notificationId, Result result)
+            throws IOException, InterruptedException {
+        PrintStream jenkinsLogger = listener.getLogger();
 
-            // Get Associated status
-            String actionName;
-            UbJenkinsEnvBean.Status statusEnum;
-            if (Result.SUCCESS.equals(result)) {
-                statusEnum = UbJenkinsEnvBean.Status.SUCCESS;
-                actionName = UbValidateStep.UB_ACTION_NAME;
-            } else {
-                statusEnum = UbJenkinsEnvBean.Status.FAILURE;
-                actionName = UbFailStep.UB_ACTION_NAME;
+        // a snapshot of the context means an unbreakable build run
+        UbContextAction ubContext = run.getAction(UbContextAction.class);
+        EnvVars environment = null;
+        long environmentNanos = 0;
+        if (ubContext == null) {
+            long start = System.nanoTime();
+            UbEvents.EnvCollection event = new UbEvents.EnvCollection();
+            event.begin();
+            try {
+                environment = run.getEnvironment(listener);
+            } finally {
+                event.commit(run);
             }
+            environmentNanos = System.nanoTime() - start;
+            // if not null -> unbreakable build run
+            if (!UbJenkinsEnvBean.isUnbreakableBuild(environment)) {
+                // the branch is not an unbreakable build -> early exit, and for free next time
+                UbBranchJobProperty.tag(run.getParent(), false);
+                return CompletableFuture.completedFuture(null);
+            }
+            UbMetrics.get().envCollected(UbUtils.getIsolationZoneName(run.getParent().getFullName()), start);
+        }
 
-            // Call Bitbucket
-            UbJenkinsEnvBean.collectEnvAndNotifyBitbucket(actionName, environment,
-                    jenkinsLogger, statusEnum, credentials, run);
+        // if ubFail or ubValidate has NOT been called then the run is not claimed yet
+        UbAction claim = UbAction.claim(run, LISTENER_NAME, notificationId);
+        if (!claim.isClaimedBy(notificationId)) {
+            // an ubAction has been already called -> normal use case -> exit
+            return CompletableFuture.completedFuture(null);
+        }
 
-        } catch (IOException | InterruptedException e) {
-            run.setResult(Result.FAILURE);
-            UbUtils.jenkinsLog(jenkinsLogger, "\n -- UbBuildListener --\n"
-                    + "The following exception occurred while trying to "
-                    + "get the UB_ACTION_CALLED environment variable" + "\n");
-            throw new UbTechnicalException("Occurred while notifying Bitbucket (unbreakableBuild)", e);
+        // -- at this point, ubFail or ubValidate has NOT been called and MUST be called --
+
+
+        // trying to get the plugin credentials, because they are needed
+        // this one will throw an exception nothing matches the IZ_USER credentials
+        long start = System.nanoTime();
+        org.apache.http.auth.UsernamePasswordCredentials credentials =
+                UbUtils.getBitbucketCredentialsOrFail(run, jenkinsLogger);
+        claim.recordCredentials(System.nanoTime() - start);
+
+        // the status of the build decides the method to call
+        UbUtils.jenkinsLog(jenkinsLogger, "\n Unbreakable build: unbreakable verb "
+                + "hasn't been called. We will call it with current build status: " + result + "\n");
+
+        // Get Associated status
+        String actionName;
+        UbJenkinsEnvBean.Status statusEnum;
+        if (Result.SUCCESS.equals(result)) {
+            statusEnum = UbJenkinsEnvBean.Status.SUCCESS;
+            actionName = UbValidateStep.UB_ACTION_NAME;
+        } else {
+            statusEnum = UbJenkinsEnvBean.Status.FAILURE;
+            actionName = UbFailStep.UB_ACTION_NAME;
         }
+
+        if (ubContext == null) {
+            long snapshotStart = System.nanoTime();
+            ubContext = UbJenkinsEnvBean.snapshot(run, environment);
+            claim.recordEnvironment(environmentNanos + System.nanoTime() - snapshotStart);
+        }
+
+        // Call Bitbucket
+        return UbJenkinsEnvBean.collectEnvAndSubmitNotification(actionName, notificationId, ubContext,
+                jenkinsLogger, statusEnum, credentials, run)
+                .thenApply(bbResult -> new Fallback(statusEnum, bbResult));
     }
 
+    private static final class Fallback {
+        private final UbJenkinsEnvBean.Status status;
+        private final UbUtils.BitbucketQueryResult bbResult;
+
+        private Fallback(UbJenkinsEnvBean.Status status, UbUtils.BitbucketQueryResult bbResult) {
+            this.status = status;
+            this.bbResult = bbResult;
+        }
+    }
 }
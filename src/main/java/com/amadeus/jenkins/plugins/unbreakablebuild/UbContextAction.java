@@ -0,0 +1,61 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * <p>
+ * Snapshot of the unbreakable build context of a run, taken from its environment the first time it is needed
+ * (by the {@link UbSupersedeTracker} when the run starts, by a verb, or by the {@link UbBuildListener}), so that
+ * the environment of the run is not computed again.
+ * <p>
+ * It is saved with the run, see {@link UbJenkinsEnvBean#snapshot(hudson.model.Run, hudson.EnvVars)}.
+ */
+public class UbContextAction extends InvisibleAction {
+
+    private final String bitbucketUrl;
+    private final String projectKey;
+    private final String repositorySlug;
+    private final String refSpec;
+    private final String commitId;
+    private final String jobUrl;
+    private final String isolationZone;
+
+    UbContextAction(String bitbucketUrl, String projectKey, String repositorySlug, String refSpec, String commitId,
+                    String jobUrl, String isolationZone) {
+        this.bitbucketUrl = bitbucketUrl;
+        this.projectKey = projectKey;
+        this.repositorySlug = repositorySlug;
+        this.refSpec = refSpec;
+        this.commitId = commitId;
+        this.jobUrl = jobUrl;
+        this.isolationZone = isolationZone;
+    }
+
+    public String getBitbucketUrl() {
+        return bitbucketUrl;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public String getRepositorySlug() {
+        return repositorySlug;
+    }
+
+    public String getRefSpec() {
+        return refSpec;
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public String getJobUrl() {
+        return jobUrl;
+    }
+
+    public String getIsolationZone() {
+        return isolationZone;
+    }
+}
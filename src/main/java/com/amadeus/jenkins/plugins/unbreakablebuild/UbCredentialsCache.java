@@ -0,0 +1,223 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.Tasks;
+import jenkins.branch.Branch;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty;
+import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Caches the Bitbucket credentials resolved for the runs of a multibranch project, by
+ * (multibranch project, source id, credentials id, authentication of the branch jobs).
+ * <p>
+ * The entries of a project are dropped when the project, one of its folders, the system credentials or a user
+ * are saved (which is how these credentials stores persist their changes), and after a while in any case. The other
+ * credentials stores (e.g. backed by an external vault) are not listened to: a change of their credentials is only
+ * seen once the entries expired, 5 minutes by default (system property
+ * {@code com.amadeus.jenkins.plugins.unbreakablebuild.UbCredentialsCache.ttlMillis}).
+ * Only the credentials found are cached, and the usage of the cached ones is still tracked on the run. The hits and
+ * the misses are exported by {@link UbMetricsAction}.
+ */
+public final class UbCredentialsCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbCredentialsCache.class);
+
+    static final long TTL_MILLIS = SystemProperties.getLong(UbCredentialsCache.class.getName() + ".ttlMillis",
+            TimeUnit.MINUTES.toMillis(5));
+
+    private static final UbCredentialsCache INSTANCE = new UbCredentialsCache(TTL_MILLIS);
+
+    private final long ttlMillis;
+    private final Map<Key, Cached> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    UbCredentialsCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static UbCredentialsCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param run           the run needing the credentials
+     * @param credentialsId the credentials id of the source of the run
+     * @param loader        looks the credentials up in the context of the run
+     * @return the credentials, null if not found
+     */
+    @CheckForNull
+    UsernamePasswordCredentials get(Run<?, ?> run, String credentialsId,
+                                    Supplier<UsernamePasswordCredentials> loader) {
+        Key key = Key.of(run, credentialsId);
+        if (key == null) {
+            // not from a multibranch project, or depends on the parameters of the run
+            return loader.get();
+        }
+        // findCredentialById tracks the usage of the credentials, the cache does it on its own
+        return get(key, loader, credentials -> CredentialsProvider.track(run, credentials));
+    }
+
+    /**
+     * @param onHit called with the credentials found in the cache
+     */
+    @CheckForNull
+    UsernamePasswordCredentials get(Key key, Supplier<UsernamePasswordCredentials> loader,
+                                    Consumer<UsernamePasswordCredentials> onHit) {
+        long now = System.currentTimeMillis();
+        Cached cached = entries.get(key);
+        if (cached != null && now - cached.loadedAt < ttlMillis) {
+            hits.increment();
+            onHit.accept(cached.credentials);
+            return cached.credentials;
+        }
+        misses.increment();
+        UsernamePasswordCredentials credentials = loader.get();
+        if (credentials != null) {
+            entries.put(key, new Cached(credentials, now));
+        } else {
+            entries.remove(key);
+        }
+        return credentials;
+    }
+
+    /**
+     * Drops the entries of the projects in this folder (or of this project)
+     */
+    void invalidate(String fullName) {
+        String prefix = fullName + '/';
+        if (entries.keySet().removeIf(key -> key.project.equals(fullName) || key.project.startsWith(prefix))) {
+            LOGGER.debug("Bitbucket credentials of {} invalidated", fullName);
+        }
+    }
+
+    void invalidateAll() {
+        entries.clear();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the percentage of the lookups answered by the cache, 0 before the first lookup
+     */
+    public int getHitRatePercent() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (int) (hitCount * 100 / total);
+    }
+
+    /**
+     * Invalidates the cache when a credentials store may have changed
+     */
+    @Extension
+    public static class Invalidator extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractFolder) {
+                // the folder credentials, or the sources of a multibranch project
+                get().invalidate(((AbstractFolder<?>) o).getFullName());
+            } else if (o instanceof SystemCredentialsProvider || o instanceof User) {
+                get().invalidateAll();
+            }
+        }
+    }
+
+    private static final class Cached {
+        private final UsernamePasswordCredentials credentials;
+        private final long loadedAt;
+
+        private Cached(UsernamePasswordCredentials credentials, long loadedAt) {
+            this.credentials = credentials;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    static final class Key {
+        private final String project;
+        private final String sourceId;
+        private final String credentialsId;
+        private final String authentication;
+
+        Key(String project, String sourceId, String credentialsId, String authentication) {
+            this.project = project;
+            this.sourceId = sourceId;
+            this.credentialsId = credentialsId;
+            this.authentication = authentication;
+        }
+
+        /**
+         * @return the key of the credentials of the run, null if they cannot be cached
+         */
+        @CheckForNull
+        static Key of(Run<?, ?> run, String credentialsId) {
+            if (credentialsId == null || credentialsId.startsWith("${")) {
+                // resolved from the parameters of the run
+                return null;
+            }
+            if (!(run.getParent() instanceof WorkflowJob)) {
+                return null;
+            }
+            WorkflowJob job = (WorkflowJob) run.getParent();
+            BranchJobProperty property = job.getProperty(BranchJobProperty.class);
+            ItemGroup<?> parent = job.getParent();
+            if (property == null || !(parent instanceof WorkflowMultiBranchProject)) {
+                return null;
+            }
+            Branch branch = property.getBranch();
+            return new Key(((WorkflowMultiBranchProject) parent).getFullName(), branch.getSourceId(), credentialsId,
+                    Tasks.getAuthenticationOf2(job).getName());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return project.equals(key.project) && Objects.equals(sourceId, key.sourceId)
+                    && credentialsId.equals(key.credentialsId) && authentication.equals(key.authentication);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, sourceId, credentialsId, authentication);
+        }
+    }
+}
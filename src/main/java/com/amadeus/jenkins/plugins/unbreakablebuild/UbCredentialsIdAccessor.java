@@ -0,0 +1,118 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import jenkins.scm.api.SCMSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Gives the id of the credentials used by a {@link SCMSource}, which are the credentials used to notify Bitbucket.
+ * <p>
+ * The sources known by no extension are read through their public {@code getCredentialsId()} method, if any.
+ * The accessor of each source class is looked up once.
+ */
+public abstract class UbCredentialsIdAccessor implements ExtensionPoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbCredentialsIdAccessor.class);
+
+    private static final Map<Class<?>, UbCredentialsIdAccessor> BY_SOURCE_CLASS = new ConcurrentHashMap<>();
+
+    /**
+     * @param sourceClass the class of a source
+     * @return whether this accessor knows the sources of this class
+     */
+    public abstract boolean isApplicable(@Nonnull Class<? extends SCMSource> sourceClass);
+
+    /**
+     * @param source a source of a class this accessor is applicable to
+     * @return the credentials id, null if the source has none
+     */
+    @CheckForNull
+    public abstract String getCredentialsId(@Nonnull SCMSource source);
+
+    /**
+     * @param source the source of a multibranch project
+     * @return the credentials id, null if the source has none (or it is not known how to get it)
+     */
+    @CheckForNull
+    static String credentialsIdOf(@Nonnull SCMSource source) {
+        return BY_SOURCE_CLASS.computeIfAbsent(source.getClass(), sourceClass ->
+                forSourceClass(sourceClass.asSubclass(SCMSource.class),
+                        ExtensionList.lookup(UbCredentialsIdAccessor.class)))
+                .getCredentialsId(source);
+    }
+
+    /**
+     * @param accessors the accessors contributed by the plugins
+     * @return the accessor of the sources of this class
+     */
+    static UbCredentialsIdAccessor forSourceClass(Class<? extends SCMSource> sourceClass,
+                                                  Iterable<UbCredentialsIdAccessor> accessors) {
+        for (UbCredentialsIdAccessor accessor : accessors) {
+            if (accessor.isApplicable(sourceClass)) {
+                return accessor;
+            }
+        }
+        return Reflective.of(sourceClass);
+    }
+
+    /**
+     * Calls the public {@code getCredentialsId()} method of the source, the method handle is resolved once per class
+     */
+    static final class Reflective extends UbCredentialsIdAccessor {
+        private static final MethodType GETTER = MethodType.methodType(String.class, SCMSource.class);
+
+        @CheckForNull
+        private final MethodHandle getter;
+
+        private Reflective(@CheckForNull MethodHandle getter) {
+            this.getter = getter;
+        }
+
+        static Reflective of(Class<? extends SCMSource> sourceClass) {
+            try {
+                Method method = sourceClass.getMethod("getCredentialsId");
+                if (!String.class.equals(method.getReturnType())) {
+                    throw new NoSuchMethodException(method + " does not return a String");
+                }
+                return new Reflective(MethodHandles.publicLookup().unreflect(method).asType(GETTER));
+            } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+                // once per class, this is how the source is, there is nothing to debug
+                LOGGER.warn("Unable to get the credentials id of the {} sources: {}", sourceClass.getName(),
+                        e.getMessage());
+                return new Reflective(null);
+            }
+        }
+
+        @Override
+        public boolean isApplicable(@Nonnull Class<? extends SCMSource> sourceClass) {
+            return true;
+        }
+
+        @Override
+        public String getCredentialsId(@Nonnull SCMSource source) {
+            if (getter == null) {
+                return null;
+            }
+            try {
+                return (String) getter.invokeExact(source);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                LOGGER.warn("Unable to get the credentials id of {}: {}", source, t.toString());
+                return null;
+            }
+        }
+    }
+}
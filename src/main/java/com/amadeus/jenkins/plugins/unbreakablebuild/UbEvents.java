@@ -0,0 +1,102 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.model.Run;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>
+ * Java Flight Recorder events of the phases of a notification, to correlate a slow unbreakable build with the GC
+ * pauses or the contention recorded at the same time.
+ * <p>
+ * The events are begun before the phase and committed after it. When no recording is running (or the event is
+ * disabled) the fields are not even filled: the check of {@link Event#shouldCommit()} is all they cost.
+ * Record them with {@code jcmd <pid> JFR.start settings=profile}, they are enabled by default.
+ */
+final class UbEvents {
+
+    private static final String PREFIX = "com.amadeus.jenkins.plugins.unbreakablebuild.";
+
+    private UbEvents() {
+    }
+
+    /**
+     * Fields of the run
+     */
+    @Category({"Jenkins", "Unbreakable Build"})
+    @StackTrace(false)
+    abstract static class RunEvent extends Event {
+        @Label("Run")
+        @Description("Externalizable id of the run")
+        String runId;
+
+        @Label("Isolation Zone")
+        String isolationZone;
+
+        /**
+         * Commits the event, with the fields of the run, if it is recorded
+         */
+        void commit(Run<?, ?> run) {
+            if (shouldCommit()) {
+                runId = run.getExternalizableId();
+                isolationZone = UbUtils.getIsolationZoneName(run.getParent().getFullName());
+                commit();
+            }
+        }
+    }
+
+    @Name(PREFIX + "UbCredentialResolution")
+    @Label("Credentials Resolution")
+    @Description("Lookup of the Bitbucket credentials of the run")
+    static final class CredentialResolution extends RunEvent {
+    }
+
+    @Name(PREFIX + "UbEnvCollection")
+    @Label("Environment Collection")
+    @Description("Collection of the environment of the run, and snapshot of its unbreakable build context")
+    static final class EnvCollection extends RunEvent {
+    }
+
+    @Name(PREFIX + "UbPayloadEncode")
+    @Label("Payload Encoding")
+    static final class PayloadEncode extends RunEvent {
+        @Label("Build Status")
+        String status;
+
+        @Label("Payload Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name(PREFIX + "UbHttpNotify")
+    @Label("Bitbucket Notification")
+    @Description("From the dispatch of the notification by the guard of its host to the answer of Bitbucket")
+    static final class HttpNotify extends RunEvent {
+        @Label("Bitbucket")
+        String host;
+
+        @Label("Status Code")
+        @Description("Http code of the answer, -1 if none")
+        int statusCode;
+
+        @Label("Payload Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name(PREFIX + "UbResultAnalysis")
+    @Label("Result Analysis")
+    @Description("Analysis of the answer of Bitbucket, and outcome of the run")
+    static final class ResultAnalysis extends RunEvent {
+        @Label("Build Status")
+        String status;
+
+        @Label("Status Code")
+        int statusCode;
+    }
+}
@@ -1,68 +1,191 @@
 package com.amadeus.jenkins.plugins.unbreakablebuild;
 
 import hudson.EnvVars;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
-import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 /**
  * <p>
  * This is the abstract execution class the ubFail and ubValidate inherit from
+ * <p>
+ * The execution is asynchronous: no thread is held while waiting for Bitbucket,
+ * the step is completed by the callback of the http call.
  */
-public abstract class UbExecution extends SynchronousStepExecution<Void> {
+public abstract class UbExecution extends StepExecution {
 
     private static final long serialVersionUID = 7038940543914178843L;
 
     private String actionName;
     private UbJenkinsEnvBean.Status status;
 
+    // kept across restarts, so that a resumed execution does not notify twice
+    private String notificationId;
+
+    private transient volatile CompletableFuture<Void> notification;
+    private transient volatile boolean stopped;
+
     protected UbExecution(@Nonnull StepContext context, String actionName, UbJenkinsEnvBean.Status status) {
         super(context);
         this.actionName = actionName;
         this.status = status;
+        this.notificationId = UUID.randomUUID().toString();
     }
 
     /**
-     * Meat of the execution.
-     * <p>
-     * When this method returns, a step execution is over.
+     * Start of the execution, the notification is sent in the background.
+     *
+     * @return false, the step is completed once Bitbucket answered
+     */
+    @Override
+    public boolean start() {
+        dispatch();
+        return false;
+    }
+
+    /**
+     * The in-flight http call does not survive a restart of Jenkins: the notification is replayed by the
+     * outbox, the execution waits for its outcome (or sends it again if it was not recorded yet).
+     */
+    @Override
+    public void onResume() {
+        dispatch();
+    }
+
+    /**
+     * The notification is withdrawn from the outbox (a request already sent cannot be recalled), and the run is
+     * released: the {@link UbBuildListener} notifies Bitbucket of its final result instead.
      */
     @Override
-    protected Void run() throws Exception {
-        StepContext context = getContext();
-        TaskListener taskListener = context.get(TaskListener.class);
-        PrintStream logger = null;
-        if (taskListener != null) {
-            logger = taskListener.getLogger();
+    public void stop(@Nonnull Throwable cause) throws Exception {
+        stopped = true;
+        CompletableFuture<Void> inFlight = notification;
+        if (inFlight != null) {
+            inFlight.cancel(true);
+        }
+        Run<?, ?> run = getContext().get(Run.class);
+        if (UbNotificationOutbox.get().withdraw(notificationId) && run != null) {
+            synchronized (run) {
+                UbAction claim = run.getAction(UbAction.class);
+                if (claim != null && claim.isClaimedBy(notificationId)) {
+                    UbAction.release(run, claim);
+                }
+            }
+        }
+        getContext().onFailure(cause);
+    }
+
+    @Override
+    public String getStatus() {
+        CompletableFuture<Void> inFlight = notification;
+        if (inFlight != null && !inFlight.isDone()) {
+            return "waiting for the answer of Bitbucket to " + actionName;
         }
+        return super.getStatus();
+    }
+
+    private void dispatch() {
+        // the credentials lookup and the environment collection are done outside of the CPS thread
+        CompletableFuture<Void> inFlight = CompletableFuture
+                .supplyAsync(this::notifyBitbucket, Computer.threadPoolForRemoting)
+                .thenCompose(Function.identity());
+        notification = inFlight;
+        inFlight.whenComplete((ignored, t) -> complete(t));
+    }
+
+    /**
+     * Meat of the execution.
+     *
+     * @return a future completed once Bitbucket answered
+     */
+    private CompletableFuture<Void> notifyBitbucket() {
+        try {
+            StepContext context = getContext();
+            TaskListener taskListener = context.get(TaskListener.class);
+            PrintStream logger = null;
+            if (taskListener != null) {
+                logger = taskListener.getLogger();
+            }
 
-        EnvVars envVars = context.get(EnvVars.class);
-        Run<?, ?> run = context.get(Run.class);
+            Run<?, ?> run = context.get(Run.class);
 
 
-        // it was said that the unbreakable build only works for multibranch pipelines
-        // here we are trying to be smart by getting the SCM and the creds related
-        UsernamePasswordCredentials usernamePasswordCredentials = UbUtils.getBitbucketCredentialsOrFail(run, logger);
+            // it was said that the unbreakable build only works for multibranch pipelines
+            // here we are trying to be smart by getting the SCM and the creds related
+            long start = System.nanoTime();
+            UsernamePasswordCredentials usernamePasswordCredentials =
+                    UbUtils.getBitbucketCredentialsOrFail(run, logger);
+            long credentialsNanos = System.nanoTime() - start;
 
-        // Register the ubAction in the run
-        // reason: so we know that an execution (ubValidate/ubFail) has been called
-        run.addAction(new UbAction());
+            // Register the ubAction in the run
+            // reason: so we know that an execution (ubValidate/ubFail) has been called
+            // (it is already there, and ours, when the execution is resumed)
+            UbAction claim;
+            synchronized (run) {
+                if (stopped) {
+                    // the run is not claimed by a stopped execution
+                    return CompletableFuture.completedFuture(null);
+                }
+                claim = UbAction.claim(run, actionName, notificationId);
+            }
+            if (!claim.isClaimedBy(notificationId)) {
+                // e.g. ubValidate and ubFail called by parallel branches, the first one wins
+                UbUtils.jenkinsLog(logger, String.format("%n Unbreakable build: %s already called by %s, "
+                        + "Bitbucket is not notified again%n", actionName, claim.getClaimedBy()));
+                return CompletableFuture.completedFuture(null);
+            }
+            claim.recordCredentials(credentialsNanos);
 
-        // core of the step
-        UbJenkinsEnvBean.collectEnvAndNotifyBitbucket(
-                actionName,
-                envVars,
-                logger,
-                status,
-                usernamePasswordCredentials,
-                run);
-        return null;
-    }
+            // the environment is only computed if the context of the run has not been taken yet
+            UbContextAction ubContext = run.getAction(UbContextAction.class);
+            if (ubContext == null) {
+                start = System.nanoTime();
+                UbEvents.EnvCollection event = new UbEvents.EnvCollection();
+                event.begin();
+                try {
+                    ubContext = UbJenkinsEnvBean.snapshot(run, context.get(EnvVars.class));
+                } finally {
+                    event.commit(run);
+                }
+                claim.recordEnvironment(System.nanoTime() - start);
+            }
 
+            // core of the step
+            return UbJenkinsEnvBean.collectEnvAndNotifyBitbucketAsync(
+                    actionName,
+                    notificationId,
+                    ubContext,
+                    logger,
+                    status,
+                    usernamePasswordCredentials,
+                    run);
+        } catch (IOException | InterruptedException e) {
+            throw new CompletionException(e);
+        }
+    }
 
+    private void complete(Throwable t) {
+        if (t == null) {
+            getContext().onSuccess(null);
+            return;
+        }
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof CancellationException) {
+            // stopped, the context has already been completed
+            return;
+        }
+        getContext().onFailure(cause);
+    }
 }
@@ -0,0 +1,184 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.scm.api.SCMRevisionAction;
+import org.jenkinsci.plugins.workflow.actions.ErrorAction;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepEndNode;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Notifies Bitbucket of the failure of an unbreakable build as soon as one of its stages fails, rather than once the
+ * run is completed: its post stages, the archiving of its reports and its cleanup no longer hold the merge requests
+ * queued behind it.
+ * <p>
+ * Opt-in, see {@link UbGlobalConfiguration#isFailFast()}: the error of a stage is deemed irrecoverable, a pipeline
+ * catching it to carry on successfully must not enable it. The run goes on, the notification claims it so that
+ * neither the verbs nor the {@link UbBuildListener} notify Bitbucket again.
+ * <p>
+ * The listener is synchronous: a run known to be an unbreakable build is claimed before its pipeline goes on, e.g.
+ * before the ubFail of its post stage. The environment, the credentials and the notification are dealt with by a
+ * worker of the {@link UbListenerExecutor}. They are never dealt with by the CPS VM thread: when the workers are
+ * saturated, the run is released and Bitbucket is notified once it completes.
+ */
+@Extension
+public class UbFailFastListener implements GraphListener.Synchronous {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbFailFastListener.class);
+
+    static final String LISTENER_NAME = "UbFailFastListener";
+
+    private static final String STAGE = "stage";
+
+    @Override
+    public void onNewHead(FlowNode node) {
+        // called for every node of every pipeline, the cheap checks first
+        if (!isFailedStage(node) || !UbGlobalConfiguration.isFailFastEnabled()) {
+            return;
+        }
+        FlowExecutionOwner owner = node.getExecution().getOwner();
+        Run<?, ?> run;
+        try {
+            Queue.Executable executable = owner.getExecutable();
+            if (!(executable instanceof Run)) {
+                return;
+            }
+            run = (Run<?, ?>) executable;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to find the run of {}: {}", owner, e.toString());
+            return;
+        }
+        if (Boolean.FALSE.equals(UbBranchJobProperty.isUnbreakable(run.getParent()))
+                || run.getAction(SCMRevisionAction.class) == null
+                || run.getAction(UbAction.class) != null) {
+            // not an unbreakable build, or Bitbucket has already been notified
+            return;
+        }
+        // known to be an unbreakable build: claimed right away
+        String notificationId = run.getAction(UbContextAction.class) != null
+                || UbBranchJobProperty.isKnownUnbreakable(run.getParent())
+                ? UUID.randomUUID().toString() : null;
+        UbAction claim = notificationId == null ? null : UbAction.claim(run, LISTENER_NAME, notificationId);
+        if (claim != null && !claim.isClaimedBy(notificationId)) {
+            return;
+        }
+        if (!UbListenerExecutor.get().offer(() -> notifyBitbucket(run, owner, notificationId))) {
+            LOGGER.warn("No worker left to notify Bitbucket of the failure of {}, it is notified once completed",
+                    run);
+            if (claim != null) {
+                UbAction.release(run, claim);
+            }
+        }
+    }
+
+    /**
+     * @return whether the node ends a stage which failed (an aborted run is notified once completed)
+     */
+    static boolean isFailedStage(FlowNode node) {
+        if (!(node instanceof StepEndNode)) {
+            return false;
+        }
+        StepDescriptor descriptor = ((StepEndNode) node).getDescriptor();
+        if (descriptor == null || !STAGE.equals(descriptor.getFunctionName())) {
+            return false;
+        }
+        ErrorAction error = node.getAction(ErrorAction.class);
+        if (error == null) {
+            return false;
+        }
+        Throwable cause = error.getError();
+        return !(cause instanceof FlowInterruptedException)
+                || Result.FAILURE.equals(((FlowInterruptedException) cause).getResult());
+    }
+
+    /**
+     * Runs on a worker of the {@link UbListenerExecutor}, the run goes on meanwhile
+     *
+     * @param claimedId the id of the notification which claimed the run, null if it is not claimed yet
+     */
+    private static void notifyBitbucket(Run<?, ?> run, FlowExecutionOwner owner, @CheckForNull String claimedId) {
+        try {
+            TaskListener listener = owner.getListener();
+            PrintStream jenkinsLogger = listener.getLogger();
+
+            // a snapshot of the context means an unbreakable build run
+            UbContextAction ubContext = run.getAction(UbContextAction.class);
+            EnvVars environment = null;
+            long environmentNanos = 0;
+            if (ubContext == null) {
+                long start = System.nanoTime();
+                UbEvents.EnvCollection event = new UbEvents.EnvCollection();
+                event.begin();
+                try {
+                    environment = run.getEnvironment(listener);
+                } finally {
+                    event.commit(run);
+                }
+                environmentNanos = System.nanoTime() - start;
+                if (!UbJenkinsEnvBean.isUnbreakableBuild(environment)) {
+                    // the completion of the run tags its job
+                    return;
+                }
+            }
+
+            String notificationId = claimedId != null ? claimedId : UUID.randomUUID().toString();
+            UbAction claim = UbAction.claim(run, LISTENER_NAME, notificationId);
+            if (!claim.isClaimedBy(notificationId)) {
+                // e.g. ubFail called by the post stage of the failed one
+                return;
+            }
+
+            long start = System.nanoTime();
+            org.apache.http.auth.UsernamePasswordCredentials credentials =
+                    UbUtils.getBitbucketCredentialsOrFail(run, jenkinsLogger);
+            claim.recordCredentials(System.nanoTime() - start);
+
+            UbUtils.jenkinsLog(jenkinsLogger, "\n Unbreakable build: a stage failed, Bitbucket is notified of the "
+                    + "failure without waiting for the end of the build\n");
+
+            if (ubContext == null) {
+                long snapshotStart = System.nanoTime();
+                ubContext = UbJenkinsEnvBean.snapshot(run, environment);
+                claim.recordEnvironment(environmentNanos + System.nanoTime() - snapshotStart);
+            }
+
+            UbJenkinsEnvBean.collectEnvAndSubmitNotification(UbFailStep.UB_ACTION_NAME, notificationId, ubContext,
+                    jenkinsLogger, UbJenkinsEnvBean.Status.FAILURE, credentials, run)
+                    .whenComplete((bbResult, t) -> {
+                        if (t != null) {
+                            UbUtils.jenkinsLog(jenkinsLogger, "\n Unbreakable build: unable to notify Bitbucket of "
+                                    + "the failure: " + t + "\n");
+                            return;
+                        }
+                        try {
+                            UbJenkinsEnvBean.endNotification(bbResult, UbJenkinsEnvBean.Status.FAILURE,
+                                    jenkinsLogger, run);
+                        } catch (RuntimeException e) {
+                            // the Failure marking the build as failed, there is no step to fail here
+                            UbUtils.jenkinsLog(jenkinsLogger, "\n " + e.getMessage() + "\n");
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            // e.g. the Failure of a missing credential, the result of the build has been set
+            LOGGER.warn("Unable to notify Bitbucket of the failure of {}: {}", run, e.toString());
+        }
+    }
+}
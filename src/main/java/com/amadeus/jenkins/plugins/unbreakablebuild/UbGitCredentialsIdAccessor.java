@@ -0,0 +1,25 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.Extension;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMSource;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>
+ * Credentials id of the git sources (and of the sources built on them), when the git plugin is installed
+ */
+@Extension(optional = true)
+public class UbGitCredentialsIdAccessor extends UbCredentialsIdAccessor {
+
+    @Override
+    public boolean isApplicable(@Nonnull Class<? extends SCMSource> sourceClass) {
+        return AbstractGitSCMSource.class.isAssignableFrom(sourceClass);
+    }
+
+    @Override
+    public String getCredentialsId(@Nonnull SCMSource source) {
+        return ((AbstractGitSCMSource) source).getCredentialsId();
+    }
+}
@@ -0,0 +1,166 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>
+ * Global configuration of the plugin: the http settings of the Bitbucket servers notified, the ref namespaces
+ * of their unbreakable builds, whether the failure of a stage is notified right away, and the priority of the
+ * unbreakable builds in the Jenkins queue.
+ * <p>
+ * The Bitbucket servers which are not listed get the default settings. A submitted form is saved once, and each
+ * setting is applied again only if it changed.
+ */
+@Extension
+@Symbol("unbreakableBuild")
+public class UbGlobalConfiguration extends GlobalConfiguration {
+
+    private List<UbBitbucketServer> servers = new ArrayList<>();
+
+    private boolean failFast;
+
+    private boolean queuePriority;
+
+    private String queueZoneBoosts;
+
+    public UbGlobalConfiguration() {
+        load();
+        configureRefNamespaces();
+    }
+
+    /**
+     * @return the configuration, null when Jenkins is not running (unit tests)
+     */
+    static UbGlobalConfiguration getOrNull() {
+        if (Jenkins.getInstanceOrNull() == null) {
+            return null;
+        }
+        return GlobalConfiguration.all().get(UbGlobalConfiguration.class);
+    }
+
+    /**
+     * @param bitbucketUrl the Bitbucket base URL, the SCM_URL of a run
+     * @return the settings of this Bitbucket, the default ones if it is not configured
+     */
+    @Nonnull
+    static UbBitbucketServer resolve(String bitbucketUrl) {
+        UbGlobalConfiguration configuration = getOrNull();
+        if (configuration != null) {
+            for (UbBitbucketServer server : configuration.getServers()) {
+                if (server.matches(bitbucketUrl)) {
+                    return server;
+                }
+            }
+        }
+        return new UbBitbucketServer(bitbucketUrl);
+    }
+
+    /**
+     * @return whether the {@link UbFailFastListener} notifies Bitbucket as soon as a stage fails
+     */
+    static boolean isFailFastEnabled() {
+        UbGlobalConfiguration configuration = getOrNull();
+        return configuration != null && configuration.isFailFast();
+    }
+
+    @Override
+    public synchronized boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        List<UbBitbucketServer> formerServers = servers;
+        boolean formerQueuePriority = queuePriority;
+        String formerQueueZoneBoosts = queueZoneBoosts;
+        // the setters save and apply nothing until the whole form is bound
+        try (BulkChange change = new BulkChange(this)) {
+            // no servers in the form once the last one is deleted, the setter is not even called
+            servers = new ArrayList<>();
+            req.bindJSON(this, json);
+            change.commit();
+        } catch (IOException e) {
+            throw new FormException("Unable to save the configuration: " + e.getMessage(), e, "servers");
+        }
+        if (!servers.equals(formerServers)) {
+            applyServers();
+        }
+        if (queuePriority != formerQueuePriority || !Objects.equals(queueZoneBoosts, formerQueueZoneBoosts)) {
+            UbQueueSorter.configure(queuePriority, queueZoneBoosts);
+        }
+        return true;
+    }
+
+    public List<UbBitbucketServer> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    @DataBoundSetter
+    public void setServers(List<UbBitbucketServer> servers) {
+        this.servers = servers == null ? new ArrayList<>() : new ArrayList<>(servers);
+        save();
+        if (!BulkChange.contains(this)) {
+            applyServers();
+        }
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @DataBoundSetter
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+        save();
+    }
+
+    public boolean isQueuePriority() {
+        return queuePriority;
+    }
+
+    @DataBoundSetter
+    public void setQueuePriority(boolean queuePriority) {
+        this.queuePriority = queuePriority;
+        save();
+        if (!BulkChange.contains(this)) {
+            UbQueueSorter.configure(queuePriority, queueZoneBoosts);
+        }
+    }
+
+    public String getQueueZoneBoosts() {
+        return queueZoneBoosts;
+    }
+
+    @DataBoundSetter
+    public void setQueueZoneBoosts(String queueZoneBoosts) {
+        this.queueZoneBoosts = queueZoneBoosts;
+        save();
+        if (!BulkChange.contains(this)) {
+            UbQueueSorter.configure(queuePriority, queueZoneBoosts);
+        }
+    }
+
+    private void applyServers() {
+        // the pools and the guards are sized from the configuration
+        UbHttpClients.invalidate();
+        UbHostGuard.reconfigure();
+        configureRefNamespaces();
+    }
+
+    private void configureRefNamespaces() {
+        List<String> namespaces = new ArrayList<>();
+        for (UbBitbucketServer server : servers) {
+            namespaces.addAll(server.getRefNamespaceList());
+        }
+        UbBranchPojo.configureNamespaces(namespaces);
+    }
+}
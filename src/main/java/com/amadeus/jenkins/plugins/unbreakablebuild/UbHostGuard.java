@@ -0,0 +1,352 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Resilience layer around the notifications sent to one Bitbucket host:
+ * <ul>
+ *     <li>a token bucket limits the rate of the requests (and is emptied when Bitbucket answers 429),</li>
+ *     <li>a circuit breaker stops calling Bitbucket after consecutive failures, and lets one probe through
+ *     once the circuit has been open for a while (half-open),</li>
+ *     <li>the number of requests in flight is bounded.</li>
+ * </ul>
+ * The notifications which cannot be sent right away are parked (no thread is held) and sent as soon as possible.
+ * <p>
+ * Each notification takes its own place among the requests in flight, even when batched, but the circuit breaker
+ * counts the failed http requests: the notifications of a failed bulk request are given the same result.
+ * <p>
+ * The bound of the requests in flight comes from the {@link UbGlobalConfiguration}, the other limits from system
+ * properties.
+ */
+public final class UbHostGuard {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbHostGuard.class);
+
+    private static final String PREFIX = UbHostGuard.class.getName();
+
+    static final int RATE_PER_SECOND = SystemProperties.getInteger(PREFIX + ".ratePerSecond", 20);
+
+    static final int BURST = SystemProperties.getInteger(PREFIX + ".burst", 20);
+
+    static final int FAILURE_THRESHOLD = SystemProperties.getInteger(PREFIX + ".failureThreshold", 5);
+
+    static final long OPEN_MILLIS = SystemProperties.getLong(PREFIX + ".openMillis", 30_000L);
+
+    static final int MAX_PARKED = SystemProperties.getInteger(PREFIX + ".maxParked", 10_000);
+
+    // waiting for a request in flight to complete, not for some time
+    private static final long WAIT_FOR_COMPLETION = -1;
+
+    private static final Map<String, UbHostGuard> GUARDS = new ConcurrentHashMap<>();
+
+    /**
+     * Circuit breaker state
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+    private final int ratePerSecond;
+    private final int burst;
+    private int maxInFlight;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int maxParked;
+    private final ScheduledExecutorService scheduler;
+    private final LongSupplier nanoClock;
+
+    private final Deque<Parked> parked = new ArrayDeque<>();
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntilNanos;
+    // the request probing Bitbucket while the circuit is half-open, null if none
+    private Parked probe;
+    private double tokens;
+    private long lastRefillNanos;
+    private int inFlight;
+    private ScheduledFuture<?> wakeUp;
+    // the failures counted, the notifications of a failed bulk request share the result of the request
+    private final Set<UbUtils.BitbucketQueryResult> countedFailures = Collections.newSetFromMap(new WeakHashMap<>());
+
+    UbHostGuard(String host, int ratePerSecond, int burst, int maxInFlight, int failureThreshold, long openMillis,
+                int maxParked, ScheduledExecutorService scheduler, LongSupplier nanoClock) {
+        this.host = host;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.maxInFlight = maxInFlight;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.maxParked = maxParked;
+        this.scheduler = scheduler;
+        this.nanoClock = nanoClock;
+        this.tokens = burst;
+        this.lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * @param bitbucketUrl the Bitbucket base URL
+     * @return the guard of this Bitbucket, created on first use
+     */
+    static UbHostGuard forBitbucket(String bitbucketUrl) {
+        return GUARDS.computeIfAbsent(UbHttpClients.normalize(bitbucketUrl), host -> new UbHostGuard(host,
+                RATE_PER_SECOND, BURST, UbGlobalConfiguration.resolve(host).getMaxInFlight(),
+                FAILURE_THRESHOLD, OPEN_MILLIS, MAX_PARKED,
+                Timer.get(), System::nanoTime));
+    }
+
+    /**
+     * Sends the notification through the guard of its Bitbucket
+     *
+     * @param notification the notification
+     * @param credentials  bitbucket credentials
+     * @return the future result, the future never completes exceptionally
+     */
+    static CompletableFuture<UbUtils.BitbucketQueryResult> send(
+            UbNotification notification, UsernamePasswordCredentials credentials) {
+        return forBitbucket(notification.getBitbucketUrl()).execute(() -> {
+            UbEvents.HttpNotify event = new UbEvents.HttpNotify();
+            event.begin();
+            return UbNotificationBatcher.get().send(notification, credentials).whenComplete((bbResult, t) -> {
+                if (event.shouldCommit()) {
+                    event.runId = notification.getRunId();
+                    event.isolationZone = notification.getIsolationZone();
+                    event.host = UbHttpClients.normalize(notification.getBitbucketUrl());
+                    event.statusCode = bbResult == null ? -1 : bbResult.getStatusCode();
+                    event.bytes = notification.getPayload().getBytes(StandardCharsets.UTF_8).length;
+                    event.commit();
+                }
+            });
+        });
+    }
+
+    /**
+     * Applies the new configuration to the existing guards
+     */
+    static void reconfigure() {
+        for (UbHostGuard guard : GUARDS.values()) {
+            int maxInFlight = UbGlobalConfiguration.resolve(guard.host).getMaxInFlight();
+            synchronized (guard) {
+                guard.maxInFlight = maxInFlight;
+            }
+            guard.drain();
+        }
+    }
+
+    /**
+     * @return all the guards, for display
+     */
+    static Collection<UbHostGuard> all() {
+        return Collections.unmodifiableCollection(GUARDS.values());
+    }
+
+    /**
+     * Sends the notification as soon as the guard allows it
+     *
+     * @param call sends the notification
+     * @return the future result, the future never completes exceptionally
+     */
+    CompletableFuture<UbUtils.BitbucketQueryResult> execute(
+            Supplier<CompletableFuture<UbUtils.BitbucketQueryResult>> call) {
+        Parked request = new Parked(call);
+        synchronized (this) {
+            if (parked.size() >= maxParked) {
+                // the outbox will try again later
+                request.result.complete(new UbUtils.BitbucketQueryResult(-1, "Too many notifications parked",
+                        new IOException("Too many notifications parked for " + host + ", circuit " + state)));
+                return request.result;
+            }
+            parked.addLast(request);
+        }
+        drain();
+        return request.result;
+    }
+
+    /**
+     * Sends all the parked notifications the guard allows
+     */
+    private void drain() {
+        List<Parked> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = nanoClock.getAsLong();
+            refill(now);
+            while (!parked.isEmpty()) {
+                long waitNanos = admit(now, parked.peekFirst());
+                if (waitNanos != 0) {
+                    if (waitNanos > 0) {
+                        scheduleWakeUp(waitNanos);
+                    }
+                    break;
+                }
+                ready.add(parked.pollFirst());
+            }
+        }
+        ready.forEach(this::sendParked);
+    }
+
+    /**
+     * @param request the next request
+     * @return 0 if the request can be sent (and accounts for it), otherwise how long to wait for, in nanoseconds,
+     * or {@link #WAIT_FOR_COMPLETION}
+     */
+    private long admit(long now, Parked request) {
+        if (state == State.OPEN) {
+            if (now - openUntilNanos < 0) {
+                return openUntilNanos - now;
+            }
+            LOGGER.info("Circuit of {} half-open, probing", host);
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && probe != null) {
+            return WAIT_FOR_COMPLETION;
+        }
+        if (inFlight >= maxInFlight) {
+            return WAIT_FOR_COMPLETION;
+        }
+        if (tokens < 1) {
+            return (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / ratePerSecond) + 1;
+        }
+        tokens -= 1;
+        inFlight++;
+        if (state == State.HALF_OPEN) {
+            probe = request;
+        }
+        return 0;
+    }
+
+    private void refill(long now) {
+        double refilled = tokens + (now - lastRefillNanos) * ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(burst, refilled);
+        lastRefillNanos = now;
+    }
+
+    private void scheduleWakeUp(long waitNanos) {
+        if (wakeUp != null && !wakeUp.isDone() && wakeUp.getDelay(TimeUnit.NANOSECONDS) <= waitNanos) {
+            return;
+        }
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
+        }
+        wakeUp = scheduler.schedule(this::drain, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void sendParked(Parked request) {
+        CompletableFuture<UbUtils.BitbucketQueryResult> sent;
+        try {
+            sent = request.call.get();
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.completedFuture(new UbUtils.BitbucketQueryResult(-1, e.toString(), e));
+        }
+        sent.whenComplete((bbResult, t) -> {
+            UbUtils.BitbucketQueryResult outcome = bbResult;
+            if (t != null) {
+                Exception exception =
+                        t instanceof Exception ? (Exception) t : new UbTechnicalException(t.getMessage(), t);
+                outcome = new UbUtils.BitbucketQueryResult(-1, t.toString(), exception);
+            }
+            record(request, outcome);
+            request.result.complete(outcome);
+            drain();
+        });
+    }
+
+    private synchronized void record(Parked request, UbUtils.BitbucketQueryResult bbResult) {
+        inFlight--;
+        if (request == probe) {
+            // a request sent before the circuit opened does not end the probe
+            probe = null;
+        }
+        int statusCode = bbResult.getStatusCode();
+        if (statusCode == 429) {
+            // bitbucket asks us to slow down
+            tokens = 0;
+        }
+        if (!isHostFailure(bbResult)) {
+            if (state != State.CLOSED) {
+                LOGGER.info("Circuit of {} closed", host);
+            }
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+            return;
+        }
+        if (!countedFailures.add(bbResult)) {
+            // one http request failed, whatever the number of notifications it carried
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            LOGGER.warn("Circuit of {} opened after {} consecutive failures", host, consecutiveFailures);
+            state = State.OPEN;
+            openUntilNanos = nanoClock.getAsLong() + openNanos;
+        }
+    }
+
+    /**
+     * @return whether the result shows that Bitbucket is unavailable (and not that the request is wrong)
+     */
+    static boolean isHostFailure(UbUtils.BitbucketQueryResult bbResult) {
+        int statusCode = bbResult.getStatusCode();
+        Exception exception = bbResult.getException();
+        return statusCode >= 500 || (statusCode == -1 && exception instanceof IOException
+                && !(exception instanceof MalformedURLException));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getParked() {
+        return parked.size();
+    }
+
+    public synchronized int getAvailableTokens() {
+        refill(nanoClock.getAsLong());
+        return (int) tokens;
+    }
+
+    private static final class Parked {
+        private final Supplier<CompletableFuture<UbUtils.BitbucketQueryResult>> call;
+        private final CompletableFuture<UbUtils.BitbucketQueryResult> result = new CompletableFuture<>();
+
+        private Parked(Supplier<CompletableFuture<UbUtils.BitbucketQueryResult>> call) {
+            this.call = call;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.init.Terminator;
+import jenkins.util.Timer;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.CloseableHttpPipeliningClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Plugin wide registry of the http clients used to notify Bitbucket.
+ * <p>
+ * One pooled client is kept per Bitbucket base URL (the SCM_URL of the run), so that
+ * the TCP/TLS connections are reused from one notification to the other.
+ * <p>
+ * The clients are non blocking: the notifications are sent without holding any thread while waiting for Bitbucket.
+ * The apache clients are used by the {@link UbApacheTransport}, the JDK ones by the {@link UbJavaHttpTransport}.
+ * <p>
+ * The pools are sized from the {@link UbGlobalConfiguration}, and created again when it changes.
+ */
+public final class UbHttpClients {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbHttpClients.class);
+
+    static final long IDLE_EVICTION_SECONDS = 30;
+
+    // the requests still running on an invalidated client have this long to complete before it is closed
+    private static final long RETIRE_DELAY_SECONDS = 5 * 60L;
+
+    private static final Map<String, AsyncClient> ASYNC_CLIENTS = new ConcurrentHashMap<>();
+
+    private static final Map<String, AsyncClient> PIPELINING_CLIENTS = new ConcurrentHashMap<>();
+
+    private static final Map<String, HttpClient> JAVA_CLIENTS = new ConcurrentHashMap<>();
+
+    // the non blocking pools have no eviction thread of their own
+    private static ScheduledFuture<?> asyncEviction;
+
+    private UbHttpClients() {
+        // to prevent init
+    }
+
+    /**
+     * @param bitbucketUrl the Bitbucket base URL, something like https://bitbucket.example.org
+     * @return the shared, already started, non blocking http client for this Bitbucket, created on first use
+     */
+    static CloseableHttpAsyncClient asyncForBitbucket(String bitbucketUrl) {
+        return ASYNC_CLIENTS.computeIfAbsent(normalize(bitbucketUrl), UbHttpClients::newAsyncClient).client;
+    }
+
+    /**
+     * @param bitbucketUrl the Bitbucket base URL, something like https://bitbucket.example.org
+     * @return the shared, already started, http client pipelining the requests on its connections
+     */
+    static CloseableHttpPipeliningClient pipeliningForBitbucket(String bitbucketUrl) {
+        return (CloseableHttpPipeliningClient) PIPELINING_CLIENTS
+                .computeIfAbsent(normalize(bitbucketUrl), UbHttpClients::newPipeliningClient).client;
+    }
+
+    /**
+     * @param bitbucketUrl the Bitbucket base URL, something like https://bitbucket.example.org
+     * @return the shared JDK http client for this Bitbucket (HTTP/2 when possible), created on first use
+     */
+    static HttpClient javaForBitbucket(String bitbucketUrl) {
+        return JAVA_CLIENTS.computeIfAbsent(normalize(bitbucketUrl), UbHttpClients::newJavaClient);
+    }
+
+    /**
+     * Closes all the clients, and their connection pools.
+     * Called by Jenkins when the plugin is stopped.
+     */
+    @Terminator
+    public static void shutdown() {
+        synchronized (UbHttpClients.class) {
+            if (asyncEviction != null) {
+                asyncEviction.cancel(false);
+                asyncEviction = null;
+            }
+        }
+        close(ASYNC_CLIENTS);
+        close(PIPELINING_CLIENTS);
+        // the JDK clients release their connections once unreachable
+        JAVA_CLIENTS.clear();
+    }
+
+    /**
+     * Forgets the current clients, so that the next notifications use clients built from the new configuration.
+     * The current clients are closed a bit later, once their requests are done.
+     */
+    static void invalidate() {
+        Map<String, AsyncClient> retired = new HashMap<>();
+        retire(ASYNC_CLIENTS, retired, "");
+        retire(PIPELINING_CLIENTS, retired, "pipelining ");
+        JAVA_CLIENTS.clear();
+        if (!retired.isEmpty()) {
+            Timer.get().schedule(() -> close(retired), RETIRE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void retire(Map<String, AsyncClient> clients, Map<String, AsyncClient> retired, String prefix) {
+        for (String key : clients.keySet()) {
+            AsyncClient asyncClient = clients.remove(key);
+            if (asyncClient != null) {
+                retired.put(prefix + key, asyncClient);
+            }
+        }
+    }
+
+    private static void close(Map<String, AsyncClient> clients) {
+        for (String key : clients.keySet()) {
+            AsyncClient asyncClient = clients.remove(key);
+            if (asyncClient != null) {
+                try {
+                    asyncClient.client.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Issue while closing the async http client of {}", key, e);
+                }
+            }
+        }
+    }
+
+    static String normalize(String bitbucketUrl) {
+        String key = bitbucketUrl == null ? "" : bitbucketUrl.trim();
+        while (key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return key;
+    }
+
+    private static AsyncClient newAsyncClient(String bitbucketUrl) {
+        LOGGER.debug("Creating the pooled async http client for {}", bitbucketUrl);
+        PoolingNHttpClientConnectionManager connectionManager = newConnectionManager(bitbucketUrl);
+        UbBitbucketServer server = UbGlobalConfiguration.resolve(bitbucketUrl);
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy(TimeUnit.SECONDS.toMillis(server.getKeepAliveSeconds())))
+                .build();
+        client.start();
+        scheduleAsyncEviction();
+        return new AsyncClient(client, connectionManager);
+    }
+
+    private static AsyncClient newPipeliningClient(String bitbucketUrl) {
+        LOGGER.debug("Creating the pooled pipelining http client for {}", bitbucketUrl);
+        PoolingNHttpClientConnectionManager connectionManager = newConnectionManager(bitbucketUrl);
+        CloseableHttpPipeliningClient client = HttpAsyncClients.createPipelining(connectionManager);
+        client.start();
+        scheduleAsyncEviction();
+        return new AsyncClient(client, connectionManager);
+    }
+
+    private static HttpClient newJavaClient(String bitbucketUrl) {
+        LOGGER.debug("Creating the JDK http client for {}", bitbucketUrl);
+        UbBitbucketServer server = UbGlobalConfiguration.resolve(bitbucketUrl);
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(server.getConnectTimeoutSeconds()))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    private static PoolingNHttpClientConnectionManager newConnectionManager(String bitbucketUrl) {
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        } catch (IOReactorException e) {
+            throw new UbTechnicalException("Unable to create the async http client for " + bitbucketUrl, e);
+        }
+        // we only talk to one host, so the route limit is the pool limit
+        int maxConnections = UbGlobalConfiguration.resolve(bitbucketUrl).getMaxConnections();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        return connectionManager;
+    }
+
+    private static synchronized void scheduleAsyncEviction() {
+        if (asyncEviction == null) {
+            asyncEviction = Timer.get().scheduleWithFixedDelay(() -> {
+                Stream.concat(ASYNC_CLIENTS.values().stream(), PIPELINING_CLIENTS.values().stream())
+                        .forEach(asyncClient -> {
+                            asyncClient.connectionManager.closeExpiredConnections();
+                            asyncClient.connectionManager.closeIdleConnections(
+                                    IDLE_EVICTION_SECONDS, TimeUnit.SECONDS);
+                        });
+            }, IDLE_EVICTION_SECONDS, IDLE_EVICTION_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static final class AsyncClient {
+        private final CloseableHttpAsyncClient client;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+
+        private AsyncClient(CloseableHttpAsyncClient client, PoolingNHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    /**
+     * Honours the 'Keep-Alive: timeout=x' header of the server, and falls back to the given duration otherwise
+     * (the default apache strategy keeps the connections forever).
+     */
+    static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultMillis) {
+        return (HttpResponse response, org.apache.http.protocol.HttpContext context) -> {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, defaultMillis);
+                    } catch (NumberFormatException e) {
+                        // ignored, we use the default
+                    }
+                }
+            }
+            return defaultMillis;
+        };
+    }
+}
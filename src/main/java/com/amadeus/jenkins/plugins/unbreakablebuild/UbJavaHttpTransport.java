@@ -0,0 +1,218 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Transport through the {@link HttpClient} of the JDK, which speaks HTTP/2 when Bitbucket (or its reverse proxy)
+ * does: the concurrent notifications are multiplexed over one connection.
+ * <p>
+ * The request timeout of the server bounds the whole exchange, there is no socket timeout with this client.
+ */
+final class UbJavaHttpTransport implements UbTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbJavaHttpTransport.class);
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    @Override
+    public <T> CompletableFuture<T> post(UbBitbucketServer server, String url, String payload,
+                                         UsernamePasswordCredentials credentials, String idempotencyKey,
+                                         Function<HttpResponse, T> responseReader,
+                                         Function<Exception, T> errorReader) {
+        HttpRequest request;
+        try {
+            request = newBitbucketPost(server, url, payload, credentials, idempotencyKey);
+        } catch (MalformedURLException e) {
+            return CompletableFuture.completedFuture(errorReader.apply(e));
+        }
+        // the client is shared, and has nothing to close anyway
+        HttpClient client = UbHttpClients.javaForBitbucket(server.getServerUrl());
+        CompletableFuture<java.net.http.HttpResponse<byte[]>> sent = client.sendAsync(request, responseInfo ->
+                new BoundedBodySubscriber(UbBoundedResponseConsumer.isJson(contentType(responseInfo.headers())),
+                        UbBoundedResponseConsumer.MAX_BODY_BYTES, UbBoundedResponseConsumer.MAX_DRAINED_BYTES));
+        CompletableFuture<T> result = sent.handle((response, t) -> {
+            if (t != null) {
+                Exception e = unwrap(t);
+                LOGGER.error("Issue while notifying Bitbucket", e);
+                return errorReader.apply(e);
+            }
+            return responseReader.apply(toHttpResponse(response));
+        });
+        // the caller gave up (e.g. the step was stopped), no need to wait for bitbucket
+        result.whenComplete((ignored, t) -> {
+            if (result.isCancelled()) {
+                sent.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public <T> CompletableFuture<List<T>> postAll(UbBitbucketServer server, List<String> urls, List<String> payloads,
+                                                  UsernamePasswordCredentials credentials,
+                                                  List<String> idempotencyKeys,
+                                                  Function<HttpResponse, T> responseReader,
+                                                  Function<Exception, T> errorReader) {
+        // sent concurrently, HTTP/2 multiplexes them over one connection
+        List<CompletableFuture<T>> sent = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            sent.add(post(server, urls.get(i), payloads.get(i), credentials, idempotencyKeys.get(i),
+                    responseReader, errorReader));
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<T> results = new ArrayList<>(sent.size());
+            for (CompletableFuture<T> one : sent) {
+                results.add(one.join());
+            }
+            return results;
+        });
+    }
+
+    private static HttpRequest newBitbucketPost(UbBitbucketServer server, String url, String payload,
+                                                UsernamePasswordCredentials credentials, String idempotencyKey)
+            throws MalformedURLException {
+        URI uri;
+        try {
+            // same validation (and messages) as the apache transport
+            uri = new URL(url).toURI();
+        } catch (URISyntaxException e) {
+            throw (MalformedURLException) new MalformedURLException(e.getMessage()).initCause(e);
+        }
+        String basic = credentials.getUserName() + ':' + credentials.getPassword();
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(server.getRequestTimeoutSeconds()))
+                    .header("Content-type", "application/json")
+                    // preemptive auth, like the apache transport
+                    .header("Authorization",
+                            "Basic " + Base64.getEncoder().encodeToString(basic.getBytes(StandardCharsets.UTF_8)));
+            if (idempotencyKey != null) {
+                builder.header(UbUtils.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+            }
+            return builder.POST(HttpRequest.BodyPublishers.ofString(payload, StandardCharsets.UTF_8)).build();
+        } catch (IllegalArgumentException e) {
+            // e.g. a scheme which is not http(s)
+            throw (MalformedURLException) new MalformedURLException(e.getMessage()).initCause(e);
+        }
+    }
+
+    private static ContentType contentType(java.net.http.HttpHeaders headers) {
+        try {
+            return headers.firstValue("Content-Type").map(ContentType::parse).orElse(null);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the response as the readers expect it
+     */
+    static HttpResponse toHttpResponse(java.net.http.HttpResponse<byte[]> response) {
+        ProtocolVersion version = response.version() == HttpClient.Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1;
+        BasicHttpResponse httpResponse =
+                new BasicHttpResponse(new BasicStatusLine(version, response.statusCode(), null));
+        response.headers().map()
+                .forEach((name, values) -> values.forEach(value -> httpResponse.addHeader(name, value)));
+        ByteArrayEntity entity = new ByteArrayEntity(response.body());
+        response.headers().firstValue("Content-Type").ifPresent(entity::setContentType);
+        httpResponse.setEntity(entity);
+        return httpResponse;
+    }
+
+    private static Exception unwrap(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        return cause instanceof Exception ? (Exception) cause : new UbTechnicalException(cause.getMessage(), cause);
+    }
+
+    /**
+     * Keeps the first bytes of a json body, reads and drops the rest up to a limit, and cancels the stream past it,
+     * like the {@link UbBoundedResponseConsumer} of the apache transport.
+     */
+    static final class BoundedBodySubscriber implements java.net.http.HttpResponse.BodySubscriber<byte[]> {
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+        private final boolean keepBody;
+        private final int maxBodyBytes;
+        private final long maxDrainedBytes;
+        private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        private Flow.Subscription subscription;
+        private long drained;
+
+        BoundedBodySubscriber(boolean keepBody, int maxBodyBytes, long maxDrainedBytes) {
+            this.keepBody = keepBody;
+            this.maxBodyBytes = maxBodyBytes;
+            this.maxDrainedBytes = maxDrainedBytes;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription newSubscription) {
+            this.subscription = newSubscription;
+            newSubscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (body.isDone()) {
+                return;
+            }
+            for (ByteBuffer buffer : buffers) {
+                int remaining = buffer.remaining();
+                int keep = keepBody ? Math.min(remaining, maxBodyBytes - kept.size()) : 0;
+                if (keep > 0) {
+                    byte[] bytes = new byte[keep];
+                    buffer.get(bytes);
+                    kept.write(bytes, 0, keep);
+                }
+                drained += remaining - keep;
+            }
+            if (drained > maxDrainedBytes) {
+                LOGGER.warn("Response of Bitbucket bigger than {} bytes, cancelling it", maxDrainedBytes);
+                subscription.cancel();
+                body.complete(kept.toByteArray());
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(kept.toByteArray());
+        }
+    }
+}
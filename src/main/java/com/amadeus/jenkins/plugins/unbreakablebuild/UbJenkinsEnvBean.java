@@ -9,8 +9,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 
@@ -98,10 +102,51 @@ public class UbJenkinsEnvBean {
         isolationZone = UbUtils.getIsolationZoneName(envVars.get(EnvVarName.JOB_NAME.toString()));
     }
 
+    /**
+     * @param context the snapshot of the context of the run
+     */
+    UbJenkinsEnvBean(UbContextAction context) {
+        bitbucketUrl = context.getBitbucketUrl();
+        projectKey = context.getProjectKey();
+        repositorySlug = context.getRepositorySlug();
+        refSpec = context.getRefSpec();
+        commitId = context.getCommitId();
+        jobUrl = context.getJobUrl();
+        isolationZone = context.getIsolationZone();
+    }
+
+    /**
+     * Takes the snapshot of the unbreakable build context of the run, if not taken yet.
+     * <p>
+     * If one of the env variable is missing, it will fail with a @{hudson.model.Failure}
+     *
+     * @param run     the run
+     * @param envVars the environment variables available in the Run
+     * @return the snapshot saved with the run
+     */
+    static UbContextAction snapshot(Run<?, ?> run, EnvVars envVars) {
+        synchronized (run) {
+            UbContextAction context = run.getAction(UbContextAction.class);
+            if (context == null) {
+                UbJenkinsEnvBean bean = new UbJenkinsEnvBean(envVars, run);
+                context = new UbContextAction(bean.bitbucketUrl, bean.projectKey, bean.repositorySlug, bean.refSpec,
+                        bean.commitId, bean.jobUrl, bean.isolationZone);
+                run.addAction(context);
+                // the next runs of the job will be known as unbreakable builds
+                UbBranchJobProperty.tag(run.getParent(), true);
+            }
+            return context;
+        }
+    }
+
 
     /**
      * This method will contact bitbucket to notify whether it should merge or
      * mark the build result as failed
+     * <p>
+     * It blocks until Bitbucket answered, retries included: it is the entry point of the tests and of the
+     * benchmarks only, the verbs and the listeners use {@link #notifyBitbucketAsync} or
+     * {@link #collectEnvAndSubmitNotification}.
      *
      * @param status      SUCCEED or FAILURE
      * @param logger      the Jenkins logger to print in the jenkins console
@@ -115,6 +160,68 @@ public class UbJenkinsEnvBean {
                          Run<?, ?> run)
             throws AbortException {
 
+        UbNotification notification = prepareNotification(UUID.randomUUID().toString(), status, logger, run);
+
+        // query Bitbucket, through the outbox which retries the transient failures
+        UbUtils.BitbucketQueryResult bbResult;
+        try {
+            bbResult = submit(notification, credentials, logger, run).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortException("Interrupted while waiting for the answer of Bitbucket");
+        } catch (ExecutionException e) {
+            // cannot happen, the outbox holds the exceptions in the result
+            throw new UbTechnicalException("Occurred while notifying Bitbucket (unbreakableBuild)", e);
+        }
+
+        endNotification(bbResult, status, logger, run);
+    }
+
+    /**
+     * Same as {@link #notifyBitbucket(Status, PrintStream, org.apache.http.auth.UsernamePasswordCredentials, Run)}
+     * but the http call to bitbucket does not block the calling thread.
+     *
+     * @param notificationId id of the notification, notifying again with the same id does not send it twice
+     * @return a future completed once bitbucket answered, completed exceptionally (with a
+     * {@link Failure}) if the build is failed
+     * @throws AbortException Will be thrown if the branchName of the UbJenkinsEnvBean is not
+     *                        matching the convention
+     */
+    CompletableFuture<Void> notifyBitbucketAsync(String notificationId,
+                                                 Status status,
+                                                 PrintStream logger,
+                                                 org.apache.http.auth.UsernamePasswordCredentials credentials,
+                                                 Run<?, ?> run)
+            throws AbortException {
+
+        UbNotification notification = prepareNotification(notificationId, status, logger, run);
+
+        // query Bitbucket, through the outbox which retries the transient failures
+        return submit(notification, credentials, logger, run)
+                .thenAccept(bbResult -> endNotification(bbResult, status, logger, run));
+    }
+
+    /**
+     * Submits the notification to the outbox, and records the answer of Bitbucket in the claim of the run
+     */
+    private static CompletableFuture<UbUtils.BitbucketQueryResult> submit(
+            UbNotification notification, org.apache.http.auth.UsernamePasswordCredentials credentials,
+            PrintStream logger, Run<?, ?> run) {
+        long start = System.nanoTime();
+        UbNotificationOutbox outbox = UbNotificationOutbox.get();
+        return outbox.submit(notification, credentials, logger).whenComplete((bbResult, t) -> {
+            UbAction claim = run.getAction(UbAction.class);
+            if (bbResult != null && claim != null && claim.isClaimedBy(notification.getId())) {
+                claim.recordNotification(System.nanoTime() - start, outbox.getAttempts(notification), bbResult);
+            }
+        });
+    }
+
+    /**
+     * @return the notification to send to bitbucket
+     */
+    private UbNotification prepareNotification(String notificationId, Status status, PrintStream logger,
+                                               Run<?, ?> run) throws AbortException {
         UbUtils.jenkinsLog(logger, "\n ----- UNBREAKABLE BUILD VERB CALLED ----- \n");
 
         UbBranchPojo ubPojo = UbBranchPojo.fromUbBranchName(refSpec);
@@ -131,20 +238,54 @@ public class UbJenkinsEnvBean {
 
         UbUtils.jenkinsLog(logger, "calling URL: " + url);
 
-        // build payload
-        String payload = UbUtils.generateBitbucketPayload(jobUrl, isolationZone, mergeRequestId, status.name());
+        // build payload, the key lets bitbucket recognize the duplicates of this outcome
+        String runId = run.getExternalizableId();
+        String idempotencyKey = UbUtils.generateIdempotencyKey(runId, commitId, status.name());
+        UbEvents.PayloadEncode event = new UbEvents.PayloadEncode();
+        event.begin();
+        String payload = UbUtils.generateBitbucketPayload(
+                jobUrl, isolationZone, mergeRequestId, status.name(), idempotencyKey);
+        if (event.shouldCommit()) {
+            event.status = status.name();
+            event.bytes = payload.getBytes(StandardCharsets.UTF_8).length;
+            event.commit(run);
+        }
         UbUtils.jenkinsLog(logger, "With Payload: \n" + payload);
+        // ranks the notification among the ones of the merge request, a late one never overtakes a later one
+        long sequence = UbStripedDispatcher.get()
+                .nextSequence(bitbucketUrl, projectKey, repositorySlug, mergeRequestId);
+        return new UbNotification(notificationId, bitbucketUrl, url, payload,
+                new UbNotification.Commit(projectKey, repositorySlug, commitId),
+                runId, System.currentTimeMillis(), idempotencyKey, mergeRequestId, sequence);
+    }
 
-        // query Bitbucket
-        UbUtils.BitbucketQueryResult bbResult = UbUtils.sendBitbucketNotification(url, payload, credentials);
-
-        // analyze the results --> will throw Failure if not OK
-        analyseBbQueryResult(bbResult, status, logger, run);
-
-        // finally manage the failure of the build
-        if (Status.FAILURE.equals(status)) {
-            run.setResult(Result.FAILURE);
-            throw new Failure("Unbreakable build marks the build as failed");
+    static void endNotification(
+            UbUtils.BitbucketQueryResult bbResult, Status status, PrintStream logger, Run<?, ?> run) {
+        UbEvents.ResultAnalysis event = new UbEvents.ResultAnalysis();
+        event.begin();
+        try {
+            if (bbResult.isSuperseded()) {
+                // not an error of Bitbucket, a later notification of the merge request was sent instead
+                LOGGER.info("Notification of {} not sent: {}", run, bbResult.getMessage());
+                UbUtils.jenkinsLog(logger, String.format(
+                        "Notification of UB buildStatus: '%s' not sent to bitbucket: %s",
+                        status, bbResult.getMessage()));
+            } else {
+                // analyze the results --> will throw Failure if not OK
+                analyseBbQueryResult(bbResult, status, logger, run);
+            }
+
+            // finally manage the failure of the build
+            if (Status.FAILURE.equals(status)) {
+                run.setResult(Result.FAILURE);
+                throw new Failure("Unbreakable build marks the build as failed");
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.status = status.name();
+                event.statusCode = bbResult.getStatusCode();
+                event.commit(run);
+            }
         }
     }
 
@@ -201,28 +342,54 @@ public class UbJenkinsEnvBean {
     }
 
     /**
-     * Core function of the unbreakable build.
+     * Core function of the unbreakable build, for the build listener: the outcome of the notification is left
+     * to the caller, see {@link #endNotification}, so that it is handled while the run can still be changed.
+     *
+     * @param actionName     ubValidate, or ubFail (only logging purposes)
+     * @param notificationId id of the notification
+     * @param context        the unbreakable build context of the run, see {@link #snapshot(Run, EnvVars)}
+     * @param logger         jenkins logger (provided during the run)
+     * @param status         either passed or failed
+     * @param credentials    the credentialsId to use ?
+     * @param run            the run
+     * @return the future result of the notification, the future never completes exceptionally
+     * @throws AbortException Will be thrown if the branchName of the UbJenkinsEnvBean is not
+     *                        matching the convention
+     */
+    static CompletableFuture<UbUtils.BitbucketQueryResult> collectEnvAndSubmitNotification(
+            String actionName,
+            String notificationId,
+            UbContextAction context,
+            PrintStream logger,
+            UbJenkinsEnvBean.Status status,
+            org.apache.http.auth.UsernamePasswordCredentials credentials,
+            Run<?, ?> run) throws AbortException {
+        LOGGER.info("{} - Notifying bitbucket", actionName);
+
+        UbJenkinsEnvBean ubJenkinsEnvBean = new UbJenkinsEnvBean(context);
+        UbNotification notification = ubJenkinsEnvBean.prepareNotification(notificationId, status, logger, run);
+        return submit(notification, credentials, logger, run)
+                .whenComplete((ignored, t) -> LOGGER.info("{} - execution finished", actionName));
+    }
+
+    /**
+     * Same as {@link #collectEnvAndSubmitNotification}, the outcome being handled by {@link #endNotification}.
      *
-     * @param actionName  ubValidate, or ubFail (only logging purposes)
-     * @param envVars     environment variables provided by jenkins during the run
-     * @param logger      jenkins logger (provided during the run)
-     * @param status      either passed or failed
-     * @param credentials the credentialsId to use ?
-     * @param run
-     * @throws AbortException
+     * @return a future completed once bitbucket answered, completed exceptionally if the build is failed
      */
-    static void collectEnvAndNotifyBitbucket(String actionName,
-                                             EnvVars envVars,
-                                             PrintStream logger,
-                                             UbJenkinsEnvBean.Status status,
-                                             org.apache.http.auth.UsernamePasswordCredentials credentials,
-                                             Run<?, ?> run) throws AbortException {
-        LOGGER.info("{} - Collecting environment variables", actionName);
-
-        UbJenkinsEnvBean ubJenkinsEnvBean = new UbJenkinsEnvBean(envVars, run);
-        ubJenkinsEnvBean.notifyBitbucket(status, logger, credentials, run);
-
-        LOGGER.info("{} - execution finished", actionName);
+    static CompletableFuture<Void> collectEnvAndNotifyBitbucketAsync(
+            String actionName,
+            String notificationId,
+            UbContextAction context,
+            PrintStream logger,
+            UbJenkinsEnvBean.Status status,
+            org.apache.http.auth.UsernamePasswordCredentials credentials,
+            Run<?, ?> run) throws AbortException {
+        LOGGER.info("{} - Notifying bitbucket", actionName);
+
+        UbJenkinsEnvBean ubJenkinsEnvBean = new UbJenkinsEnvBean(context);
+        return ubJenkinsEnvBean.notifyBitbucketAsync(notificationId, status, logger, credentials, run)
+                .whenComplete((ignored, t) -> LOGGER.info("{} - execution finished", actionName));
     }
 
     /**
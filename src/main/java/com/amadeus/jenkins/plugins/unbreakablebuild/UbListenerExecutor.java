@@ -0,0 +1,182 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>
+ * Workers of the {@link UbBuildListener}: the environment of the run, the credentials and the notification of
+ * Bitbucket are dealt with out of the thread finalizing the build, which waits for them at most a timeout. The
+ * {@link UbFailFastListener} does not wait for them at all.
+ * <p>
+ * The queue is bounded, when it is full the thread finalizing the build does the work itself (and so slows down
+ * the builds completing). The work offered by the other threads, e.g. the CPS VM thread of a pipeline, is dropped
+ * instead. The pending work is drained, for a while, when Jenkins stops.
+ */
+public final class UbListenerExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbListenerExecutor.class);
+
+    private static final String PREFIX = UbListenerExecutor.class.getName();
+
+    static final int THREADS = SystemProperties.getInteger(PREFIX + ".threads", 4);
+
+    static final int QUEUE_SIZE = SystemProperties.getInteger(PREFIX + ".queueSize", 100);
+
+    // the thread finalizing a build is held for as long, the build is failed past it
+    static final long TIMEOUT_SECONDS = SystemProperties.getLong(PREFIX + ".timeoutSeconds", 30L);
+
+    static final long DRAIN_SECONDS = SystemProperties.getLong(PREFIX + ".drainSeconds", 30L);
+
+    private static final RejectedExecutionHandler CALLER_RUNS = new ThreadPoolExecutor.CallerRunsPolicy();
+
+    private static UbListenerExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private volatile long timeoutSeconds;
+
+    /**
+     * @param threads        number of workers
+     * @param queueSize      number of tasks waiting for a worker, beyond that the caller runs the task
+     * @param timeoutSeconds how long the caller waits for a task and its outcome
+     */
+    UbListenerExecutor(int threads, int queueSize, long timeoutSeconds) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new NamingThreadFactory(new DaemonThreadFactory(), UbBuildListener.class.getSimpleName()),
+                UbListenerExecutor::rejected);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    static synchronized UbListenerExecutor get() {
+        if (instance == null) {
+            instance = new UbListenerExecutor(THREADS, QUEUE_SIZE, TIMEOUT_SECONDS);
+        }
+        return instance;
+    }
+
+    /**
+     * Lets the workers finish their tasks, for a while, when Jenkins stops
+     */
+    @Terminator
+    public static void shutdown() throws InterruptedException {
+        UbListenerExecutor executor;
+        synchronized (UbListenerExecutor.class) {
+            executor = instance;
+            instance = null;
+        }
+        if (executor != null) {
+            executor.drain(DRAIN_SECONDS);
+        }
+    }
+
+    /**
+     * @param drainSeconds how long to wait for the pending tasks
+     * @return whether all the tasks completed
+     */
+    boolean drain(long drainSeconds) throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(drainSeconds, TimeUnit.SECONDS)) {
+            return true;
+        }
+        LOGGER.warn("{} unbreakable build task(s) abandoned, the outbox replays their notifications",
+                executor.shutdownNow().size() + executor.getActiveCount());
+        return false;
+    }
+
+    /**
+     * Runs the task on a worker and waits for its outcome, the whole within the timeout
+     *
+     * @param task prepares the work and gives its future outcome
+     * @return the outcome
+     * @throws TimeoutException the task did not complete in time, it is interrupted if still running, but its
+     *                          outcome (e.g. a notification in the outbox) is not cancelled
+     */
+    <T> T call(Callable<CompletableFuture<T>> task)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        Future<CompletableFuture<T>> submitted = executor.submit(task);
+        CompletableFuture<T> outcome;
+        try {
+            outcome = submitted.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            submitted.cancel(true);
+            throw e;
+        }
+        return outcome.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs the task on a worker, without waiting for it, unless the queue is full
+     *
+     * @return whether the task has been queued, it is dropped otherwise
+     */
+    boolean offer(Runnable task) {
+        try {
+            executor.execute(new Droppable(task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static void rejected(Runnable task, ThreadPoolExecutor pool) {
+        if (task instanceof Droppable) {
+            throw new RejectedExecutionException("No room left for the unbreakable build task " + task);
+        }
+        CALLER_RUNS.rejectedExecution(task, pool);
+    }
+
+    long getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    void setTimeoutSeconds(long timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * A task which must not be run by its caller
+     */
+    private static final class Droppable implements Runnable {
+        private final Runnable task;
+
+        private Droppable(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Metrics of the unbreakable builds, exposed in the Prometheus text format by {@link UbMetricsAction}.
+ * <p>
+ * The counters and the histograms are made of adders: recording does not lock, and the threads notifying
+ * Bitbucket do not contend on them. The histograms have fixed buckets, cumulated when the metrics are scraped.
+ */
+public final class UbMetrics {
+
+    // seconds, from a local http call to a slow credentials store
+    static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    static final String HOST = "host";
+    static final String ZONE = "zone";
+
+    private static final UbMetrics INSTANCE = new UbMetrics();
+
+    private final Family<LongAdder> notifications = new Family<>("ub_notifications_total", "counter",
+            "Notifications answered by Bitbucket (or given up), by build status and http code (-1: no answer)",
+            LongAdder::new, HOST, ZONE, "status", "code");
+
+    private final Family<LongAdder> superseded = new Family<>("ub_notifications_superseded_total", "counter",
+            "Notifications dropped without being sent, a later one of their merge request was", LongAdder::new,
+            HOST, ZONE);
+
+    private final Family<LongAdder> retries = new Family<>("ub_notification_retries_total", "counter",
+            "Notifications scheduled for another attempt", LongAdder::new, HOST, ZONE);
+
+    private final Family<Histogram> httpDuration = new Family<>("ub_http_request_duration_seconds", "histogram",
+            "Round trip of the http requests to Bitbucket", Histogram::new, HOST);
+
+    private final Family<Histogram> batchDuration = new Family<>("ub_http_batch_duration_seconds", "histogram",
+            "Round trip of the batches of http requests pipelined (or multiplexed) to Bitbucket, until the last "
+                    + "answer", Histogram::new, HOST);
+
+    private final Family<LongAdder> batchedRequests = new Family<>("ub_http_batched_requests_total", "counter",
+            "Http requests sent to Bitbucket in the batches", LongAdder::new, HOST);
+
+    private final Family<Histogram> credentialsDuration = new Family<>("ub_credentials_resolution_duration_seconds",
+            "histogram", "Resolution of the Bitbucket credentials of the runs", Histogram::new, ZONE);
+
+    private final Family<Histogram> envDuration = new Family<>("ub_env_collection_duration_seconds", "histogram",
+            "Collection of the environment of the completed unbreakable builds", Histogram::new, ZONE);
+
+    UbMetrics() {
+    }
+
+    public static UbMetrics get() {
+        return INSTANCE;
+    }
+
+    void notificationDone(UbNotification notification, @CheckForNull String status, int code) {
+        notifications.of(host(notification.getBitbucketUrl()), zone(notification.getIsolationZone()),
+                status == null ? "" : status, Integer.toString(code)).increment();
+    }
+
+    void notificationSuperseded(UbNotification notification) {
+        superseded.of(host(notification.getBitbucketUrl()), zone(notification.getIsolationZone())).increment();
+    }
+
+    void notificationRetried(UbNotification notification) {
+        retries.of(host(notification.getBitbucketUrl()), zone(notification.getIsolationZone())).increment();
+    }
+
+    void httpRequest(String bitbucketUrl, long startNanos) {
+        httpDuration.of(host(bitbucketUrl)).observeSince(startNanos);
+    }
+
+    /**
+     * @param size number of requests of the batch, each of them is not observed on its own
+     */
+    void httpBatch(String bitbucketUrl, int size, long startNanos) {
+        batchDuration.of(host(bitbucketUrl)).observeSince(startNanos);
+        batchedRequests.of(host(bitbucketUrl)).add(size);
+    }
+
+    void credentialsResolved(@CheckForNull String isolationZone, long startNanos) {
+        credentialsDuration.of(zone(isolationZone)).observeSince(startNanos);
+    }
+
+    void envCollected(@CheckForNull String isolationZone, long startNanos) {
+        envDuration.of(zone(isolationZone)).observeSince(startNanos);
+    }
+
+    private static String host(String bitbucketUrl) {
+        return UbHttpClients.normalize(bitbucketUrl);
+    }
+
+    private static String zone(@CheckForNull String isolationZone) {
+        return isolationZone == null ? "" : isolationZone;
+    }
+
+    /**
+     * Writes the metrics, the gauges of the outbox and of the host guards, and the counters of the credentials cache,
+     * in the Prometheus text format 0.0.4
+     */
+    void write(Writer out) throws IOException {
+        notifications.write(out, (name, labels, counter) -> sample(out, name, labels, counter.sum()));
+        superseded.write(out, (name, labels, counter) -> sample(out, name, labels, counter.sum()));
+        retries.write(out, (name, labels, counter) -> sample(out, name, labels, counter.sum()));
+        batchedRequests.write(out, (name, labels, counter) -> sample(out, name, labels, counter.sum()));
+        for (Family<Histogram> histograms :
+                Arrays.asList(httpDuration, batchDuration, credentialsDuration, envDuration)) {
+            histograms.write(out, (name, labels, histogram) -> histogram.write(out, name, labels));
+        }
+
+        header(out, "ub_notifications_in_flight", "gauge", "Notifications sent to Bitbucket, not answered yet");
+        for (UbHostGuard guard : UbHostGuard.all()) {
+            sample(out, "ub_notifications_in_flight", labels(new String[]{HOST}, new String[]{guard.getHost()}),
+                    guard.getInFlight());
+        }
+        header(out, "ub_notifications_parked", "gauge", "Notifications waiting for the guard of their host");
+        for (UbHostGuard guard : UbHostGuard.all()) {
+            sample(out, "ub_notifications_parked", labels(new String[]{HOST}, new String[]{guard.getHost()}),
+                    guard.getParked());
+        }
+        UbCredentialsCache credentials = UbCredentialsCache.get();
+        header(out, "ub_credentials_cache_requests_total", "counter",
+                "Bitbucket credentials looked up in the cache, by result");
+        sample(out, "ub_credentials_cache_requests_total", labels(new String[]{"result"}, new String[]{"hit"}),
+                credentials.getHits());
+        sample(out, "ub_credentials_cache_requests_total", labels(new String[]{"result"}, new String[]{"miss"}),
+                credentials.getMisses());
+        header(out, "ub_credentials_cache_entries", "gauge", "Bitbucket credentials cached");
+        sample(out, "ub_credentials_cache_entries", "", credentials.getSize());
+        header(out, "ub_notifications_pending", "gauge", "Notifications of the outbox waiting for Bitbucket");
+        // a scrape does not load the outbox, nor replay its journal
+        UbNotificationOutbox outbox = UbNotificationOutbox.getIfLoaded();
+        sample(out, "ub_notifications_pending", "", outbox == null ? 0 : outbox.getPendingCount());
+    }
+
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + ' ' + help + '\n');
+        out.write("# TYPE " + name + ' ' + type + '\n');
+    }
+
+    private static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name);
+        out.write(labels);
+        out.write(' ');
+        out.write(format(value));
+        out.write('\n');
+    }
+
+    static String format(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    static String labels(String[] names, String[] values) {
+        if (names.length == 0) {
+            return "";
+        }
+        StringBuilder labels = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(names[i]).append("=\"");
+            String value = values[i];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '\\' || ch == '"') {
+                    labels.append('\\').append(ch);
+                } else if (ch == '\n') {
+                    labels.append("\\n");
+                } else {
+                    labels.append(ch);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    /**
+     * Writes one metric of a family
+     */
+    private interface SampleWriter<M> {
+        void write(String name, String labels, M metric) throws IOException;
+    }
+
+    /**
+     * The metrics of one name, by label values
+     */
+    private static final class Family<M> {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final Supplier<M> factory;
+        private final String[] labelNames;
+        private final Map<List<String>, M> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String type, String help, Supplier<M> factory, String... labelNames) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.factory = factory;
+            this.labelNames = labelNames;
+        }
+
+        M of(String... labelValues) {
+            List<String> key = Arrays.asList(labelValues);
+            M metric = metrics.get(key);
+            return metric != null ? metric : metrics.computeIfAbsent(key, k -> factory.get());
+        }
+
+        void write(Writer out, SampleWriter<M> writer) throws IOException {
+            header(out, name, type, help);
+            // sorted, the output is stable from a scrape to the next one
+            Map<String, M> sorted = new TreeMap<>();
+            metrics.forEach((values, metric) ->
+                    sorted.put(labels(labelNames, values.toArray(new String[0])), metric));
+            for (Map.Entry<String, M> metric : sorted.entrySet()) {
+                writer.write(name, metric.getKey(), metric.getValue());
+            }
+        }
+    }
+
+    /**
+     * Histogram with the fixed {@link #BUCKETS}
+     */
+    static final class Histogram {
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        void observe(double seconds) {
+            int bucket = Arrays.binarySearch(BUCKETS, seconds);
+            // the first bucket whose upper bound is greater or equal, the last one is +Inf
+            counts[bucket >= 0 ? bucket : -bucket - 1].increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * @return the cumulative counts, the last one is the count of all the observations
+         */
+        long[] cumulativeCounts() {
+            long[] cumulative = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i].sum();
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        double getSum() {
+            return sum.sum();
+        }
+
+        void write(Writer out, String name, String labels) throws IOException {
+            long[] cumulative = cumulativeCounts();
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ',';
+            for (int i = 0; i < cumulative.length; i++) {
+                double bound = i < BUCKETS.length ? BUCKETS[i] : Double.POSITIVE_INFINITY;
+                sample(out, name + "_bucket", prefix + "le=\"" + format(bound) + "\"}", cumulative[i]);
+            }
+            sample(out, name + "_sum", labels, getSum());
+            sample(out, name + "_count", labels, cumulative[cumulative.length - 1]);
+        }
+    }
+}
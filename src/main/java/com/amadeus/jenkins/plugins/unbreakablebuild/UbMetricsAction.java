@@ -0,0 +1,46 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>
+ * Exposes the {@link UbMetrics} in the Prometheus text format on {@code /ub-metrics}, to the users allowed to read
+ * the system configuration.
+ */
+@Extension
+public class UbMetricsAction implements RootAction {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public String getIconFileName() {
+        // not in the side panel
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Unbreakable Build metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ub-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        rsp.setContentType(CONTENT_TYPE);
+        rsp.setHeader("Cache-Control", "no-cache");
+        try (Writer out = rsp.getWriter()) {
+            UbMetrics.get().write(out);
+        }
+    }
+}
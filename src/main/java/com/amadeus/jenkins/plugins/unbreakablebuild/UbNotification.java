@@ -0,0 +1,207 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * <p>
+ * A notification to be sent to Bitbucket, as recorded in the {@link UbNotificationOutbox}.
+ * <p>
+ * It does not hold the credentials: they are resolved again from the run when the
+ * notification is replayed after a restart.
+ */
+final class UbNotification {
+
+    private final String id;
+    private final String bitbucketUrl;
+    private final String url;
+    private final String payload;
+    private final String projectKey;
+    private final String repositorySlug;
+    private final String commitId;
+    private final String runId;
+    private final long createdAt;
+    private final String idempotencyKey;
+    private final String mergeRequestId;
+    private final long sequence;
+
+    /**
+     * @param id           unique id of the notification
+     * @param bitbucketUrl base url of bitbucket
+     * @param url          url on which the request must be sent
+     * @param payload      the json payload
+     * @param commit       the bitbucket project, repository and commit notified
+     * @param runId        the externalizable id of the run, if any
+     * @param createdAt    creation time in milliseconds
+     */
+    UbNotification(@Nonnull String id, @Nonnull String bitbucketUrl, @Nonnull String url, @Nonnull String payload,
+                   @Nonnull Commit commit, @CheckForNull String runId, long createdAt) {
+        this(id, bitbucketUrl, url, payload, commit, runId, createdAt, null);
+    }
+
+    /**
+     * @param idempotencyKey the same for all the sendings of the same outcome of a run, see
+     *                       {@link UbUtils#generateIdempotencyKey(String, String, String)}
+     */
+    UbNotification(@Nonnull String id, @Nonnull String bitbucketUrl, @Nonnull String url, @Nonnull String payload,
+                   @Nonnull Commit commit, @CheckForNull String runId, long createdAt,
+                   @CheckForNull String idempotencyKey) {
+        this(id, bitbucketUrl, url, payload, commit, runId, createdAt, idempotencyKey, null, 0L);
+    }
+
+    /**
+     * @param mergeRequestId the merge request notified, if known
+     * @param sequence       orders the notifications of the merge request, see
+     *                       {@link UbStripedDispatcher#nextSequence(String, String, String, String)}
+     */
+    UbNotification(@Nonnull String id, @Nonnull String bitbucketUrl, @Nonnull String url, @Nonnull String payload,
+                   @Nonnull Commit commit, @CheckForNull String runId, long createdAt,
+                   @CheckForNull String idempotencyKey, @CheckForNull String mergeRequestId, long sequence) {
+        this.id = id;
+        this.bitbucketUrl = bitbucketUrl;
+        this.url = url;
+        this.payload = payload;
+        this.projectKey = commit.projectKey;
+        this.repositorySlug = commit.repositorySlug;
+        this.commitId = commit.commitId;
+        this.runId = runId;
+        this.createdAt = createdAt;
+        this.idempotencyKey = idempotencyKey;
+        this.mergeRequestId = mergeRequestId;
+        this.sequence = sequence;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getBitbucketUrl() {
+        return bitbucketUrl;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    String getProjectKey() {
+        return projectKey;
+    }
+
+    String getRepositorySlug() {
+        return repositorySlug;
+    }
+
+    String getCommitId() {
+        return commitId;
+    }
+
+    @CheckForNull
+    String getRunId() {
+        return runId;
+    }
+
+    /**
+     * @return the isolation zone of the run, from its id
+     */
+    @CheckForNull
+    String getIsolationZone() {
+        return UbUtils.getIsolationZoneName(runId);
+    }
+
+    /**
+     * @return the build status notified, from the payload
+     */
+    @CheckForNull
+    String getBuildStatus() {
+        try {
+            return new JSONObject(payload).optString("result", null);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    @CheckForNull
+    String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    @CheckForNull
+    String getMergeRequestId() {
+        return mergeRequestId;
+    }
+
+    /**
+     * @return the rank of the notification among the ones of its merge request, 0 if not ranked
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("bitbucketUrl", bitbucketUrl);
+        json.put("url", url);
+        json.put("payload", payload);
+        json.put("projectKey", projectKey);
+        json.put("repositorySlug", repositorySlug);
+        json.put("commitId", commitId);
+        json.put("createdAt", createdAt);
+        if (runId != null) {
+            json.put("runId", runId);
+        }
+        if (idempotencyKey != null) {
+            json.put("idempotencyKey", idempotencyKey);
+        }
+        if (mergeRequestId != null) {
+            json.put("mergeRequestId", mergeRequestId);
+            json.put("sequence", sequence);
+        }
+        return json;
+    }
+
+    static UbNotification fromJson(JSONObject json) {
+        return new UbNotification(
+                json.getString("id"),
+                json.getString("bitbucketUrl"),
+                json.getString("url"),
+                json.getString("payload"),
+                new Commit(json.getString("projectKey"), json.getString("repositorySlug"), json.getString("commitId")),
+                json.optString("runId", null),
+                json.getLong("createdAt"),
+                json.optString("idempotencyKey", null),
+                json.optString("mergeRequestId", null),
+                json.optLong("sequence", 0L));
+    }
+
+    /**
+     * The commit a notification is about
+     */
+    static final class Commit {
+        private final String projectKey;
+        private final String repositorySlug;
+        private final String commitId;
+
+        Commit(String projectKey, String repositorySlug, String commitId) {
+            this.projectKey = projectKey;
+            this.repositorySlug = repositorySlug;
+            this.commitId = commitId;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UbNotification{id='" + id + "', url='" + url + "', runId='" + runId + "'}";
+    }
+}
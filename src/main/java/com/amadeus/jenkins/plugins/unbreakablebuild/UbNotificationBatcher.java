@@ -0,0 +1,285 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.entity.ContentType;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * Coalesces the notifications sent to the same Bitbucket (with the same credentials) within a small window.
+ * <p>
+ * A batch is sent as one request to the bulk endpoint of the ubuild REST API:
+ * <pre>
+ * POST /rest/ubuild/1.0/notifications
+ * { "notifications": [ { "projectKey": "...", "repositorySlug": "...", "commitId": "...", + the payload }, ...] }
+ * -&gt;
+ * { "results": [ { "statusCode": 200, "message": "..." }, ...] }  (in the order of the notifications)
+ * </pre>
+ * When Bitbucket does not know this endpoint, it is not tried again for this Bitbucket, and the batches are sent
+ * as individual requests pipelined on one connection.
+ * <p>
+ * The window is a setting of each Bitbucket server of the global configuration. It is 0 (batching disabled) by
+ * default, or the system property
+ * {@code com.amadeus.jenkins.plugins.unbreakablebuild.UbNotificationBatcher.windowMillis} when set.
+ */
+final class UbNotificationBatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbNotificationBatcher.class);
+
+    static final String BULK_PATH = "/rest/ubuild/" + UbJenkinsEnvBean.BITBUCKET_API_VERSION + "/notifications";
+
+    static final long WINDOW_MILLIS =
+            SystemProperties.getLong(UbNotificationBatcher.class.getName() + ".windowMillis", 0L);
+
+    static final int MAX_BATCH_SIZE =
+            SystemProperties.getInteger(UbNotificationBatcher.class.getName() + ".maxBatchSize", 50);
+
+    private static final UbNotificationBatcher INSTANCE = new UbNotificationBatcher(
+            bitbucketUrl -> UbGlobalConfiguration.resolve(bitbucketUrl).getBatchWindowMillis(),
+            MAX_BATCH_SIZE, Timer.get());
+
+    private final ToLongFunction<String> windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+
+    // the batches being filled, by bitbucket and user
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    // whether the bitbucket supports the bulk endpoint, unknown until tried
+    private final Map<String, Boolean> bulkSupported = new ConcurrentHashMap<>();
+
+    /**
+     * @param windowMillis how long a batch waits for other notifications, 0 or less to disable the batching
+     * @param maxBatchSize a batch is sent as soon as it reaches this size
+     * @param scheduler    schedules the sending of the batches
+     */
+    UbNotificationBatcher(long windowMillis, int maxBatchSize, ScheduledExecutorService scheduler) {
+        this(bitbucketUrl -> windowMillis, maxBatchSize, scheduler);
+    }
+
+    /**
+     * @param windowMillis the window of a Bitbucket base URL, 0 or less to disable the batching
+     * @param maxBatchSize a batch is sent as soon as it reaches this size
+     * @param scheduler    schedules the sending of the batches
+     */
+    UbNotificationBatcher(ToLongFunction<String> windowMillis, int maxBatchSize, ScheduledExecutorService scheduler) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = scheduler;
+    }
+
+    static UbNotificationBatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param notification the notification
+     * @param credentials  bitbucket credentials
+     * @return the future result of the notification, the future never completes exceptionally
+     */
+    CompletableFuture<UbUtils.BitbucketQueryResult> send(
+            UbNotification notification, UsernamePasswordCredentials credentials) {
+        String bitbucketUrl = UbHttpClients.normalize(notification.getBitbucketUrl());
+        long window = windowMillis.applyAsLong(bitbucketUrl);
+        if (window <= 0) {
+            return sendOne(notification, credentials);
+        }
+        String key = bitbucketUrl + '\n' + credentials.getUserName();
+        Pending pending = new Pending(notification);
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(credentials);
+                batches.put(key, batch);
+                Batch scheduled = batch;
+                scheduler.schedule(() -> flush(key, scheduled), window, TimeUnit.MILLISECONDS);
+            }
+            batch.pendings.add(pending);
+            if (batch.pendings.size() >= maxBatchSize) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            sendBatch(full);
+        }
+        return pending.result;
+    }
+
+    private void flush(String key, Batch batch) {
+        synchronized (batches) {
+            // already sent because it was full
+            if (!batches.remove(key, batch)) {
+                return;
+            }
+        }
+        sendBatch(batch);
+    }
+
+    private void sendBatch(Batch batch) {
+        List<Pending> pendings = batch.pendings;
+        if (pendings.size() == 1) {
+            Pending pending = pendings.get(0);
+            sendOne(pending.notification, batch.credentials).thenAccept(pending.result::complete);
+            return;
+        }
+        String bitbucketUrl = UbHttpClients.normalize(pendings.get(0).notification.getBitbucketUrl());
+        if (Boolean.FALSE.equals(bulkSupported.get(bitbucketUrl))) {
+            sendPipelined(bitbucketUrl, batch);
+            return;
+        }
+        LOGGER.debug("Sending {} notifications in bulk to {}", pendings.size(), bitbucketUrl);
+        // the keys of the notifications are in their items of the bulk payload, a failure of the request is given
+        // as the same result to all of them: the host guard counts it once
+        UbUtils.sendBitbucketPostAsync(bitbucketUrl, bitbucketUrl + BULK_PATH, bulkPayload(pendings),
+                batch.credentials, null, response -> readBulkResponse(response, pendings.size()),
+                e -> Collections.nCopies(pendings.size(), new UbUtils.BitbucketQueryResult(-1, e.toString(), e))
+        ).thenAccept(results -> {
+            if (results == null) {
+                LOGGER.info("{} does not support the bulk notifications, pipelining them", bitbucketUrl);
+                bulkSupported.put(bitbucketUrl, Boolean.FALSE);
+                sendPipelined(bitbucketUrl, batch);
+                return;
+            }
+            bulkSupported.put(bitbucketUrl, Boolean.TRUE);
+            for (int i = 0; i < pendings.size(); i++) {
+                pendings.get(i).result.complete(results.get(i));
+            }
+        });
+    }
+
+    private static void sendPipelined(String bitbucketUrl, Batch batch) {
+        List<Pending> pendings = batch.pendings;
+        LOGGER.debug("Sending {} pipelined notifications to {}", pendings.size(), bitbucketUrl);
+        UbUtils.sendBitbucketNotificationsPipelined(bitbucketUrl,
+                pendings.stream().map(pending -> pending.notification.getUrl()).collect(Collectors.toList()),
+                pendings.stream().map(pending -> pending.notification.getPayload()).collect(Collectors.toList()),
+                batch.credentials,
+                pendings.stream().map(pending -> pending.notification.getIdempotencyKey())
+                        .collect(Collectors.toList())
+        ).thenAccept(results -> {
+            for (int i = 0; i < pendings.size(); i++) {
+                pendings.get(i).result.complete(results.get(i));
+            }
+        });
+    }
+
+    private static CompletableFuture<UbUtils.BitbucketQueryResult> sendOne(
+            UbNotification notification, UsernamePasswordCredentials credentials) {
+        return UbUtils.sendBitbucketNotificationAsync(
+                notification.getBitbucketUrl(), notification.getUrl(), notification.getPayload(), credentials,
+                notification.getIdempotencyKey());
+    }
+
+    static String bulkPayload(List<Pending> pendings) {
+        JSONArray notifications = new JSONArray();
+        for (Pending pending : pendings) {
+            UbNotification notification = pending.notification;
+            JSONObject json = new JSONObject(notification.getPayload());
+            json.put("projectKey", notification.getProjectKey());
+            json.put("repositorySlug", notification.getRepositorySlug());
+            json.put("commitId", notification.getCommitId());
+            notifications.put(json);
+        }
+        return new JSONObject().put("notifications", notifications).toString();
+    }
+
+    /**
+     * @return the results of the notifications, null if the bulk endpoint is not supported. An answer of the bulk
+     * endpoint which cannot be read gives a result with an exception to each notification: Bitbucket accepted them,
+     * they must not be sent again
+     */
+    static List<UbUtils.BitbucketQueryResult> readBulkResponse(HttpResponse response, int size) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+            return null;
+        }
+        HttpEntity httpEntity = response.getEntity();
+        ContentType contentType = UbUtils.getContentType(httpEntity);
+        if (statusCode < 200 || statusCode >= 300) {
+            // the whole batch failed the same way (e.g. 503), the outbox decides what to do, the host guard
+            // counts one failure
+            String body = UbBoundedResponseConsumer.isJson(contentType)
+                    ? UbUtils.getContentAsString(httpEntity, contentType) : "";
+            return Collections.nCopies(size, new UbUtils.BitbucketQueryResult(
+                    statusCode, body, null, UbUtils.getRetryAfterMillis(response)));
+        }
+        if (!UbBoundedResponseConsumer.isJson(contentType)) {
+            String message = "Unexpected Bitbucket bulk response content type: "
+                    + (contentType == null ? null : contentType.getMimeType());
+            LOGGER.warn(message);
+            return unreadable(statusCode, size, message, null);
+        }
+        try (Reader reader = UbUtils.getContentReader(httpEntity, contentType)) {
+            JSONArray results = new JSONObject(new JSONTokener(reader)).getJSONArray("results");
+            if (results.length() != size) {
+                throw new JSONException("Expected " + size + " results, got " + results.length());
+            }
+            List<UbUtils.BitbucketQueryResult> bbResults = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                JSONObject result = results.getJSONObject(i);
+                bbResults.add(new UbUtils.BitbucketQueryResult(
+                        result.getInt("statusCode"), result.optString("message", ""), null));
+            }
+            return bbResults;
+        } catch (IOException e) {
+            LOGGER.error("Issue while reading the Bitbucket bulk response", e);
+            return Collections.nCopies(size, new UbUtils.BitbucketQueryResult(-1, e.toString(), e));
+        } catch (JSONException e) {
+            // not the answer of a bulk endpoint we know, but the notifications have been accepted
+            LOGGER.warn(String.format("Unexpected Bitbucket bulk response payload: %s",
+                    UbUtils.getContentAsString(httpEntity, contentType)), e);
+            return unreadable(statusCode, size, "Unexpected Bitbucket bulk response payload", e);
+        }
+    }
+
+    /**
+     * The outcome of each notification is unknown: not retried by the outbox (2xx), reported with its exception
+     */
+    private static List<UbUtils.BitbucketQueryResult> unreadable(
+            int statusCode, int size, String message, Exception cause) {
+        UbTechnicalException e = new UbTechnicalException(message, cause);
+        return Collections.nCopies(size, new UbUtils.BitbucketQueryResult(statusCode, message, e));
+    }
+
+    static final class Pending {
+        private final UbNotification notification;
+        private final CompletableFuture<UbUtils.BitbucketQueryResult> result = new CompletableFuture<>();
+
+        Pending(UbNotification notification) {
+            this.notification = notification;
+        }
+    }
+
+    private static final class Batch {
+        private final UsernamePasswordCredentials credentials;
+        private final List<Pending> pendings = new ArrayList<>();
+
+        private Batch(UsernamePasswordCredentials credentials) {
+            this.credentials = credentials;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Durable outbox of the Bitbucket notifications.
+ * <p>
+ * Each notification is recorded in an append-only journal (under JENKINS_HOME) before being sent,
+ * and marked as done once Bitbucket answered for good. Transient failures (IO errors, 5xx, 429)
+ * are retried in the background with a jittered exponential backoff, honouring the Retry-After header
+ * up to the maximum delay. The pending notifications are replayed when Jenkins starts.
+ * <p>
+ * The outcomes are written in the journal by the scheduler, not by the thread which got the answer of
+ * Bitbucket (e.g. an I/O reactor of the http client), and so is the journal compacted.
+ * <p>
+ * A notification can be withdrawn (e.g. the build has been failed meanwhile): it is not sent anymore and completes
+ * as superseded, a request already handed over to the http client cannot be recalled though.
+ */
+public final class UbNotificationOutbox {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbNotificationOutbox.class);
+
+    static final String JOURNAL_PATH = "unbreakable-build/outbox.journal";
+
+    static final int MAX_ATTEMPTS =
+            SystemProperties.getInteger(UbNotificationOutbox.class.getName() + ".maxAttempts", 6);
+
+    static final long BASE_DELAY_MILLIS =
+            SystemProperties.getLong(UbNotificationOutbox.class.getName() + ".baseDelayMillis", 500L);
+
+    static final long MAX_DELAY_MILLIS =
+            SystemProperties.getLong(UbNotificationOutbox.class.getName() + ".maxDelayMillis", 30_000L);
+
+    // done entries are kept for a while, so that a resumed step finds the outcome of its notification
+    static final long DONE_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // the journal is rewritten (without the old done entries) after this many appends
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final String OP = "op";
+    private static final String OP_ADD = "add";
+    private static final String OP_DONE = "done";
+    private static final String OP_WITHDRAW = "withdraw";
+
+    static final String WITHDRAWN_MESSAGE = "Withdrawn before being sent to Bitbucket";
+
+    private static volatile UbNotificationOutbox instance;
+
+    /**
+     * Sends one attempt of a notification
+     */
+    interface Sender {
+        CompletableFuture<UbUtils.BitbucketQueryResult> send(
+                UbNotification notification, UsernamePasswordCredentials credentials);
+    }
+
+    /**
+     * Finds the credentials of a replayed notification
+     */
+    interface CredentialsResolver {
+        UsernamePasswordCredentials resolve(UbNotification notification);
+    }
+
+    @CheckForNull
+    private final File journal;
+    private final Sender sender;
+    private final CredentialsResolver credentialsResolver;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // the same entries, by idempotency key
+    private final Map<String, Entry> keys = new ConcurrentHashMap<>();
+    // the notifications withdrawn before being submitted, with the time they were withdrawn
+    private final Map<String, Long> withdrawn = new ConcurrentHashMap<>();
+    private int appendsSinceCompaction;
+
+    /**
+     * @param journal             the journal file, null to keep the outbox in memory only
+     * @param sender              sends the notifications
+     * @param credentialsResolver finds the credentials of the replayed notifications
+     * @param scheduler           schedules the retries, writes the outcomes in the journal
+     */
+    UbNotificationOutbox(@CheckForNull File journal, Sender sender, CredentialsResolver credentialsResolver,
+                         ScheduledExecutorService scheduler) {
+        this.journal = journal;
+        this.sender = sender;
+        this.credentialsResolver = credentialsResolver;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the outbox of this Jenkins, the pending notifications of the journal are replayed on first access
+     */
+    static UbNotificationOutbox get() {
+        UbNotificationOutbox outbox = instance;
+        if (outbox == null) {
+            synchronized (UbNotificationOutbox.class) {
+                outbox = instance;
+                if (outbox == null) {
+                    Jenkins jenkins = Jenkins.getInstanceOrNull();
+                    File journal = jenkins == null ? null : new File(jenkins.getRootDir(), JOURNAL_PATH);
+                    outbox = new UbNotificationOutbox(journal,
+                            UbStripedDispatcher.get(),
+                            UbNotificationOutbox::resolveCredentialsFromRun,
+                            Timer.get());
+                    outbox.replay();
+                    instance = outbox;
+                }
+            }
+        }
+        return outbox;
+    }
+
+    /**
+     * @return the outbox of this Jenkins, null if it is not loaded (and its journal not replayed) yet
+     */
+    @CheckForNull
+    static UbNotificationOutbox getIfLoaded() {
+        return instance;
+    }
+
+    /**
+     * Replays the pending notifications as soon as the jobs are loaded
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replayPendingNotifications() {
+        get();
+    }
+
+    /**
+     * Forgets the outbox when Jenkins stops, the pending notifications are in the journal
+     * and will be replayed by the next start.
+     */
+    @Terminator
+    public static void shutdown() {
+        synchronized (UbNotificationOutbox.class) {
+            instance = null;
+        }
+    }
+
+    /**
+     * Records the notification in the journal and sends it.
+     * <p>
+     * Submitting again a notification with the same id (e.g. a resumed step) does not send it twice,
+     * the future of the first submission is returned. Neither does submitting a notification with the same
+     * idempotency key as a known one (e.g. the same outcome notified by two verbs).
+     *
+     * @param notification the notification
+     * @param credentials  bitbucket credentials
+     * @param logger       the Jenkins logger to print the retries in the jenkins console, can be null
+     * @return the result of the last attempt, the future never completes exceptionally
+     */
+    CompletableFuture<UbUtils.BitbucketQueryResult> submit(
+            UbNotification notification, UsernamePasswordCredentials credentials, @CheckForNull PrintStream logger) {
+        Entry created = new Entry(notification, credentials, logger);
+        Entry existing = entries.putIfAbsent(notification.getId(), created);
+        if (existing != null) {
+            LOGGER.info("Notification {} already submitted, waiting for its outcome", notification.getId());
+            existing.attach(logger);
+            return existing.result;
+        }
+        String idempotencyKey = notification.getIdempotencyKey();
+        Entry sameKey = idempotencyKey == null ? null : keys.putIfAbsent(idempotencyKey, created);
+        if (sameKey != null) {
+            LOGGER.info("Notification {} is a duplicate of {}, not sent", notification.getId(),
+                    sameKey.notification.getId());
+            entries.remove(notification.getId(), created);
+            sameKey.attach(logger);
+            // for the submissions of the same id which found the created entry meanwhile
+            sameKey.result.thenAccept(created.result::complete);
+            return sameKey.result;
+        }
+        JSONObject add = notification.toJson();
+        add.put(OP, OP_ADD);
+        append(add);
+        if (withdrawn.remove(notification.getId()) != null) {
+            withdraw(created);
+        }
+        attempt(created);
+        return created.result;
+    }
+
+    /**
+     * Withdraws the notification: instead of its next attempt, it completes as superseded. A notification not
+     * submitted yet is withdrawn as soon as it is.
+     *
+     * @param notificationId the id of the notification
+     * @return false if the notification is already done
+     */
+    boolean withdraw(String notificationId) {
+        // put then check, as the submission does: one of them at least sees the other
+        withdrawn.put(notificationId, System.currentTimeMillis());
+        Entry entry = entries.get(notificationId);
+        if (entry == null) {
+            return true;
+        }
+        withdrawn.remove(notificationId);
+        if (entry.result.isDone()) {
+            return false;
+        }
+        withdraw(entry);
+        return true;
+    }
+
+    private void withdraw(Entry entry) {
+        entry.withdrawn = true;
+        LOGGER.info("{} withdrawn, it is not sent anymore", entry.notification);
+        onScheduler(() -> append(withdrawRecord(entry)));
+    }
+
+    /**
+     * @return the number of requests sent so far for the notification (or the one it is a duplicate of), 0 if
+     * it is not known
+     */
+    int getAttempts(UbNotification notification) {
+        Entry entry = entries.get(notification.getId());
+        if (entry == null && notification.getIdempotencyKey() != null) {
+            entry = keys.get(notification.getIdempotencyKey());
+        }
+        return entry == null ? 0 : entry.attempts;
+    }
+
+    /**
+     * @return the number of notifications still waiting for Bitbucket
+     */
+    public int getPendingCount() {
+        return (int) entries.values().stream().filter(entry -> !entry.result.isDone()).count();
+    }
+
+    private void attempt(Entry entry) {
+        if (entry.withdrawn) {
+            done(entry, UbUtils.BitbucketQueryResult.superseded(WITHDRAWN_MESSAGE));
+            return;
+        }
+        if (entry.credentials == null) {
+            try {
+                entry.credentials = credentialsResolver.resolve(entry.notification);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to find the credentials of the replayed {}, giving up", entry.notification, e);
+                done(entry, new UbUtils.BitbucketQueryResult(-1, "Credentials of the notification not found", e));
+                return;
+            }
+        }
+        entry.attempts++;
+        CompletableFuture<UbUtils.BitbucketQueryResult> sent;
+        try {
+            sent = sender.send(entry.notification, entry.credentials);
+        } catch (RuntimeException e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        sent.whenComplete((bbResult, t) -> {
+            if (t == null) {
+                onResult(entry, bbResult);
+            } else {
+                Exception exception =
+                        t instanceof Exception ? (Exception) t : new UbTechnicalException(t.getMessage(), t);
+                onResult(entry, new UbUtils.BitbucketQueryResult(-1, t.getMessage(), exception));
+            }
+        });
+    }
+
+    private void onResult(Entry entry, UbUtils.BitbucketQueryResult bbResult) {
+        if (!isRetryable(bbResult) || entry.attempts >= MAX_ATTEMPTS) {
+            done(entry, bbResult);
+            return;
+        }
+        long delay = nextDelayMillis(entry.attempts, bbResult.getRetryAfterMillis());
+        String message = String.format("Notification to bitbucket failed (status code: %d, exception: %s), "
+                        + "attempt %d/%d, retrying in %d ms%n",
+                bbResult.getStatusCode(), bbResult.getException(), entry.attempts, MAX_ATTEMPTS, delay);
+        LOGGER.warn("{} - {}", entry.notification, message);
+        UbUtils.jenkinsLog(entry.logger, message);
+        UbMetrics.get().notificationRetried(entry.notification);
+        scheduler.schedule(() -> attempt(entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void done(Entry entry, UbUtils.BitbucketQueryResult bbResult) {
+        entry.doneAt = System.currentTimeMillis();
+        if (bbResult.isSuperseded()) {
+            UbMetrics.get().notificationSuperseded(entry.notification);
+        } else {
+            UbMetrics.get().notificationDone(entry.notification, entry.notification.getBuildStatus(),
+                    bbResult.getStatusCode());
+        }
+        // the outcome is in the journal before it is given
+        onScheduler(() -> {
+            append(doneRecord(entry, bbResult));
+            entry.result.complete(bbResult);
+        });
+    }
+
+    /**
+     * Runs the journal I/O on the scheduler, or right away if the scheduler does not accept it anymore
+     */
+    private void onScheduler(Runnable task) {
+        try {
+            scheduler.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private static JSONObject doneRecord(Entry entry, UbUtils.BitbucketQueryResult bbResult) {
+        JSONObject done = new JSONObject();
+        done.put(OP, OP_DONE);
+        done.put("id", entry.notification.getId());
+        done.put("statusCode", bbResult.getStatusCode());
+        done.put("message", bbResult.getMessage());
+        done.put("doneAt", entry.doneAt);
+        if (bbResult.isSuperseded()) {
+            done.put("superseded", true);
+        }
+        if (bbResult.getException() != null) {
+            done.put("exception", bbResult.getException().toString());
+        }
+        return done;
+    }
+
+    private static JSONObject withdrawRecord(Entry entry) {
+        JSONObject withdraw = new JSONObject();
+        withdraw.put(OP, OP_WITHDRAW);
+        withdraw.put("id", entry.notification.getId());
+        return withdraw;
+    }
+
+    /**
+     * IO errors, server errors and throttling are worth another attempt,
+     * the other errors (bad url, 4xx...) would fail the same way again.
+     */
+    static boolean isRetryable(UbUtils.BitbucketQueryResult bbResult) {
+        int statusCode = bbResult.getStatusCode();
+        if (statusCode == -1) {
+            return bbResult.getException() instanceof IOException
+                    && !(bbResult.getException() instanceof MalformedURLException);
+        }
+        return statusCode >= 500 || statusCode == 429 || statusCode == 408;
+    }
+
+    /**
+     * Exponential backoff with jitter (between half and all of the exponential delay),
+     * unless bitbucket told us when to come back.
+     *
+     * @param attempts         number of attempts done so far
+     * @param retryAfterMillis the delay asked by bitbucket, -1 if none
+     * @return the delay before the next attempt, at most {@link #MAX_DELAY_MILLIS}
+     */
+    static long nextDelayMillis(int attempts, long retryAfterMillis) {
+        if (retryAfterMillis >= 0) {
+            // a Retry-After of hours would hold the entry, and the step waiting for it, for as long
+            return Math.min(retryAfterMillis, MAX_DELAY_MILLIS);
+        }
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempts, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private synchronized void append(JSONObject record) {
+        if (journal != null) {
+            try {
+                Files.createDirectories(journal.toPath().getParent());
+                Files.write(journal.toPath(), (record.toString() + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+            } catch (IOException e) {
+                // the notification is still sent, it will just not survive a restart
+                LOGGER.error("Unable to write in the outbox journal {}", journal, e);
+            }
+        }
+        // without a journal too: the old done entries are dropped from the memory
+        if (++appendsSinceCompaction == COMPACTION_THRESHOLD) {
+            // the whole journal is rewritten, not by the thread submitting a notification
+            onScheduler(this::compactNow);
+        }
+    }
+
+    private synchronized void compactNow() {
+        compact();
+    }
+
+    /**
+     * Reads the journal, resends the pending notifications and compacts the journal.
+     */
+    synchronized void replay() {
+        if (journal == null || !journal.exists()) {
+            return;
+        }
+        List<Entry> pending = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8)) {
+                readRecord(line);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to read the outbox journal {}", journal, e);
+            return;
+        }
+        for (Entry entry : entries.values()) {
+            if (!entry.result.isDone()) {
+                pending.add(entry);
+            }
+        }
+        compact();
+        LOGGER.info("Replaying {} pending Bitbucket notification(s)", pending.size());
+        pending.forEach(this::attempt);
+    }
+
+    private void readRecord(String line) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        try {
+            JSONObject record = new JSONObject(line);
+            if (OP_ADD.equals(record.getString(OP))) {
+                UbNotification notification = UbNotification.fromJson(record);
+                Entry entry = new Entry(notification, null, null);
+                entries.put(notification.getId(), entry);
+                if (notification.getIdempotencyKey() != null) {
+                    keys.put(notification.getIdempotencyKey(), entry);
+                }
+            } else if (OP_WITHDRAW.equals(record.getString(OP))) {
+                Entry entry = entries.get(record.getString("id"));
+                if (entry != null) {
+                    entry.withdrawn = true;
+                }
+            } else {
+                Entry entry = entries.get(record.getString("id"));
+                if (entry != null) {
+                    entry.doneAt = record.getLong("doneAt");
+                    String exception = record.optString("exception", null);
+                    entry.result.complete(record.optBoolean("superseded")
+                            ? UbUtils.BitbucketQueryResult.superseded(record.optString("message", null))
+                            : new UbUtils.BitbucketQueryResult(
+                                    record.getInt("statusCode"),
+                                    record.optString("message", null),
+                                    exception == null ? null : new IOException(exception)));
+                }
+            }
+        } catch (JSONException e) {
+            // most likely the last line, truncated by a crash
+            LOGGER.warn("Ignoring invalid outbox journal record: {}", line, e);
+        }
+    }
+
+    /**
+     * Forgets the old done entries, and rewrites the journal with the pending entries and the recently done ones
+     */
+    private void compact() {
+        appendsSinceCompaction = 0;
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.doneAt > 0 && now - entry.doneAt > DONE_RETENTION_MILLIS);
+        keys.values().removeIf(entry -> entries.get(entry.notification.getId()) != entry);
+        withdrawn.values().removeIf(withdrawnAt -> now - withdrawnAt > DONE_RETENTION_MILLIS);
+        if (journal == null) {
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            JSONObject add = entry.notification.toJson();
+            add.put(OP, OP_ADD);
+            content.append(add).append('\n');
+            if (entry.doneAt > 0 && entry.result.isDone()) {
+                content.append(doneRecord(entry, entry.result.getNow(null))).append('\n');
+            } else if (entry.withdrawn) {
+                content.append(withdrawRecord(entry)).append('\n');
+            }
+        }
+        try {
+            File tmp = new File(journal.getPath() + ".tmp");
+            Files.createDirectories(journal.toPath().getParent());
+            Files.write(tmp.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), journal.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.error("Unable to compact the outbox journal {}", journal, e);
+        }
+    }
+
+    private static UsernamePasswordCredentials resolveCredentialsFromRun(UbNotification notification) {
+        String runId = notification.getRunId();
+        Run<?, ?> run = runId == null ? null : Run.fromExternalizableId(runId);
+        if (run == null) {
+            throw new IllegalStateException("The run " + runId + " does not exist anymore");
+        }
+        return UbUtils.getBitbucketCredentialsOrFail(run, null);
+    }
+
+    private static final class Entry {
+        private final UbNotification notification;
+        private final CompletableFuture<UbUtils.BitbucketQueryResult> result = new CompletableFuture<>();
+        private volatile UsernamePasswordCredentials credentials;
+        private volatile PrintStream logger;
+        private volatile int attempts;
+        private volatile long doneAt;
+        private volatile boolean withdrawn;
+
+        private Entry(UbNotification notification, UsernamePasswordCredentials credentials, PrintStream logger) {
+            this.notification = notification;
+            this.credentials = credentials;
+            this.logger = logger;
+        }
+
+        private void attach(PrintStream newLogger) {
+            if (newLogger != null) {
+                this.logger = newLogger;
+            }
+        }
+    }
+}
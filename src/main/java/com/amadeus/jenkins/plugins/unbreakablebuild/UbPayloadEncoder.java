@@ -0,0 +1,147 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+/**
+ * <p>
+ * Writes the payload of the ubuild REST API (ubValidate, ubFail) without going through a map and a JSONObject:
+ * <pre>
+ *  {
+ *    "jobUrl": "http://...",
+ *    "isolationZone": "adas-dfd",
+ *    "mergeRequestId": "1",
+ *    "result": "FAILURE|SUCCESS",
+ *    "idempotencyKey": "..."
+ *  }
+ * </pre>
+ * The field names are written from constants, the values are escaped like {@link org.json.JSONObject#quote(String)}
+ * does, and the null values are left out like {@link org.json.JSONObject} does.
+ * The builder is reused from one call to the other on the same thread.
+ */
+final class UbPayloadEncoder {
+
+    private static final String JOB_URL = "\"jobUrl\":\"";
+    private static final String ISOLATION_ZONE = "\"isolationZone\":\"";
+    private static final String MERGE_REQUEST_ID = "\"mergeRequestId\":\"";
+    private static final String RESULT = "\"result\":\"";
+    private static final String IDEMPOTENCY_KEY = "\"idempotencyKey\":\"";
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // a builder grown by a huge payload is not kept
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUILDER =
+            ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_CAPACITY));
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private UbPayloadEncoder() {
+        // to prevent init
+    }
+
+    /**
+     * @param jobUrl         http://example.org/myjob
+     * @param isolationZone  the isolation zone name
+     * @param mergeRequestId the id current merge request (something like '1', '12', '154'...)
+     * @param buildStatus    either SUCCESS of FAILURE
+     * @return the json payload
+     */
+    static String encode(String jobUrl, String isolationZone, String mergeRequestId, String buildStatus) {
+        return encode(jobUrl, isolationZone, mergeRequestId, buildStatus, null);
+    }
+
+    /**
+     * @param jobUrl         http://example.org/myjob
+     * @param isolationZone  the isolation zone name
+     * @param mergeRequestId the id current merge request (something like '1', '12', '154'...)
+     * @param buildStatus    either SUCCESS of FAILURE
+     * @param idempotencyKey the idempotency key of the notification, left out if null
+     * @return the json payload
+     */
+    static String encode(String jobUrl, String isolationZone, String mergeRequestId, String buildStatus,
+                         String idempotencyKey) {
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        sb.append('{');
+        boolean first = appendField(sb, JOB_URL, jobUrl, true);
+        first = appendField(sb, ISOLATION_ZONE, isolationZone, first);
+        first = appendField(sb, MERGE_REQUEST_ID, mergeRequestId, first);
+        first = appendField(sb, RESULT, buildStatus, first);
+        appendField(sb, IDEMPOTENCY_KEY, idempotencyKey, first);
+        sb.append('}');
+        String json = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            BUILDER.remove();
+        }
+        return json;
+    }
+
+    /**
+     * @return whether the next field is the first one
+     */
+    private static boolean appendField(StringBuilder sb, String prefix, String value, boolean first) {
+        if (value == null) {
+            return first;
+        }
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append(prefix);
+        appendEscaped(sb, value);
+        sb.append('"');
+        return false;
+    }
+
+    /**
+     * Escapes the value the same way as {@link org.json.JSONObject#quote(String)}, the quotes excepted
+     */
+    static void appendEscaped(StringBuilder sb, String value) {
+        int length = value.length();
+        int start = 0;
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String escaped = escape(c, previous);
+            previous = c;
+            if (escaped != null) {
+                sb.append(value, start, i).append(escaped);
+                start = i + 1;
+            } else if (needsUnicodeEscape(c)) {
+                sb.append(value, start, i).append("\\u")
+                        .append(HEX_DIGITS[(c >> 12) & 0xF])
+                        .append(HEX_DIGITS[(c >> 8) & 0xF])
+                        .append(HEX_DIGITS[(c >> 4) & 0xF])
+                        .append(HEX_DIGITS[c & 0xF]);
+                start = i + 1;
+            }
+        }
+        sb.append(value, start, length);
+    }
+
+    private static String escape(char c, char previous) {
+        switch (c) {
+            case '"':
+                return "\\\"";
+            case '\\':
+                return "\\\\";
+            case '/':
+                // so that "</script>" cannot end a script tag
+                return previous == '<' ? "\\/" : null;
+            case '\b':
+                return "\\b";
+            case '\t':
+                return "\\t";
+            case '\n':
+                return "\\n";
+            case '\f':
+                return "\\f";
+            case '\r':
+                return "\\r";
+            default:
+                return null;
+        }
+    }
+
+    private static boolean needsUnicodeEscape(char c) {
+        return c < 0x20 || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100);
+    }
+}
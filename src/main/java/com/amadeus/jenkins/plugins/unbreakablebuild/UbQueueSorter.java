@@ -0,0 +1,185 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.listeners.ItemListener;
+import hudson.model.queue.QueueSorter;
+import jenkins.model.Jenkins;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Ranks the unbreakable builds ahead of the other items of the Jenkins queue: each of them holds the merge queue of
+ * its target branch, while the ordinary branch and pull request builds hold nobody.
+ * <p>
+ * The unbreakable builds (and the node blocks of their pipelines) are ordered by isolation zone boost, then by the
+ * time they entered the queue. The other items keep the order given by the sorter in place before, which this one
+ * wraps. The rank of each item is computed once per sort, the sort itself is O(n log n).
+ * <p>
+ * Opt-in, see {@link UbGlobalConfiguration#isQueuePriority()}: the sorter is installed when it is enabled, the
+ * former one is restored when it is disabled.
+ */
+public final class UbQueueSorter extends QueueSorter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbQueueSorter.class);
+
+    static final int MAX_BOOST = 10_000;
+
+    // the highest priority first, the oldest unbreakable build in the queue first, then the order of the delegate
+    private static final Comparator<Ranked> ORDER = Comparator.comparingInt((Ranked ranked) -> ranked.priority)
+            .reversed()
+            .thenComparingLong(ranked -> ranked.priority > 0 ? ranked.inQueueSince : 0L)
+            .thenComparingInt(ranked -> ranked.index);
+
+    @CheckForNull
+    private final QueueSorter delegate;
+    private final Map<String, Integer> zoneBoosts;
+
+    /**
+     * @param delegate   the sorter in place before, null if none
+     * @param zoneBoosts boost of the unbreakable builds of an isolation zone, 0 for the zones not listed
+     */
+    UbQueueSorter(@CheckForNull QueueSorter delegate, Map<String, Integer> zoneBoosts) {
+        this.delegate = delegate;
+        this.zoneBoosts = zoneBoosts;
+    }
+
+    /**
+     * @return the sorter in place before, null if none
+     */
+    @CheckForNull
+    QueueSorter getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Installs the sorter, or restores the former one
+     *
+     * @param enabled    whether the unbreakable builds are ranked first
+     * @param zoneBoosts see {@link #parseZoneBoosts(String)}
+     */
+    static synchronized void configure(boolean enabled, @CheckForNull String zoneBoosts) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        Queue queue = jenkins.getQueue();
+        QueueSorter current = queue.getSorter();
+        QueueSorter former = current instanceof UbQueueSorter ? ((UbQueueSorter) current).delegate : current;
+        queue.setSorter(enabled ? new UbQueueSorter(former, parseZoneBoosts(zoneBoosts)) : former);
+    }
+
+    /**
+     * @param zoneBoosts e.g. {@code SWB2=10, SWB3=5}, the entries which are not valid are ignored
+     * @return the boost by isolation zone, from 0 to {@link #MAX_BOOST}
+     */
+    static Map<String, Integer> parseZoneBoosts(@CheckForNull String zoneBoosts) {
+        if (zoneBoosts == null || zoneBoosts.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> boosts = new HashMap<>();
+        for (String entry : zoneBoosts.split(",")) {
+            int separator = entry.indexOf('=');
+            try {
+                if (separator <= 0) {
+                    throw new NumberFormatException("no zone");
+                }
+                int boost = Integer.parseInt(entry.substring(separator + 1).trim());
+                boosts.put(entry.substring(0, separator).trim(), Math.min(Math.max(0, boost), MAX_BOOST));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Ignoring the queue boost '{}', expected zone=boost", entry.trim());
+            }
+        }
+        return Collections.unmodifiableMap(boosts);
+    }
+
+    @Override
+    public void sortBuildableItems(List<Queue.BuildableItem> buildables) {
+        if (delegate != null) {
+            delegate.sortBuildableItems(buildables);
+        }
+        Ranked[] ranked = new Ranked[buildables.size()];
+        boolean boosted = false;
+        for (int i = 0; i < ranked.length; i++) {
+            Queue.BuildableItem item = buildables.get(i);
+            int priority = priority(item.task);
+            ranked[i] = new Ranked(item, priority, i);
+            boosted |= priority > 0;
+        }
+        if (!boosted) {
+            // no unbreakable build, the order is kept
+            return;
+        }
+        Arrays.sort(ranked, ORDER);
+        for (int i = 0; i < ranked.length; i++) {
+            buildables.set(i, ranked[i].item);
+        }
+    }
+
+    @Override
+    public void sortBlockedItems(List<Queue.BlockedItem> blockedItems) {
+        if (delegate != null) {
+            delegate.sortBlockedItems(blockedItems);
+        } else {
+            super.sortBlockedItems(blockedItems);
+        }
+    }
+
+    /**
+     * @return 0 for an ordinary item, 1 plus the boost of its isolation zone for an unbreakable build
+     */
+    int priority(Queue.Task task) {
+        // the node blocks of a pipeline are owned by its job
+        Queue.Task owner = task.getOwnerTask();
+        if (!(owner instanceof Job)) {
+            return 0;
+        }
+        Job<?, ?> job = (Job<?, ?>) owner;
+        if (!UbBranchJobProperty.isKnownUnbreakable(job)) {
+            return 0;
+        }
+        String zone = UbUtils.getIsolationZoneName(job.getFullName());
+        return 1 + (zone == null ? 0 : zoneBoosts.getOrDefault(zone, 0));
+    }
+
+    /**
+     * An item and its rank
+     */
+    private static final class Ranked {
+        private final Queue.BuildableItem item;
+        private final int priority;
+        private final long inQueueSince;
+        private final int index;
+
+        private Ranked(Queue.BuildableItem item, int priority, int index) {
+            this.item = item;
+            this.priority = priority;
+            this.inQueueSince = item.getInQueueSince();
+            this.index = index;
+        }
+    }
+
+    /**
+     * Installs the sorter once the jobs are loaded, after the default sorter of Jenkins
+     */
+    @Extension
+    public static class Installer extends ItemListener {
+        @Override
+        public void onLoaded() {
+            UbGlobalConfiguration configuration = UbGlobalConfiguration.getOrNull();
+            if (configuration != null && configuration.isQueuePriority()) {
+                configure(true, configuration.getQueueZoneBoosts());
+            }
+        }
+    }
+}
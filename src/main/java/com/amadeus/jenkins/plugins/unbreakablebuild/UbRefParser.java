@@ -0,0 +1,160 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Parses the refs of the unbreakable builds, {@code <namespace><mergeRequestId>}, in a single pass and without
+ * regex: the namespace is matched on a prefix trie, then the merge request id must be made of ASCII digits only.
+ * <p>
+ * When several namespaces match (one being a prefix of another) the longest one wins.
+ * Immutable, so it can be shared by the threads.
+ */
+final class UbRefParser {
+
+    private final Node root;
+    private final List<String> namespaces;
+
+    private UbRefParser(Node root, List<String> namespaces) {
+        this.root = root;
+        this.namespaces = namespaces;
+    }
+
+    /**
+     * @param namespaces the ref prefixes of the unbreakable builds, e.g. {@code refs/ubuilds/}
+     */
+    static UbRefParser of(@Nonnull Collection<String> namespaces) {
+        Set<String> distinct = new LinkedHashSet<>();
+        Builder root = new Builder();
+        for (String namespace : namespaces) {
+            if (namespace == null || namespace.isEmpty() || !distinct.add(namespace)) {
+                continue;
+            }
+            Builder node = root;
+            for (int i = 0; i < namespace.length(); i++) {
+                node = node.children.computeIfAbsent(namespace.charAt(i), c -> new Builder());
+            }
+            node.namespace = namespace;
+        }
+        return new UbRefParser(root.build(), Collections.unmodifiableList(new ArrayList<>(distinct)));
+    }
+
+    List<String> getNamespaces() {
+        return namespaces;
+    }
+
+    /**
+     * @param ref a ref, e.g. {@code refs/ubuilds/1234}
+     * @return the unbreakable build of this ref, null if it is not the ref of an unbreakable build
+     */
+    @CheckForNull
+    UbBranchPojo parse(@Nonnull String ref) {
+        // the ends of the namespaces met along the ref, the longest last
+        int[] ends = null;
+        String[] matched = null;
+        int count = 0;
+        Node node = root;
+        int length = ref.length();
+        for (int i = 0; node != null; i++) {
+            if (node.namespace != null) {
+                if (ends == null) {
+                    ends = new int[4];
+                    matched = new String[4];
+                } else if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                    matched = Arrays.copyOf(matched, count * 2);
+                }
+                ends[count] = i;
+                matched[count++] = node.namespace;
+            }
+            node = i < length ? node.child(ref.charAt(i)) : null;
+        }
+        for (int m = count - 1; m >= 0; m--) {
+            if (isNumber(ref, ends[m])) {
+                return new UbBranchPojo(ref, matched[m], ref.substring(ends[m]), parseLong(ref, ends[m]));
+            }
+        }
+        return null;
+    }
+
+    private static boolean isNumber(String ref, int from) {
+        int length = ref.length();
+        if (from >= length) {
+            return false;
+        }
+        for (int i = from; i < length; i++) {
+            char c = ref.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of the digits, -1 if it does not fit in a long
+     */
+    private static long parseLong(String ref, int from) {
+        long value = 0;
+        for (int i = from; i < ref.length(); i++) {
+            int digit = ref.charAt(i) - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * A node of the trie, its children sorted by character
+     */
+    private static final class Node {
+        private final char[] keys;
+        private final Node[] children;
+        private final String namespace;
+
+        private Node(char[] keys, Node[] children, String namespace) {
+            this.keys = keys;
+            this.children = children;
+            this.namespace = namespace;
+        }
+
+        @CheckForNull
+        Node child(char c) {
+            // a handful of children at most, a linear scan is the fastest
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Builder {
+        private final Map<Character, Builder> children = new TreeMap<>();
+        private String namespace;
+
+        Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                nodes[i++] = child.getValue().build();
+            }
+            return new Node(keys, nodes, namespace);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Shows the state of the notifications sent to Bitbucket in "Manage Jenkins"
+ */
+@Extension
+public class UbStatusLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Unbreakable Build";
+    }
+
+    @Override
+    public String getDescription() {
+        return "State of the notifications sent to Bitbucket";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "unbreakable-build";
+    }
+
+    @Nonnull
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public Collection<UbHostGuard> getHostGuards() {
+        List<UbHostGuard> guards = new ArrayList<>(UbHostGuard.all());
+        guards.sort(Comparator.comparing(UbHostGuard::getHost));
+        return guards;
+    }
+
+    public UbNotificationOutbox getOutbox() {
+        return UbNotificationOutbox.get();
+    }
+
+    public UbCredentialsCache getCredentialsCache() {
+        return UbCredentialsCache.get();
+    }
+
+    public UbListenerExecutor getListenerExecutor() {
+        return UbListenerExecutor.get();
+    }
+}
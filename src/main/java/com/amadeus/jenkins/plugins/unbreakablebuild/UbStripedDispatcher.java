@@ -0,0 +1,212 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.util.SystemProperties;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>
+ * Orders the notifications sent to Bitbucket.
+ * <p>
+ * The notifications are dispatched on stripes, one per Bitbucket repository: they are sent one after the other
+ * within a stripe, and in parallel across the stripes, so that a slow repository does not stall the others.
+ * <p>
+ * Each notification of a merge request is ranked by a sequence number when it is prepared. A notification
+ * outranked by one already sent for the same merge request (e.g. a late retry of a FAILURE, after the SUCCESS of a
+ * later build) is superseded: it is dropped instead of being sent.
+ */
+final class UbStripedDispatcher implements UbNotificationOutbox.Sender {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbStripedDispatcher.class);
+
+    static final int MAX_MERGE_REQUESTS =
+            SystemProperties.getInteger(UbStripedDispatcher.class.getName() + ".maxMergeRequests", 10_000);
+
+    private static final UbStripedDispatcher INSTANCE =
+            new UbStripedDispatcher(UbHostGuard::send, MAX_MERGE_REQUESTS, System::currentTimeMillis);
+
+    private final UbNotificationOutbox.Sender delegate;
+    private final LongSupplier clock;
+
+    // guarded by this
+    private final Map<String, Stripe> stripes = new HashMap<>();
+    // guarded by this, last sequence given and last sequence sent by merge request, the oldest ones are forgotten
+    private final Map<String, Long> issued;
+    private final Map<String, Long> sent;
+
+    /**
+     * @param delegate          sends the notifications of the stripes
+     * @param maxMergeRequests  number of merge requests whose sequence is remembered
+     * @param clock             current time in milliseconds, the sequences start from it
+     */
+    UbStripedDispatcher(UbNotificationOutbox.Sender delegate, int maxMergeRequests, LongSupplier clock) {
+        this.delegate = delegate;
+        this.clock = clock;
+        this.issued = lru(maxMergeRequests);
+        this.sent = lru(maxMergeRequests);
+    }
+
+    static UbStripedDispatcher get() {
+        return INSTANCE;
+    }
+
+    private static Map<String, Long> lru(int maxSize) {
+        return new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * The sequences are taken from the clock (but always increase), so that they keep increasing when Jenkins
+     * restarts and replays the older notifications.
+     *
+     * @return the sequence number of the next notification of the merge request
+     */
+    synchronized long nextSequence(String bitbucketUrl, String projectKey, String repositorySlug,
+                                   String mergeRequestId) {
+        String key = mergeRequestKey(stripeKey(bitbucketUrl, projectKey, repositorySlug), mergeRequestId);
+        long sequence = Math.max(issued.getOrDefault(key, 0L) + 1, clock.getAsLong());
+        issued.put(key, sequence);
+        return sequence;
+    }
+
+    /**
+     * Sends the notification once the previous ones of its stripe got their answer
+     *
+     * @param notification the notification
+     * @param credentials  bitbucket credentials
+     * @return the future result
+     */
+    @Override
+    public CompletableFuture<UbUtils.BitbucketQueryResult> send(
+            UbNotification notification, UsernamePasswordCredentials credentials) {
+        String key = stripeKey(notification.getBitbucketUrl(), notification.getProjectKey(),
+                notification.getRepositorySlug());
+        Task task = new Task(notification, credentials);
+        Stripe stripe;
+        synchronized (this) {
+            stripe = stripes.computeIfAbsent(key, k -> new Stripe());
+            stripe.queue.add(task);
+            if (stripe.busy) {
+                return task.result;
+            }
+            stripe.busy = true;
+        }
+        drain(key, stripe);
+        return task.result;
+    }
+
+    /**
+     * Sends the notifications of the stripe one by one, without holding a thread while one is in flight
+     */
+    private void drain(String key, Stripe stripe) {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = stripe.queue.poll();
+                if (task == null) {
+                    stripe.busy = false;
+                    stripes.remove(key);
+                    return;
+                }
+            }
+            CompletableFuture<UbUtils.BitbucketQueryResult> dispatched = dispatch(key, task);
+            if (!dispatched.isDone()) {
+                dispatched.whenComplete((bbResult, t) -> drain(key, stripe));
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<UbUtils.BitbucketQueryResult> dispatch(String stripeKey, Task task) {
+        UbNotification notification = task.notification;
+        Long supersededBy = supersededBy(stripeKey, notification);
+        if (supersededBy != null) {
+            LOGGER.info("{} is superseded by the notification {} of its merge request, dropped",
+                    notification, supersededBy);
+            task.result.complete(UbUtils.BitbucketQueryResult.superseded(
+                    "Superseded by a later notification of merge request " + notification.getMergeRequestId()));
+            return task.result;
+        }
+        CompletableFuture<UbUtils.BitbucketQueryResult> sending;
+        try {
+            sending = delegate.send(notification, task.credentials);
+        } catch (RuntimeException e) {
+            sending = new CompletableFuture<>();
+            sending.completeExceptionally(e);
+        }
+        return sending.whenComplete((bbResult, t) -> {
+            if (t == null) {
+                task.result.complete(bbResult);
+            } else {
+                task.result.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Records the notification as the last one sent of its merge request, unless a later one was already sent
+     *
+     * @return the sequence of the later notification, null if this one can be sent
+     */
+    @CheckForNull
+    private synchronized Long supersededBy(String stripeKey, UbNotification notification) {
+        if (notification.getMergeRequestId() == null) {
+            return null;
+        }
+        String key = mergeRequestKey(stripeKey, notification.getMergeRequestId());
+        Long last = sent.get(key);
+        if (last != null && last > notification.getSequence()) {
+            return last;
+        }
+        sent.put(key, notification.getSequence());
+        return null;
+    }
+
+    /**
+     * @return the number of stripes having notifications in flight or waiting
+     */
+    synchronized int getActiveStripes() {
+        return stripes.size();
+    }
+
+    static String stripeKey(String bitbucketUrl, String projectKey, String repositorySlug) {
+        return UbHttpClients.normalize(bitbucketUrl) + '/' + projectKey + '/' + repositorySlug;
+    }
+
+    private static String mergeRequestKey(String stripeKey, String mergeRequestId) {
+        return stripeKey + '#' + mergeRequestId;
+    }
+
+    /**
+     * Notifications of one repository, sent one at a time
+     */
+    private static final class Stripe {
+        private final Deque<Task> queue = new ArrayDeque<>();
+        private boolean busy;
+    }
+
+    private static final class Task {
+        private final UbNotification notification;
+        private final UsernamePasswordCredentials credentials;
+        private final CompletableFuture<UbUtils.BitbucketQueryResult> result = new CompletableFuture<>();
+
+        private Task(UbNotification notification, UsernamePasswordCredentials credentials) {
+            this.notification = notification;
+            this.credentials = credentials;
+        }
+    }
+}
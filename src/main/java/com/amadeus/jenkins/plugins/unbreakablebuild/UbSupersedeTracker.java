@@ -0,0 +1,287 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
+import jenkins.scm.api.SCMRevisionAction;
+import jenkins.util.SystemProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Aborts the unbreakable builds superseded by a newer build of the same merge request: when a merge request is
+ * queued again, the former build no longer holds its executors until it completes.
+ * <p>
+ * The active builds are indexed by Bitbucket repository and merge request, in memory. The index is rebuilt from
+ * the running builds the first time it is used after a restart. The builds of the jobs tagged as not unbreakable
+ * builds are not tracked, the environment of the other ones is computed by a worker of the tracker (which tags the
+ * jobs not known yet), and the starting builds are not tracked when it lags behind. A superseded build is claimed
+ * before it is interrupted (with the NOT_BUILT result, like the builds aborted by a newer one of the same job), so
+ * Bitbucket is not notified of it; a build Bitbucket has already been notified of is left alone. It can be
+ * disabled with the system property
+ * {@code com.amadeus.jenkins.plugins.unbreakablebuild.UbSupersedeTracker.disabled}.
+ */
+public final class UbSupersedeTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UbSupersedeTracker.class);
+
+    static final boolean DISABLED = SystemProperties.getBoolean(UbSupersedeTracker.class.getName() + ".disabled");
+
+    static final String CLAIM_NAME = "UbSupersedeTracker";
+
+    static final int QUEUE_SIZE = SystemProperties.getInteger(UbSupersedeTracker.class.getName() + ".queueSize", 100);
+
+    // the starting builds, dropped when the queue is full: they are just not aborted when superseded
+    private static final ThreadPoolExecutor WORKER = newWorker();
+
+    private static final UbSupersedeTracker INSTANCE = new UbSupersedeTracker();
+
+    // active build by merge request
+    private final Map<String, Active> active = new ConcurrentHashMap<>();
+    private volatile boolean rebuilt;
+
+    UbSupersedeTracker() {
+    }
+
+    static UbSupersedeTracker get() {
+        return INSTANCE;
+    }
+
+    private static ThreadPoolExecutor newWorker() {
+        ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                new NamingThreadFactory(new DaemonThreadFactory(), UbSupersedeTracker.class.getSimpleName()),
+                new ThreadPoolExecutor.DiscardPolicy());
+        worker.allowCoreThreadTimeOut(true);
+        return worker;
+    }
+
+    /**
+     * @return the merge request of the build, null if its ref is not the one of an unbreakable build
+     */
+    @CheckForNull
+    static String key(UbContextAction context) {
+        UbBranchPojo ubPojo = UbBranchPojo.fromUbBranchName(context.getRefSpec());
+        if (ubPojo == null) {
+            return null;
+        }
+        return UbStripedDispatcher.stripeKey(context.getBitbucketUrl(), context.getProjectKey(),
+                context.getRepositorySlug()) + '#' + ubPojo.getMergeRequestId();
+    }
+
+    /**
+     * Records the build as the active one of its merge request
+     *
+     * @param key       the merge request
+     * @param runId     externalizable id of the build
+     * @param startTime when the build started, in milliseconds
+     * @return the id of the build superseded, null if none: the former build of the merge request, or this build
+     * itself if it is older than the one already active
+     */
+    @CheckForNull
+    String track(String key, String runId, long startTime) {
+        Active candidate = new Active(runId, startTime);
+        String[] superseded = new String[1];
+        active.merge(key, candidate, (current, newer) -> {
+            if (current.runId.equals(newer.runId)) {
+                return current;
+            }
+            if (newer.startTime < current.startTime) {
+                superseded[0] = newer.runId;
+                return current;
+            }
+            superseded[0] = current.runId;
+            return newer;
+        });
+        return superseded[0];
+    }
+
+    /**
+     * Forgets the build, if it is still the active one of its merge request
+     */
+    void untrack(String key, String runId) {
+        active.computeIfPresent(key, (k, current) -> current.runId.equals(runId) ? null : current);
+    }
+
+    /**
+     * @return the id of the active build of the merge request, null if none
+     */
+    @CheckForNull
+    String getActive(String key) {
+        Active current = active.get(key);
+        return current == null ? null : current.runId;
+    }
+
+    int getActiveCount() {
+        return active.size();
+    }
+
+    private void started(Run<?, ?> run, UbContextAction context) {
+        String key = key(context);
+        if (key == null) {
+            return;
+        }
+        rebuildOnce();
+        String runId = run.getExternalizableId();
+        String superseded = track(key, runId, run.getStartTimeInMillis());
+        if (superseded != null) {
+            abort(superseded, runId.equals(superseded) ? getActive(key) : runId);
+        }
+    }
+
+    /**
+     * Indexes the running unbreakable builds, the index is empty after a restart
+     */
+    private void rebuildOnce() {
+        if (rebuilt) {
+            return;
+        }
+        synchronized (this) {
+            if (rebuilt) {
+                return;
+            }
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins != null) {
+                for (Computer computer : jenkins.getComputers()) {
+                    for (Executor executor : computer.getAllExecutors()) {
+                        Queue.Executable executable = executor.getCurrentExecutable();
+                        if (executable instanceof Run) {
+                            Run<?, ?> run = (Run<?, ?>) executable;
+                            UbContextAction context = run.getAction(UbContextAction.class);
+                            String key = context == null ? null : key(context);
+                            if (key != null) {
+                                track(key, run.getExternalizableId(), run.getStartTimeInMillis());
+                            }
+                        }
+                    }
+                }
+            }
+            rebuilt = true;
+        }
+    }
+
+    /**
+     * Claims the superseded build, so that Bitbucket is not notified of it, and interrupts it
+     *
+     * @param supersededBy the newer build
+     */
+    private static void abort(String runId, String supersededBy) {
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        if (run == null || !run.isBuilding()) {
+            return;
+        }
+        UbAction claim = UbAction.claim(run, CLAIM_NAME, runId);
+        if (!claim.isClaimedBy(runId)) {
+            // its outcome is on its way to Bitbucket, it is let complete
+            LOGGER.info("{} is superseded by {}, but Bitbucket has already been notified by {}", runId,
+                    supersededBy, claim.getClaimedBy());
+            return;
+        }
+        Executor executor = run.getExecutor();
+        if (executor != null) {
+            LOGGER.info("Aborting {}, superseded by {}", runId, supersededBy);
+            executor.interrupt(Result.NOT_BUILT, new Superseded(supersededBy));
+        }
+    }
+
+    /**
+     * The build has been superseded by a newer build of its merge request
+     */
+    public static final class Superseded extends CauseOfInterruption {
+        private static final long serialVersionUID = 1L;
+
+        private final String supersededBy;
+
+        Superseded(String supersededBy) {
+            this.supersededBy = supersededBy;
+        }
+
+        public String getSupersededBy() {
+            return supersededBy;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Unbreakable build superseded by " + supersededBy;
+        }
+    }
+
+    /**
+     * The active build of a merge request
+     */
+    private static final class Active {
+        private final String runId;
+        private final long startTime;
+
+        private Active(String runId, long startTime) {
+            this.runId = runId;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * Tracks the unbreakable builds from their start to their completion
+     */
+    @Extension
+    public static class Listener extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            // the jobs not known yet are tagged by their first run, the environment is not computed again afterwards
+            if (DISABLED
+                    || Boolean.FALSE.equals(UbBranchJobProperty.isUnbreakable(run.getParent()))
+                    || run.getAction(SCMRevisionAction.class) == null) {
+                return;
+            }
+            // the environment is not computed by the thread starting the build
+            WORKER.execute(() -> {
+                try {
+                    UbContextAction context = run.getAction(UbContextAction.class);
+                    if (context == null) {
+                        EnvVars environment = run.getEnvironment(listener);
+                        if (!UbJenkinsEnvBean.isUnbreakableBuild(environment)) {
+                            UbBranchJobProperty.tag(run.getParent(), false);
+                            return;
+                        }
+                        // kept with the run: the index is rebuilt from it, the verbs do not compute it again
+                        context = UbJenkinsEnvBean.snapshot(run, environment);
+                    }
+                    get().started(run, context);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Unable to track the unbreakable build {}: {}", run, e.toString());
+                }
+            });
+        }
+
+        @Override
+        public void onFinalized(@Nonnull Run<?, ?> run) {
+            UbContextAction context = run.getAction(UbContextAction.class);
+            String key = context == null ? null : key(context);
+            if (key != null) {
+                get().untrack(key, run.getExternalizableId());
+            }
+        }
+    }
+}
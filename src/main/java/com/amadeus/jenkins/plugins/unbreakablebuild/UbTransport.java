@@ -0,0 +1,51 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.UsernamePasswordCredentials;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * How the notifications go over the wire, chosen per Bitbucket server (see {@link UbBitbucketServer#getTransport()}).
+ * <p>
+ * Whatever the http client used, the responses are given to the readers as bounded apache {@link HttpResponse}s,
+ * so that they are read the same way.
+ */
+interface UbTransport {
+
+    /**
+     * Posts a json payload to bitbucket, without blocking the calling thread.
+     *
+     * @param server         the settings of the bitbucket
+     * @param url            url on which the request must be sent
+     * @param payload        the json payload
+     * @param credentials    the credentials, sent preemptively
+     * @param idempotencyKey sent as {@link UbUtils#IDEMPOTENCY_KEY_HEADER} header, if not null
+     * @param responseReader reads the response of bitbucket
+     * @param errorReader    transforms the errors (invalid url, IO) into a result
+     * @return A future result. The future never completes exceptionally
+     */
+    <T> CompletableFuture<T> post(UbBitbucketServer server, String url, String payload,
+                                  UsernamePasswordCredentials credentials, String idempotencyKey,
+                                  Function<HttpResponse, T> responseReader, Function<Exception, T> errorReader);
+
+    /**
+     * Posts several json payloads to the same bitbucket, sharing one connection as much as the protocol allows.
+     *
+     * @param server         the settings of the bitbucket
+     * @param urls           urls on which the requests must be sent, all on the same host
+     * @param payloads       the payloads, in the order of the urls
+     * @param credentials    the credentials, sent preemptively
+     * @param idempotencyKeys the idempotency keys (null items allowed), in the order of the urls
+     * @param responseReader reads the responses of bitbucket
+     * @param errorReader    transforms the errors (invalid url, IO) into results
+     * @return the future results, in the order of the urls. The future never completes exceptionally
+     */
+    <T> CompletableFuture<List<T>> postAll(UbBitbucketServer server, List<String> urls, List<String> payloads,
+                                           UsernamePasswordCredentials credentials, List<String> idempotencyKeys,
+                                           Function<HttpResponse, T> responseReader,
+                                           Function<Exception, T> errorReader);
+}
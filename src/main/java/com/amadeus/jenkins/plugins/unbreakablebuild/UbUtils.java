@@ -1,5 +1,6 @@
 package com.amadeus.jenkins.plugins.unbreakablebuild;
 
+import hudson.Util;
 import hudson.model.Failure;
 import hudson.model.ItemGroup;
 import hudson.model.Result;
@@ -8,41 +9,41 @@ import jenkins.branch.Branch;
 import jenkins.scm.api.SCMSource;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.AuthCache;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ContentType;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty;
 import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.UnsupportedCharsetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /*
 
@@ -54,6 +55,15 @@ final class UbUtils {
 
     private static final Charset UTF8_CHARSET = StandardCharsets.UTF_8;
 
+    private static final String NO_MESSAGE = "! no messages !";
+
+    /**
+     * Header holding the idempotency key of a notification, so that bitbucket recognizes the duplicates
+     */
+    static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    private static final String INVALID_URL_MESSAGE = "The Bitbucket URL provided is not valid, aborting notification";
+
     private UbUtils() {
         // to prevent init
     }
@@ -71,11 +81,28 @@ final class UbUtils {
         private int statusCode;
         private String message;
         private Exception exception;
+        private long retryAfterMillis;
+        private boolean superseded;
 
         BitbucketQueryResult(int statusCode, String message, Exception exception) {
+            this(statusCode, message, exception, -1);
+        }
+
+        BitbucketQueryResult(int statusCode, String message, Exception exception, long retryAfterMillis) {
             this.statusCode = statusCode;
             this.message = message;
             this.exception = exception;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * @param message why the notification was not sent
+         * @return the outcome of a notification dropped because a later one of its merge request was sent
+         */
+        static BitbucketQueryResult superseded(String message) {
+            BitbucketQueryResult superseded = new BitbucketQueryResult(-1, message, null);
+            superseded.superseded = true;
+            return superseded;
         }
 
         int getStatusCode() {
@@ -89,6 +116,20 @@ final class UbUtils {
         Exception getException() {
             return exception;
         }
+
+        /**
+         * @return the delay asked by bitbucket through the Retry-After header, -1 if none
+         */
+        long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        /**
+         * @return whether the notification was dropped without being sent, Bitbucket did not answer it
+         */
+        boolean isSuperseded() {
+            return superseded;
+        }
     }
 
     /**
@@ -109,93 +150,202 @@ final class UbUtils {
         //    "mergeRequestId": "1",
         //    "result": "FAILURE|SUCCESS"
         //  }
-        Map<String, String> jsonInternal = new HashMap<>();
-        jsonInternal.put("jobUrl", jobUrl);
-        jsonInternal.put("isolationZone", isolationZone);
-        jsonInternal.put("mergeRequestId", mergeRequestId);
-        jsonInternal.put("result", buildStatus);
-        return new JSONObject(jsonInternal).toString();
+        return UbPayloadEncoder.encode(jobUrl, isolationZone, mergeRequestId, buildStatus);
     }
 
     /**
-     * Will send the notification to bitbucket
+     * Same as {@link #generateBitbucketPayload(String, String, String, String)}, with the idempotency key of the
+     * notification as last field
+     */
+    static String generateBitbucketPayload(
+            String jobUrl, String isolationZone, String mergeRequestId, String buildStatus, String idempotencyKey) {
+        return UbPayloadEncoder.encode(jobUrl, isolationZone, mergeRequestId, buildStatus, idempotencyKey);
+    }
+
+    /**
+     * The idempotency key of a notification: the same run notifying the same status on the same commit
+     * always gets the same key, whichever verb, retry or restart sends it.
      *
+     * @param runId       externalizable id of the run
+     * @param commitId    the commit notified
+     * @param buildStatus either SUCCESS of FAILURE
+     * @return the sha-256 of the three, in hexadecimal
+     */
+    static String generateIdempotencyKey(String runId, String commitId, String buildStatus) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // the separator keeps ("a", "bc") and ("ab", "c") apart
+            digest.update(String.join("\n", runId, commitId, buildStatus).getBytes(UTF8_CHARSET));
+            return Util.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-256
+            throw new UbTechnicalException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Will send the notification to bitbucket, through the pooled client of this bitbucket,
+     * without blocking the calling thread.
+     *
+     * @param bitbucketUrl                base url of bitbucket, used to pick the http client
      * @param url                         url on which the request must be sent
      * @param payload                     status:success/failure, others ...
      * @param usernamePasswordCredentials The credentials
-     * @return A BitbucketQueryResult containing: status code, message, and exceptions
+     * @param idempotencyKey              sent as {@link #IDEMPOTENCY_KEY_HEADER} header, if not null
+     * @return A future BitbucketQueryResult containing: status code, message, and exceptions.
+     * The future never completes exceptionally (the exceptions are held by the BitbucketQueryResult)
      */
-    static BitbucketQueryResult sendBitbucketNotification(
-            String url, String payload, UsernamePasswordCredentials usernamePasswordCredentials) {
+    static CompletableFuture<BitbucketQueryResult> sendBitbucketNotificationAsync(
+            String bitbucketUrl, String url, String payload, UsernamePasswordCredentials usernamePasswordCredentials,
+            String idempotencyKey) {
+        return sendBitbucketPostAsync(bitbucketUrl, url, payload, usernamePasswordCredentials, idempotencyKey,
+                UbUtils::readBitbucketResponse, UbUtils::failedBitbucketQueryResult);
+    }
 
-        int returnCode = -1;
-        String message = "! no messages !";
-        Exception maybeException = null;
-        String requestStringResult = "";
+    /**
+     * Posts a json payload to bitbucket, through the transport configured for this bitbucket,
+     * without blocking the calling thread.
+     *
+     * @param bitbucketUrl                base url of bitbucket, used to pick the settings and the http client
+     * @param url                         url on which the request must be sent
+     * @param payload                     the json payload
+     * @param usernamePasswordCredentials The credentials
+     * @param idempotencyKey              sent as {@link #IDEMPOTENCY_KEY_HEADER} header, if not null
+     * @param responseReader              reads the response of bitbucket
+     * @param errorReader                 transforms the errors (invalid url, IO) into a result
+     * @return A future result. The future never completes exceptionally
+     */
+    static <T> CompletableFuture<T> sendBitbucketPostAsync(
+            String bitbucketUrl, String url, String payload, UsernamePasswordCredentials usernamePasswordCredentials,
+            String idempotencyKey, Function<HttpResponse, T> responseReader, Function<Exception, T> errorReader) {
+        UbBitbucketServer server = UbGlobalConfiguration.resolve(bitbucketUrl);
+        long start = System.nanoTime();
+        return server.getTransport().transport().post(server, url, payload, usernamePasswordCredentials,
+                idempotencyKey, responseReader, errorReader)
+                .whenComplete((result, t) -> UbMetrics.get().httpRequest(bitbucketUrl, start));
+    }
 
-        String hostname;
-        String protocol;
-        int port;
-        try {
-            URL realUrl = new URL(url);
-            hostname = realUrl.getHost();
-            protocol = realUrl.getProtocol();
-            port = realUrl.getPort();
-        } catch (MalformedURLException e) {
-            message = "The Bitbucket URL provided is not valid, aborting notification";
-            return new BitbucketQueryResult(returnCode, message, e);
+    /**
+     * Sends several notifications to the same bitbucket on one connection:
+     * pipelined with HTTP/1.1, multiplexed with HTTP/2.
+     *
+     * @param bitbucketUrl                base url of bitbucket, used to pick the settings and the http client
+     * @param urls                        urls on which the requests must be sent, all on the same host
+     * @param payloads                    the payloads, in the order of the urls
+     * @param usernamePasswordCredentials The credentials
+     * @param idempotencyKeys             the idempotency keys (null items allowed), in the order of the urls
+     * @return the future results, in the order of the urls. The future never completes exceptionally
+     */
+    static CompletableFuture<List<BitbucketQueryResult>> sendBitbucketNotificationsPipelined(
+            String bitbucketUrl, List<String> urls, List<String> payloads,
+            UsernamePasswordCredentials usernamePasswordCredentials, List<String> idempotencyKeys) {
+        UbBitbucketServer server = UbGlobalConfiguration.resolve(bitbucketUrl);
+        long start = System.nanoTime();
+        return server.getTransport().transport().postAll(server, urls, payloads, usernamePasswordCredentials,
+                idempotencyKeys, UbUtils::readBitbucketResponse, UbUtils::failedBitbucketQueryResult)
+                .whenComplete((results, t) -> UbMetrics.get().httpBatch(bitbucketUrl, urls.size(), start));
+    }
+
+    static BitbucketQueryResult failedBitbucketQueryResult(Exception e) {
+        if (e instanceof MalformedURLException) {
+            return new BitbucketQueryResult(-1, INVALID_URL_MESSAGE, e);
         }
-        HttpHost httpHost = new HttpHost(hostname, port, protocol);
-
-
-        org.apache.http.client.CredentialsProvider credsProvider = new BasicCredentialsProvider();
-        credsProvider.setCredentials(AuthScope.ANY, usernamePasswordCredentials);
-
-        // by default, apache http client does not do
-        // preemptive auth: https://hc.apache.org/httpcomponents-client-ga/tutorial/html/authentication.html#d5e717
-        // so we force it
-        AuthCache authCache = new BasicAuthCache();
-        authCache.put(httpHost, new BasicScheme());
-        HttpClientContext context = HttpClientContext.create();
-        context.setCredentialsProvider(credsProvider);
-        context.setAuthCache(authCache);
-
-        try (CloseableHttpClient cli = HttpClientBuilder
-                .create()
-                .build()) {
-            HttpPost post = new HttpPost(url);
-
-            post.setHeader("Content-type", "application/json");
-
-            // attach the payload
-            post.setEntity(new StringEntity(payload, UTF8_CHARSET));
-
-            // execute http call
-            try (CloseableHttpResponse res = cli.execute(post, context)) {
-                // save return code
-                returnCode = res.getStatusLine().getStatusCode();
-
-                // manage payload
-                HttpEntity httpEntity = res.getEntity();
-                try (InputStream inputStream = httpEntity.getContent()) {
-                    requestStringResult = IOUtils.toString(inputStream, UTF8_CHARSET);
-                }
-                JSONObject obj = new JSONObject(requestStringResult);
-                message = obj.getString("message");
-            }
+        return new BitbucketQueryResult(-1, NO_MESSAGE, e);
+    }
+
+    /**
+     * Reads the status code and the message of a Bitbucket response
+     *
+     * @param res the http response
+     * @return A BitbucketQueryResult containing: status code, message, and exceptions
+     */
+    static BitbucketQueryResult readBitbucketResponse(HttpResponse res) {
+        // save return code
+        int returnCode = res.getStatusLine().getStatusCode();
+        long retryAfterMillis = getRetryAfterMillis(res);
+
+        // the payload has already been bounded (and the connection released) by the UbBoundedResponseConsumer
+        HttpEntity httpEntity = res.getEntity();
+        ContentType contentType = getContentType(httpEntity);
+        if (!UbBoundedResponseConsumer.isJson(contentType)) {
+            return new BitbucketQueryResult(returnCode,
+                    "Unexpected Bitbucket response content type: " + contentType.getMimeType(), null, retryAfterMillis);
+        }
+        try (Reader reader = getContentReader(httpEntity, contentType)) {
+            JSONObject obj = new JSONObject(new JSONTokener(reader));
+            return new BitbucketQueryResult(returnCode, obj.getString("message"), null, retryAfterMillis);
         } catch (IOException e) {
             LOGGER.error("Issue while notifying Bitbucket", e);
-            maybeException = e;
+            return new BitbucketQueryResult(returnCode, NO_MESSAGE, e, retryAfterMillis);
         } catch (JSONException e) {
+            String requestStringResult = getContentAsString(httpEntity, contentType);
             LOGGER.error(String.format("Issue with the Bitbucket response payload: %s", requestStringResult), e);
-            message = requestStringResult;
-            maybeException = e;
+            return new BitbucketQueryResult(returnCode, requestStringResult, e, retryAfterMillis);
+        }
+    }
+
+    /**
+     * @return the content type of the entity, null if there is none (or if it cannot be parsed)
+     */
+    static ContentType getContentType(HttpEntity httpEntity) {
+        if (httpEntity == null) {
+            return null;
+        }
+        try {
+            return ContentType.get(httpEntity);
+        } catch (ParseException | UnsupportedCharsetException e) {
+            LOGGER.debug("Invalid content type in the Bitbucket response", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a reader on the content of the entity, empty if there is no entity
+     */
+    static Reader getContentReader(HttpEntity httpEntity, ContentType contentType) throws IOException {
+        if (httpEntity == null) {
+            return new StringReader("");
+        }
+        Charset charset = contentType == null || contentType.getCharset() == null
+                ? UTF8_CHARSET : contentType.getCharset();
+        return new InputStreamReader(httpEntity.getContent(), charset);
+    }
+
+    /**
+     * @return the content of an in memory entity, for the logs and the error messages
+     */
+    static String getContentAsString(HttpEntity httpEntity, ContentType contentType) {
+        try (Reader reader = getContentReader(httpEntity, contentType)) {
+            return IOUtils.toString(reader);
+        } catch (IOException e) {
+            return NO_MESSAGE;
         }
-        return new BitbucketQueryResult(returnCode, message, maybeException);
     }
 
     /**
-     * both implementations from Git And Bitbucket has their classes have the getCredentialsId method
+     * The Retry-After header is either a number of seconds, or an http date
+     *
+     * @return the delay in milliseconds, -1 if there is no (valid) header
+     */
+    static long getRetryAfterMillis(HttpResponse res) {
+        Header header = res.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null || StringUtils.isBlank(header.getValue())) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        if (StringUtils.isNumeric(value)) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * both implementations from Git And Bitbucket has their classes have the getCredentialsId method,
+     * see {@link UbCredentialsIdAccessor}
      *
      * @param run jenkins run
      * @return an optional String
@@ -223,24 +373,7 @@ final class UbUtils {
             return Optional.empty();
         }
 
-        try {
-            Method method =
-                    scmSource.getClass().getMethod("getCredentialsId", (Class<?>[]) null);
-            // method cannot be null
-            String credentialsId = (String) method.invoke(scmSource);
-            if (credentialsId != null) {
-                return Optional.of(credentialsId);
-            }
-        } catch (
-                NoSuchMethodException
-                        | SecurityException
-                        | IllegalAccessException
-                        | IllegalArgumentException
-                        | InvocationTargetException e) {
-            LOGGER.error("We weren't able to get the getCredentialsId method "
-                    + "from the scm found in the job", e);
-        }
-        return Optional.empty();
+        return Optional.ofNullable(UbCredentialsIdAccessor.credentialsIdOf(scmSource));
     }
 
     /**
@@ -266,15 +399,18 @@ final class UbUtils {
         if (run == null) {
             return null;
         }
-        com.cloudbees.plugins.credentials.common.StandardUsernameCredentials credentials =
-                com.cloudbees.plugins.credentials.CredentialsProvider.findCredentialById(
-                        credentialId,
-                        com.cloudbees.plugins.credentials.common.StandardUsernameCredentials.class,
-                        run);
-        if (credentials instanceof com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) {
-            return (com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) credentials;
-        }
-        return null;
+        // the lookup goes through all the credentials providers and stores, it is cached per multibranch source
+        return UbCredentialsCache.get().get(run, credentialId, () -> {
+            com.cloudbees.plugins.credentials.common.StandardUsernameCredentials credentials =
+                    com.cloudbees.plugins.credentials.CredentialsProvider.findCredentialById(
+                            credentialId,
+                            com.cloudbees.plugins.credentials.common.StandardUsernameCredentials.class,
+                            run);
+            if (credentials instanceof com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) {
+                return (com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) credentials;
+            }
+            return null;
+        });
     }
 
     /**
@@ -284,10 +420,19 @@ final class UbUtils {
     static org.apache.http.auth.UsernamePasswordCredentials
     getBitbucketCredentialsOrFail(Run<?, ?> run, PrintStream jenkinsLogger) {
         // find which credentialId were used
-        String credIdToUse = extractCredentialsFromRunScmOrThrowFailure(run);
-        // ask jenkins the credentials corresponding to the credentialsId
-        com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials creds =
-                getJenkinsUsernamePasswordCredentials(run, credIdToUse);
+        long start = System.nanoTime();
+        UbEvents.CredentialResolution event = new UbEvents.CredentialResolution();
+        event.begin();
+        String credIdToUse;
+        com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials creds;
+        try {
+            credIdToUse = extractCredentialsFromRunScmOrThrowFailure(run);
+            // ask jenkins the credentials corresponding to the credentialsId
+            creds = getJenkinsUsernamePasswordCredentials(run, credIdToUse);
+        } finally {
+            event.commit(run);
+        }
+        UbMetrics.get().credentialsResolved(getIsolationZoneName(run.getParent().getFullName()), start);
         if (creds == null) {
             run.setResult(Result.FAILURE);
             String message = String.format("Unbreakable Build Error - Either the credential %s cannot be found "
@@ -40,6 +40,29 @@ class MockBitbucketHelper {
         );
     }
 
+    /**
+     * Stand-in for the bulk endpoint of the ubuild REST API, answering OK to each of the notifications
+     *
+     * @param size number of notifications expected in the bulk request
+     */
+    static void stubBulkNotificationWith(WireMockRule wireMockRule, int size) {
+        StringBuilder results = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            results.append(i == 0 ? "" : ", ").append("{ \"statusCode\": 200, \"message\": \"OK\" }");
+        }
+        wireMockRule.stubFor(
+                post(
+                        urlEqualTo(UbNotificationBatcher.BULK_PATH)
+
+                ).willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-type", "application/json")
+                        .withBody("{ \"results\": [" + results + "] }")
+
+                )
+        );
+    }
+
     static void checkNotificationReceived(UbJenkinsEnvBean.Status status, String username, String password) {
         verify(
                 postRequestedFor(urlMatching("/rest/ubuild/" + UbJenkinsEnvBean.BITBUCKET_API_VERSION + "/.*"))
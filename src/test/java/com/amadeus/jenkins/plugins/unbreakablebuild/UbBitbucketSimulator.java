@@ -0,0 +1,109 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.github.tomakehurst.wiremock.common.FileSource;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.extension.Parameters;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformer;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.http.Request;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder.like;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+
+/**
+ * <p>
+ * Bitbucket ubuild endpoint simulator: answers the notifications after some latency, with some server errors and
+ * some connection resets.
+ */
+class UbBitbucketSimulator extends MockBitbucketHelper {
+
+    private static final String TRANSFORMER = "ub-bitbucket-simulator";
+
+    private final Transformer transformer;
+
+    /**
+     * @param latencyMillis mean latency, the actual one is uniformly distributed from half to one and a half of it
+     * @param errorRate     ratio of the notifications answered 503
+     * @param resetRate     ratio of the notifications whose connection is reset
+     */
+    UbBitbucketSimulator(int latencyMillis, double errorRate, double resetRate) {
+        this.transformer = new Transformer(latencyMillis, errorRate, resetRate);
+    }
+
+    /**
+     * @return the configuration of the WireMock server, with the simulator
+     */
+    WireMockConfiguration configure(WireMockConfiguration options) {
+        return options.extensions(transformer);
+    }
+
+    void stub(WireMockRule wireMockRule) {
+        wireMockRule.stubFor(post(urlMatching(BB_UB_API_REGEX)).willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("Content-type", "application/json")
+                .withBody("{ \"message\": \"Everything is OK\" }")
+                .withTransformers(TRANSFORMER)));
+    }
+
+    long getRequests() {
+        return transformer.requests.sum();
+    }
+
+    long getErrors() {
+        return transformer.errors.sum();
+    }
+
+    long getResets() {
+        return transformer.resets.sum();
+    }
+
+    private static final class Transformer extends ResponseDefinitionTransformer {
+        private final int latencyMillis;
+        private final double errorRate;
+        private final double resetRate;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder resets = new LongAdder();
+
+        private Transformer(int latencyMillis, double errorRate, double resetRate) {
+            this.latencyMillis = latencyMillis;
+            this.errorRate = errorRate;
+            this.resetRate = resetRate;
+        }
+
+        @Override
+        public ResponseDefinition transform(Request request, ResponseDefinition responseDefinition, FileSource files,
+                                            Parameters parameters) {
+            requests.increment();
+            double draw = ThreadLocalRandom.current().nextDouble();
+            int latency = latencyMillis / 2 + ThreadLocalRandom.current().nextInt(latencyMillis + 1);
+            if (draw < resetRate) {
+                resets.increment();
+                return like(responseDefinition).withFault(Fault.CONNECTION_RESET_BY_PEER).build();
+            }
+            if (draw < resetRate + errorRate) {
+                errors.increment();
+                return like(responseDefinition).withStatus(503).withFixedDelay(latency)
+                        .withBody("{ \"message\": \"Bitbucket is overloaded\" }").build();
+            }
+            return like(responseDefinition).withFixedDelay(latency).build();
+        }
+
+        @Override
+        public boolean applyGlobally() {
+            return false;
+        }
+
+        @Override
+        public String getName() {
+            return TRANSFORMER;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.entity.ContentType;
+import org.json.JSONException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbBoundedResponseConsumer Class
+ */
+public class UbBoundedResponseConsumerTest {
+
+    private static final String PATH = "/rest/ubuild/1.0/notify";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    private final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("git-user", "git-secret");
+
+    private UbUtils.BitbucketQueryResult notifyBitbucket() throws Exception {
+        String bitbucketUrl = wireMockRule.baseUrl();
+        return UbUtils.sendBitbucketNotificationAsync(bitbucketUrl, bitbucketUrl + PATH, "{}", credentials, null)
+                .get(30, TimeUnit.SECONDS);
+    }
+
+    private void stub(int status, String contentType, String body) {
+        wireMockRule.stubFor(post(urlEqualTo(PATH)).willReturn(aResponse()
+                .withStatus(status)
+                .withHeader("Content-type", contentType)
+                .withBody(body)));
+    }
+
+    @Test
+    public void readsTheMessage() throws Exception {
+        stub(200, "application/json;charset=UTF-8", "{ \"message\": \"Merged\" }");
+
+        UbUtils.BitbucketQueryResult result = notifyBitbucket();
+
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(result.getMessage()).isEqualTo("Merged");
+        assertThat(result.getException()).isNull();
+    }
+
+    @Test
+    public void doesNotParseHtml() throws Exception {
+        stub(502, "text/html", "<html><body>Bad Gateway</body></html>");
+
+        UbUtils.BitbucketQueryResult result = notifyBitbucket();
+
+        assertThat(result.getStatusCode()).isEqualTo(502);
+        assertThat(result.getMessage()).isEqualTo("Unexpected Bitbucket response content type: text/html");
+        assertThat(result.getException()).isNull();
+    }
+
+    @Test
+    public void boundsTheBody() throws Exception {
+        String message = StringUtils.repeat("x", 2 * UbBoundedResponseConsumer.MAX_BODY_BYTES);
+        stub(200, "application/json", "{ \"message\": \"" + message + "\" }");
+
+        UbUtils.BitbucketQueryResult result = notifyBitbucket();
+
+        // truncated, so not valid json anymore
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(result.getException()).isInstanceOf(JSONException.class);
+        assertThat(result.getMessage()).hasSize(UbBoundedResponseConsumer.MAX_BODY_BYTES);
+
+        // the connection is still usable
+        stub(200, "application/json", "{ \"message\": \"Merged\" }");
+        assertThat(notifyBitbucket().getMessage()).isEqualTo("Merged");
+    }
+
+    @Test
+    public void closesTheConnectionOnHugeBodies() throws Exception {
+        stub(502, "text/html", StringUtils.repeat("x", (int) UbBoundedResponseConsumer.MAX_DRAINED_BYTES * 2));
+
+        UbUtils.BitbucketQueryResult result = notifyBitbucket();
+
+        assertThat(result.getStatusCode()).isEqualTo(502);
+        assertThat(result.getMessage()).isEqualTo("Unexpected Bitbucket response content type: text/html");
+    }
+
+    @Test
+    public void isJson() {
+        assertThat(UbBoundedResponseConsumer.isJson(null)).isTrue();
+        assertThat(UbBoundedResponseConsumer.isJson(ContentType.APPLICATION_JSON)).isTrue();
+        assertThat(UbBoundedResponseConsumer.isJson(ContentType.create("application/vnd.api+json"))).isTrue();
+        assertThat(UbBoundedResponseConsumer.isJson(ContentType.TEXT_HTML)).isFalse();
+    }
+}
@@ -0,0 +1,81 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.model.Job;
+import jenkins.scm.api.SCMHead;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>
+ * TestClass for UbBranchJobProperty Class
+ */
+public class UbBranchJobPropertyTest {
+
+    private final Job<?, ?> job = mock(Job.class);
+
+    @Test
+    public void isUnbreakableHead() {
+        assertThat(UbBranchJobProperty.isUnbreakableHead(new SCMHead("refs/ubuilds/12"))).isTrue();
+        assertThat(UbBranchJobProperty.isUnbreakableHead(new SCMHead("master"))).isFalse();
+        assertThat(UbBranchJobProperty.isUnbreakableHead(new SCMHead("refs/ubuilds/x"))).isFalse();
+    }
+
+    @Test
+    public void unknownUntilTagged() {
+        assertThat(UbBranchJobProperty.isUnbreakable(job)).isNull();
+
+        when(job.getProperty(UbBranchJobProperty.class)).thenReturn(new UbBranchJobProperty(false));
+        assertThat(UbBranchJobProperty.isUnbreakable(job)).isFalse();
+    }
+
+    @Test
+    public void notUnbreakableIsCheckedAgain() throws Exception {
+        long stale = System.currentTimeMillis() - UbBranchJobProperty.RECHECK_MILLIS;
+        when(job.getProperty(UbBranchJobProperty.class)).thenReturn(new UbBranchJobProperty(false, stale));
+        assertThat(UbBranchJobProperty.isUnbreakable(job)).isNull();
+
+        // tagged again, even the same way
+        UbBranchJobProperty.tag(job, false);
+        verify(job).addProperty(any());
+
+        // an unbreakable build job is not
+        when(job.getProperty(UbBranchJobProperty.class)).thenReturn(new UbBranchJobProperty(true, 0));
+        assertThat(UbBranchJobProperty.isUnbreakable(job)).isTrue();
+    }
+
+    @Test
+    public void knownUnbreakable() {
+        // neither tagged, nor a branch job
+        assertThat(UbBranchJobProperty.isKnownUnbreakable(job)).isFalse();
+
+        when(job.getProperty(UbBranchJobProperty.class)).thenReturn(new UbBranchJobProperty(true));
+        assertThat(UbBranchJobProperty.isKnownUnbreakable(job)).isTrue();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void tag() throws Exception {
+        UbBranchJobProperty.tag(job, true);
+
+        ArgumentCaptor<UbBranchJobProperty> property = ArgumentCaptor.forClass(UbBranchJobProperty.class);
+        verify(job).removeProperty(UbBranchJobProperty.class);
+        verify(job).addProperty(property.capture());
+        assertThat(property.getValue().isUnbreakable()).isTrue();
+    }
+
+    @Test
+    public void alreadyTagged() throws Exception {
+        when(job.getProperty(UbBranchJobProperty.class)).thenReturn(new UbBranchJobProperty(true));
+
+        UbBranchJobProperty.tag(job, true);
+
+        verify(job, never()).addProperty(any());
+    }
+}
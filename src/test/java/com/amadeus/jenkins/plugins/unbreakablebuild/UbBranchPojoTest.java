@@ -2,6 +2,8 @@ package com.amadeus.jenkins.plugins.unbreakablebuild;
 
 import org.junit.Test;
 
+import java.util.Collections;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -43,4 +45,26 @@ public class UbBranchPojoTest {
                 UbBranchPojo.getMergeRequestIdFromUbBranchName(INVALID_UB_BRANCH_NAME);
         assertThat(result).isNull();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parsedOnce() {
+        UbBranchPojo first = UbBranchPojo.fromUbBranchName(VALID_UB_BRANCH_NAME);
+
+        assertThat(UbBranchPojo.fromUbBranchName(VALID_UB_BRANCH_NAME)).isSameAs(first);
+        assertThat(first.getMergeRequestNumber()).isEqualTo(1L);
+    }
+
+    @Test
+    public void configuredNamespaces() {
+        try {
+            UbBranchPojo.configureNamespaces(Collections.singletonList("refs/merge-queue/"));
+
+            assertThat(UbBranchPojo.getNamespaces()).containsExactly("refs/ubuilds/", "refs/merge-queue/");
+            assertThat(UbBranchPojo.getMergeRequestIdFromUbBranchName("refs/merge-queue/7")).isEqualTo("7");
+            assertThat(UbBranchPojo.getMergeRequestIdFromUbBranchName(VALID_UB_BRANCH_NAME)).isEqualTo("1");
+        } finally {
+            UbBranchPojo.configureNamespaces(Collections.emptyList());
+        }
+        assertThat(UbBranchPojo.getMergeRequestIdFromUbBranchName("refs/merge-queue/7")).isNull();
+    }
+}
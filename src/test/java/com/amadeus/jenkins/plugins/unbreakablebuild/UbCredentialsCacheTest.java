@@ -0,0 +1,92 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * <p>
+ * TestClass for UbCredentialsCache Class
+ */
+public class UbCredentialsCacheTest {
+
+    private final UsernamePasswordCredentials credentials = mock(UsernamePasswordCredentials.class);
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final AtomicInteger tracked = new AtomicInteger();
+
+    private static UbCredentialsCache.Key key(String project) {
+        return new UbCredentialsCache.Key(project, "source", "IZ_USER", "SYSTEM");
+    }
+
+    private UsernamePasswordCredentials lookup(UbCredentialsCache cache, UbCredentialsCache.Key key) {
+        return cache.get(key, () -> {
+            loads.incrementAndGet();
+            return credentials;
+        }, found -> tracked.incrementAndGet());
+    }
+
+    @Test
+    public void cachesTheCredentialsFound() {
+        UbCredentialsCache cache = new UbCredentialsCache(60_000);
+
+        assertThat(lookup(cache, key("folder/project"))).isSameAs(credentials);
+        assertThat(lookup(cache, key("folder/project"))).isSameAs(credentials);
+        assertThat(lookup(cache, key("folder/project"))).isSameAs(credentials);
+
+        assertThat(loads).hasValue(1);
+        assertThat(tracked).hasValue(2);
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHitRatePercent()).isEqualTo(66);
+    }
+
+    @Test
+    public void doesNotCacheTheMissingCredentials() {
+        UbCredentialsCache cache = new UbCredentialsCache(60_000);
+
+        cache.get(key("project"), () -> null, found -> tracked.incrementAndGet());
+        cache.get(key("project"), () -> null, found -> tracked.incrementAndGet());
+
+        assertThat(cache.getSize()).isZero();
+        assertThat(cache.getMisses()).isEqualTo(2);
+        assertThat(tracked).hasValue(0);
+    }
+
+    @Test
+    public void expires() {
+        UbCredentialsCache cache = new UbCredentialsCache(0);
+
+        lookup(cache, key("project"));
+        lookup(cache, key("project"));
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    public void invalidatesTheProjectsOfAFolder() {
+        UbCredentialsCache cache = new UbCredentialsCache(60_000);
+        lookup(cache, key("folder/project"));
+        lookup(cache, key("folder/sub/project"));
+        lookup(cache, key("folder2/project"));
+
+        cache.invalidate("folder");
+
+        assertThat(cache.getSize()).isEqualTo(1);
+        lookup(cache, key("folder2/project"));
+        assertThat(loads).hasValue(3);
+
+        cache.invalidateAll();
+        assertThat(cache.getSize()).isZero();
+    }
+
+    @Test
+    public void hitRateBeforeAnyLookup() {
+        assertThat(new UbCredentialsCache(60_000).getHitRatePercent()).isZero();
+    }
+}
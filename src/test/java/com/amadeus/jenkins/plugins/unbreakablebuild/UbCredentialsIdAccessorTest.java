@@ -0,0 +1,71 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.scm.api.SCMSource;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * <p>
+ * TestClass for UbCredentialsIdAccessor Class
+ */
+public class UbCredentialsIdAccessorTest {
+
+    public abstract static class WithCredentials extends SCMSource {
+        public String getCredentialsId() {
+            return "IZ_USER";
+        }
+    }
+
+    public abstract static class WithOtherCredentials extends SCMSource {
+        public Object getCredentialsId() {
+            return "IZ_USER";
+        }
+    }
+
+    private static <T extends SCMSource> T source(Class<T> sourceClass) {
+        return mock(sourceClass, withSettings().defaultAnswer(CALLS_REAL_METHODS));
+    }
+
+    private static String credentialsIdOf(SCMSource source, UbCredentialsIdAccessor... accessors) {
+        UbCredentialsIdAccessor accessor =
+                UbCredentialsIdAccessor.forSourceClass(source.getClass(), Arrays.asList(accessors));
+        return accessor.getCredentialsId(source);
+    }
+
+    @Test
+    public void readsTheGetterOfTheSource() {
+        assertThat(credentialsIdOf(source(WithCredentials.class))).isEqualTo("IZ_USER");
+    }
+
+    @Test
+    public void sourceWithoutGetter() {
+        assertThat(credentialsIdOf(source(SCMSource.class))).isNull();
+        assertThat(credentialsIdOf(source(WithOtherCredentials.class))).isNull();
+    }
+
+    @Test
+    public void extensionsComeFirst() {
+        UbCredentialsIdAccessor typed = new UbCredentialsIdAccessor() {
+            @Override
+            public boolean isApplicable(@Nonnull Class<? extends SCMSource> sourceClass) {
+                return WithCredentials.class.isAssignableFrom(sourceClass);
+            }
+
+            @Override
+            public String getCredentialsId(@Nonnull SCMSource source) {
+                return "typed";
+            }
+        };
+
+        assertThat(credentialsIdOf(source(WithCredentials.class), typed)).isEqualTo("typed");
+        // not applicable
+        assertThat(credentialsIdOf(source(SCMSource.class), typed)).isNull();
+    }
+}
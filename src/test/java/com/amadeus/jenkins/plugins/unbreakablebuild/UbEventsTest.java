@@ -0,0 +1,74 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * <p>
+ * TestClass for UbEvents Class
+ */
+public class UbEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recorded() throws Exception {
+        Job<?, ?> job = mock(Job.class);
+        doReturn("SWB2/repository/UB%2F1").when(job).getFullName();
+        Run<?, ?> run = mock(Run.class);
+        doReturn(job).when(run).getParent();
+        doReturn("SWB2/repository/UB%2F1#12").when(run).getExternalizableId();
+
+        Path dump = folder.newFile("ub.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable(UbEvents.PayloadEncode.class);
+            recording.start();
+
+            UbEvents.PayloadEncode event = new UbEvents.PayloadEncode();
+            event.begin();
+            event.status = "SUCCESS";
+            event.bytes = 42;
+            event.commit(run);
+
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        assertThat(events).hasSize(1);
+        RecordedEvent event = events.get(0);
+        assertThat(event.getEventType().getName())
+                .isEqualTo("com.amadeus.jenkins.plugins.unbreakablebuild.UbPayloadEncode");
+        assertThat(event.getEventType().getCategoryNames()).containsExactly("Jenkins", "Unbreakable Build");
+        assertThat(event.getString("runId")).isEqualTo("SWB2/repository/UB%2F1#12");
+        assertThat(event.getString("isolationZone")).isEqualTo("SWB2");
+        assertThat(event.getString("status")).isEqualTo("SUCCESS");
+        assertThat(event.getLong("bytes")).isEqualTo(42L);
+    }
+
+    @Test
+    public void notRecorded() {
+        Run<?, ?> run = mock(Run.class);
+
+        UbEvents.CredentialResolution event = new UbEvents.CredentialResolution();
+        event.begin();
+        // no recording: the run is not even read
+        event.commit(run);
+
+        assertThat(event.runId).isNull();
+    }
+}
@@ -0,0 +1,72 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.kohsuke.stapler.Stapler;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbGlobalConfiguration Class
+ */
+public class UbGlobalConfigurationTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void defaultsWhenNotConfigured() {
+        UbBitbucketServer server = UbGlobalConfiguration.resolve("http://bitbucket.example.org/");
+
+        assertThat(server.getServerUrl()).isEqualTo("http://bitbucket.example.org");
+        assertThat(server.getConnectTimeoutSeconds()).isEqualTo(UbBitbucketServer.DEFAULT_CONNECT_TIMEOUT_SECONDS);
+        assertThat(server.getMaxInFlight()).isEqualTo(UbBitbucketServer.DEFAULT_MAX_IN_FLIGHT);
+        assertThat(server.getBatchWindowMillis()).isEqualTo(UbNotificationBatcher.WINDOW_MILLIS);
+    }
+
+    @Test
+    public void resolvesTheMatchingServer() throws Exception {
+        UbBitbucketServer configured = new UbBitbucketServer("https://bitbucket.example.org/");
+        configured.setSocketTimeoutSeconds(5);
+        configured.setMaxConnections(3);
+        configured.setMaxInFlight(0);
+        configured.setBatchWindowMillis(150);
+        UbGlobalConfiguration configuration = UbGlobalConfiguration.getOrNull();
+        assertThat(configuration).isNotNull();
+        configuration.setServers(Collections.singletonList(configured));
+
+        j.configRoundtrip();
+
+        UbBitbucketServer server = UbGlobalConfiguration.resolve("HTTPS://bitbucket.example.org");
+        assertThat(server.getSocketTimeoutSeconds()).isEqualTo(5);
+        assertThat(server.getMaxConnections()).isEqualTo(3);
+        // at least one notification at a time
+        assertThat(server.getMaxInFlight()).isEqualTo(1);
+        assertThat(server.getBatchWindowMillis()).isEqualTo(150);
+        assertThat(UbGlobalConfiguration.resolve("https://other.example.org").getSocketTimeoutSeconds())
+                .isEqualTo(UbBitbucketServer.DEFAULT_SOCKET_TIMEOUT_SECONDS);
+    }
+
+    @Test
+    public void theLastServerCanBeDeleted() throws Exception {
+        UbGlobalConfiguration configuration = UbGlobalConfiguration.getOrNull();
+        assertThat(configuration).isNotNull();
+        configuration.setServers(Collections.singletonList(new UbBitbucketServer("https://bitbucket.example.org/")));
+
+        // the form has no servers once the last one is deleted
+        j.executeOnServer(() -> configuration.configure(Stapler.getCurrentRequest(), new JSONObject()));
+
+        assertThat(configuration.getServers()).isEmpty();
+        File saved = new File(j.jenkins.getRootDir(), UbGlobalConfiguration.class.getName() + ".xml");
+        assertThat(new String(Files.readAllBytes(saved.toPath()), StandardCharsets.UTF_8))
+                .doesNotContain("bitbucket.example.org");
+    }
+}
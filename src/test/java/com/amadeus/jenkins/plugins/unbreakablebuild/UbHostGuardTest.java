@@ -0,0 +1,213 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * <p>
+ * TestClass for UbHostGuard Class
+ */
+public class UbHostGuardTest {
+
+    private final List<CompletableFuture<UbUtils.BitbucketQueryResult>> calls = new ArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private long now;
+
+    @Before
+    public void setUp() {
+        scheduler = mock(ScheduledExecutorService.class);
+        doReturn(mock(ScheduledFuture.class)).when(scheduler).schedule(any(Runnable.class), anyLong(), any());
+    }
+
+    private UbHostGuard newGuard(int ratePerSecond, int burst, int maxInFlight) {
+        return new UbHostGuard("http://localhost", ratePerSecond, burst, maxInFlight, 2, 1000, 100,
+                scheduler, () -> now);
+    }
+
+    private CompletableFuture<UbUtils.BitbucketQueryResult> execute(UbHostGuard guard) {
+        return guard.execute(() -> {
+            CompletableFuture<UbUtils.BitbucketQueryResult> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        });
+    }
+
+    private void wakeUp(long delayNanos) {
+        ArgumentCaptor<Runnable> wakeUp = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, atLeastOnce()).schedule(wakeUp.capture(), eq(delayNanos), eq(TimeUnit.NANOSECONDS));
+        now += delayNanos;
+        wakeUp.getValue().run();
+    }
+
+    private static UbUtils.BitbucketQueryResult ok() {
+        return new UbUtils.BitbucketQueryResult(200, "OK", null);
+    }
+
+    private static UbUtils.BitbucketQueryResult down() {
+        return new UbUtils.BitbucketQueryResult(-1, "! no messages !", new IOException("Connection refused"));
+    }
+
+    @Test
+    public void boundsRequestsInFlight() {
+        UbHostGuard guard = newGuard(100, 100, 2);
+        CompletableFuture<UbUtils.BitbucketQueryResult> third = execute(guard);
+        execute(guard);
+        execute(guard);
+
+        assertThat(calls).hasSize(2);
+        assertThat(guard.getInFlight()).isEqualTo(2);
+        assertThat(guard.getParked()).isEqualTo(1);
+
+        calls.get(0).complete(ok());
+        assertThat(calls).hasSize(3);
+        assertThat(third).isCompletedWithValueMatching(result -> result.getStatusCode() == 200);
+        assertThat(guard.getParked()).isZero();
+    }
+
+    @Test
+    public void limitsTheRate() {
+        UbHostGuard guard = newGuard(2, 1, 10);
+        execute(guard);
+        execute(guard);
+
+        assertThat(calls).hasSize(1);
+        wakeUp(TimeUnit.MILLISECONDS.toNanos(500) + 1);
+        assertThat(calls).hasSize(2);
+    }
+
+    @Test
+    public void tooManyRequestsEmptiesTheBucket() {
+        UbHostGuard guard = newGuard(1, 10, 10);
+        execute(guard);
+        calls.get(0).complete(new UbUtils.BitbucketQueryResult(429, "Too Many Requests", null));
+
+        assertThat(guard.getAvailableTokens()).isZero();
+        execute(guard);
+        assertThat(calls).hasSize(1);
+    }
+
+    @Test
+    public void opensTheCircuitAndProbes() {
+        UbHostGuard guard = newGuard(100, 100, 10);
+        execute(guard);
+        execute(guard);
+        calls.get(0).complete(down());
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.CLOSED);
+        calls.get(1).complete(down());
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.OPEN);
+
+        // parked while the circuit is open
+        CompletableFuture<UbUtils.BitbucketQueryResult> probe = execute(guard);
+        execute(guard);
+        assertThat(calls).hasSize(2);
+        assertThat(guard.getParked()).isEqualTo(2);
+
+        // only one probe once half-open
+        wakeUp(TimeUnit.SECONDS.toNanos(1));
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.HALF_OPEN);
+        assertThat(calls).hasSize(3);
+
+        calls.get(2).complete(ok());
+        assertThat(probe).isCompleted();
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.CLOSED);
+        assertThat(calls).hasSize(4);
+        assertThat(guard.getParked()).isZero();
+    }
+
+    @Test
+    public void failedBatchCountsOnce() {
+        UbHostGuard guard = newGuard(100, 100, 10);
+        execute(guard);
+        execute(guard);
+        execute(guard);
+
+        // the three notifications were sent in one bulk request, which failed
+        UbUtils.BitbucketQueryResult bulkFailure = down();
+        calls.forEach(call -> call.complete(bulkFailure));
+        assertThat(guard.getConsecutiveFailures()).isEqualTo(1);
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.CLOSED);
+        assertThat(guard.getInFlight()).isZero();
+
+        // another failed request
+        execute(guard);
+        calls.get(3).complete(down());
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.OPEN);
+    }
+
+    @Test
+    public void failedProbeOpensTheCircuitAgain() {
+        UbHostGuard guard = newGuard(100, 100, 10);
+        execute(guard);
+        execute(guard);
+        calls.get(0).complete(down());
+        calls.get(1).complete(down());
+
+        execute(guard);
+        wakeUp(TimeUnit.SECONDS.toNanos(1));
+        calls.get(2).complete(new UbUtils.BitbucketQueryResult(503, "Service Unavailable", null));
+
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.OPEN);
+        assertThat(guard.getConsecutiveFailures()).isEqualTo(3);
+    }
+
+    @Test
+    public void onlyTheProbeEndsTheProbing() {
+        UbHostGuard guard = newGuard(100, 100, 10);
+        execute(guard);
+        execute(guard);
+        // sent before the circuit opens, answered after
+        execute(guard);
+        calls.get(0).complete(down());
+        calls.get(1).complete(down());
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.OPEN);
+
+        CompletableFuture<UbUtils.BitbucketQueryResult> probe = execute(guard);
+        execute(guard);
+        wakeUp(TimeUnit.SECONDS.toNanos(1));
+        assertThat(calls).hasSize(4);
+
+        // the late failure opens the circuit again, the probe is still in flight
+        calls.get(2).complete(down());
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.OPEN);
+        now += TimeUnit.SECONDS.toNanos(1);
+        execute(guard);
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.HALF_OPEN);
+        assertThat(calls).hasSize(4);
+
+        calls.get(3).complete(ok());
+        assertThat(probe).isCompleted();
+        assertThat(guard.getState()).isEqualTo(UbHostGuard.State.CLOSED);
+        assertThat(calls).hasSize(6);
+    }
+
+    @Test
+    public void isHostFailure() {
+        assertThat(UbHostGuard.isHostFailure(down())).isTrue();
+        assertThat(UbHostGuard.isHostFailure(new UbUtils.BitbucketQueryResult(502, "", null))).isTrue();
+        assertThat(UbHostGuard.isHostFailure(new UbUtils.BitbucketQueryResult(400, "", null))).isFalse();
+        assertThat(UbHostGuard.isHostFailure(new UbUtils.BitbucketQueryResult(429, "", null))).isFalse();
+        assertThat(UbHostGuard.isHostFailure(
+                new UbUtils.BitbucketQueryResult(-1, "", new MalformedURLException("ssh")))).isFalse();
+    }
+}
@@ -0,0 +1,55 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbHttpClients Class
+ */
+public class UbHttpClientsTest {
+
+    @After
+    public void tearDown() {
+        UbHttpClients.shutdown();
+    }
+
+    @Test
+    public void sameClientForSameBitbucket() {
+        CloseableHttpAsyncClient first = UbHttpClients.asyncForBitbucket("http://bitbucket.example.org");
+        CloseableHttpAsyncClient second = UbHttpClients.asyncForBitbucket("http://bitbucket.example.org/");
+        assertThat(first).isSameAs(second);
+    }
+
+    @Test
+    public void otherClientForOtherBitbucket() {
+        CloseableHttpAsyncClient first = UbHttpClients.asyncForBitbucket("http://bitbucket.example.org");
+        CloseableHttpAsyncClient second = UbHttpClients.asyncForBitbucket("http://other.example.org");
+        assertThat(first).isNotSameAs(second);
+    }
+
+    @Test
+    public void newClientAfterShutdown() {
+        CloseableHttpAsyncClient first = UbHttpClients.asyncForBitbucket("http://bitbucket.example.org");
+        UbHttpClients.shutdown();
+        assertThat(UbHttpClients.asyncForBitbucket("http://bitbucket.example.org")).isNotSameAs(first);
+    }
+
+    @Test
+    public void keepAliveFromServerHeader() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Keep-Alive", "timeout=5, max=100");
+        assertThat(UbHttpClients.keepAliveStrategy(30_000).getKeepAliveDuration(response, null)).isEqualTo(5_000);
+    }
+
+    @Test
+    public void keepAliveDefault() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        assertThat(UbHttpClients.keepAliveStrategy(30_000).getKeepAliveDuration(response, null)).isEqualTo(30_000);
+    }
+}
@@ -0,0 +1,200 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbJavaHttpTransport Class
+ */
+public class UbJavaHttpTransportTest {
+
+    private static final String PATH = "/rest/ubuild/1.0/notify";
+
+    private static SSLContext defaultSslContext;
+
+    // HTTPS, HTTP/2 is negotiated with ALPN like with a real Bitbucket
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort().dynamicHttpsPort());
+
+    private final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("git-user", "git-secret");
+
+    private final UbJavaHttpTransport transport = new UbJavaHttpTransport();
+
+    /**
+     * The JDK clients are built with the default SSL context, which must trust the certificate of WireMock
+     */
+    @BeforeClass
+    public static void trustWireMock() throws GeneralSecurityException {
+        defaultSslContext = SSLContext.getDefault();
+        SSLContext trustAll = SSLContext.getInstance("TLS");
+        trustAll.init(null, new TrustManager[]{new TrustAll()}, null);
+        SSLContext.setDefault(trustAll);
+    }
+
+    @AfterClass
+    public static void restoreTrust() {
+        SSLContext.setDefault(defaultSslContext);
+        UbHttpClients.invalidate();
+    }
+
+    private String baseUrl() {
+        return "https://localhost:" + wireMockRule.httpsPort();
+    }
+
+    private UbBitbucketServer server() {
+        UbBitbucketServer server = new UbBitbucketServer(baseUrl());
+        server.setTransport(UbBitbucketServer.Transport.JAVA_HTTP_CLIENT);
+        return server;
+    }
+
+    private void stub(String path, int status, String contentType, String body) {
+        wireMockRule.stubFor(post(urlEqualTo(path)).willReturn(aResponse()
+                .withStatus(status)
+                .withHeader("Content-type", contentType)
+                .withBody(body)));
+    }
+
+    private UbUtils.BitbucketQueryResult post(String url) throws Exception {
+        return transport.post(server(), url, "{}", credentials, null,
+                UbUtils::readBitbucketResponse, UbUtils::failedBitbucketQueryResult).get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void readsTheMessage() throws Exception {
+        stub(PATH, 200, "application/json", "{ \"message\": \"Merged\" }");
+
+        UbUtils.BitbucketQueryResult result = post(baseUrl() + PATH);
+
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(result.getMessage()).isEqualTo("Merged");
+        wireMockRule.verify(postRequestedFor(urlEqualTo(PATH))
+                .withHeader("Authorization", equalTo("Basic Z2l0LXVzZXI6Z2l0LXNlY3JldA=="))
+                .withHeader("Content-type", equalTo("application/json")));
+    }
+
+    @Test
+    public void speaksHttp2() throws Exception {
+        stub(PATH, 200, "application/json", "{ \"message\": \"Merged\" }");
+
+        ProtocolVersion version = transport.post(server(), baseUrl() + PATH, "{}", credentials, null,
+                response -> response.getStatusLine().getProtocolVersion(),
+                e -> null).get(30, TimeUnit.SECONDS);
+
+        // the JDK response was HTTP_2
+        assertThat(version).isEqualTo(new ProtocolVersion("HTTP", 2, 0));
+    }
+
+    @Test
+    public void readsTheErrors() throws Exception {
+        stub(PATH, 400, "application/json", "{ \"message\":  }");
+
+        UbUtils.BitbucketQueryResult result = post(baseUrl() + PATH);
+
+        // same result as with the apache transport
+        assertThat(result.getStatusCode()).isEqualTo(400);
+        assertThat(result.getMessage()).isEqualTo("{ \"message\":  }");
+        assertThat(result.getException()).hasMessage("Missing value at 14 [character 15 line 1]");
+    }
+
+    @Test
+    public void boundsTheBody() throws Exception {
+        stub(PATH, 502, "text/html", StringUtils.repeat("x", (int) UbBoundedResponseConsumer.MAX_DRAINED_BYTES * 2));
+
+        UbUtils.BitbucketQueryResult result = post(baseUrl() + PATH);
+
+        assertThat(result.getStatusCode()).isEqualTo(502);
+        assertThat(result.getMessage()).isEqualTo("Unexpected Bitbucket response content type: text/html");
+    }
+
+    @Test
+    public void invalidUrl() throws Exception {
+        UbUtils.BitbucketQueryResult result = post("ssh://localhost:7999/project/repository.git");
+
+        assertThat(result.getStatusCode()).isEqualTo(-1);
+        assertThat(result.getException()).isInstanceOf(MalformedURLException.class)
+                .hasMessage("unknown protocol: ssh");
+    }
+
+    @Test
+    public void multiplexesConcurrentNotifications() throws Exception {
+        stub("/rest/ubuild/1.0/notify/1", 200, "application/json", "{ \"message\": \"one\" }");
+        stub("/rest/ubuild/1.0/notify/2", 200, "application/json", "{ \"message\": \"two\" }");
+        stub("/rest/ubuild/1.0/notify/3", 409, "application/json", "{ \"message\": \"three\" }");
+        String url = baseUrl() + PATH;
+
+        List<UbUtils.BitbucketQueryResult> results = transport.postAll(server(),
+                Arrays.asList(url + "/1", url + "/2", url + "/3"), Arrays.asList("{}", "{}", "{}"), credentials,
+                Arrays.asList("key-1", null, "key-3"), UbUtils::readBitbucketResponse,
+                UbUtils::failedBitbucketQueryResult).get(30, TimeUnit.SECONDS);
+
+        assertThat(results).extracting(UbUtils.BitbucketQueryResult::getMessage).containsExactly("one", "two", "three");
+        assertThat(results).extracting(UbUtils.BitbucketQueryResult::getStatusCode).containsExactly(200, 200, 409);
+        wireMockRule.verify(3, postRequestedFor(urlMatching(PATH + "/.*")));
+        wireMockRule.verify(postRequestedFor(urlEqualTo(PATH + "/1"))
+                .withHeader(UbUtils.IDEMPOTENCY_KEY_HEADER, equalTo("key-1")));
+        wireMockRule.verify(postRequestedFor(urlEqualTo(PATH + "/2"))
+                .withoutHeader(UbUtils.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    /**
+     * Trusts any certificate for any host, WireMock's is self-signed
+     */
+    private static final class TrustAll extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -1,7 +1,15 @@
 package com.amadeus.jenkins.plugins.unbreakablebuild;
 
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.junit.Rule;
@@ -16,6 +24,7 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.model.Failure;
+import hudson.model.Job;
 import hudson.model.Run;
 
 public class UbJenkinsEnvBeanTest {
@@ -37,6 +46,9 @@ public class UbJenkinsEnvBeanTest {
     @Mock
     private Run run;
 
+    @Mock
+    private Job job;
+
     private void setUpEnvForUbHelper() {
         envVars.put("SCM_URL", "http://localhost:" + wireMockRule.port());
         envVars.put("BITBUCKET_PROJECT", "myProject");
@@ -65,6 +77,42 @@ public class UbJenkinsEnvBeanTest {
         new UbJenkinsEnvBean(envVars, run);
     }
 
+    @Test
+    public void snapshot() {
+        setUpEnvForUbHelper();
+        when(run.getParent()).thenReturn(job);
+
+        UbContextAction context = UbJenkinsEnvBean.snapshot(run, envVars);
+
+        verify(run).addAction(context);
+        // the next runs of the job are known to be unbreakable builds
+        verify(job).addProperty(any(UbBranchJobProperty.class));
+        assertThat(context.getBitbucketUrl()).isEqualTo("http://localhost:" + wireMockRule.port());
+        assertThat(context.getProjectKey()).isEqualTo("myProject");
+        assertThat(context.getRepositorySlug()).isEqualTo("myRepo");
+        assertThat(context.getRefSpec()).isEqualTo("refs/ubuilds/9999");
+        assertThat(context.getCommitId()).isEqualTo("1aed25f357e");
+        assertThat(context.getJobUrl()).isEqualTo("http:// example.org");
+        assertThat(context.getIsolationZone()).isEqualTo("SWB2");
+    }
+
+    @Test
+    public void snapshotTakenOnce() {
+        UbContextAction taken = new UbContextAction("http://localhost", "myProject", "myRepo",
+                "refs/ubuilds/9999", "1aed25f357e", "http:// example.org", "SWB2");
+        when(run.getAction(UbContextAction.class)).thenReturn(taken);
+
+        // the environment (empty here) is not read again
+        assertThat(UbJenkinsEnvBean.snapshot(run, envVars)).isSameAs(taken);
+        verify(run, never()).addAction(any());
+    }
+
+    @Test(expected = Failure.class)
+    public void snapshotFails() {
+        // it will fail because environment setup is missing
+        UbJenkinsEnvBean.snapshot(run, envVars);
+    }
+
     private void stubBitbucketServer(int statusCode, String message) {
         setUpEnvForUbHelper();
         MockBitbucketHelper.stubNotificationWith(wireMockRule, statusCode, message);
@@ -118,6 +166,60 @@ public class UbJenkinsEnvBeanTest {
 
     }
 
+    @Test
+    public void notifyBitbucketAsyncOk() throws Exception {
+        stubBitbucketServer(200, "OK");
+
+        UbJenkinsEnvBean.Status status = UbJenkinsEnvBean.Status.SUCCESS;
+        newBean().notifyBitbucketAsync("async-ok", status, null, credentials, run).get(10, TimeUnit.SECONDS);
+
+        checkNotificationReceived(status);
+    }
+
+    @Test
+    public void notifyBitbucketAsyncOkStatusFailure() {
+        stubBitbucketServer(200, "OK");
+        UbJenkinsEnvBean ubJenkinsEnvBean = newBean();
+
+        // build is marked as failed
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(
+                () -> ubJenkinsEnvBean.notifyBitbucketAsync(
+                        "async-failure", UbJenkinsEnvBean.Status.FAILURE, null, credentials, run)
+                        .get(10, TimeUnit.SECONDS))
+                .withCauseInstanceOf(Failure.class)
+                .withMessageContaining("Unbreakable build marks the build as failed");
+
+        // checking that bitbucket got the failure notification
+        checkNotificationReceived(UbJenkinsEnvBean.Status.FAILURE);
+    }
+
+    @Test
+    public void failToNotifyBitbucketAsync() {
+        stubBitbucketServer(404, "Wrong URL");
+        UbJenkinsEnvBean ubJenkinsEnvBean = newBean();
+
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(
+                () -> ubJenkinsEnvBean.notifyBitbucketAsync(
+                        "async-ko", UbJenkinsEnvBean.Status.SUCCESS, null, credentials, run)
+                        .get(10, TimeUnit.SECONDS))
+                .withCauseInstanceOf(Failure.class)
+                .withMessageContaining("Status code: 404, message: Wrong URL, exception: null");
+    }
+
+    @Test
+    public void supersededNotificationIsNotAnError() {
+        UbUtils.BitbucketQueryResult superseded = UbUtils.BitbucketQueryResult.superseded("Superseded");
+
+        // the run keeps its result
+        UbJenkinsEnvBean.endNotification(superseded, UbJenkinsEnvBean.Status.SUCCESS, null, run);
+        verify(run, never()).setResult(any());
+
+        // the build failed all the same
+        assertThatExceptionOfType(Failure.class).isThrownBy(
+                () -> UbJenkinsEnvBean.endNotification(superseded, UbJenkinsEnvBean.Status.FAILURE, null, run))
+                .withMessage("Unbreakable build marks the build as failed");
+    }
+
     @Test
     public void notifyBitbucketKoBecauseBadURL() {
         stubBitbucketServer(200, "OK");
@@ -0,0 +1,144 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+/**
+ * <p>
+ * TestClass for UbListenerExecutor Class
+ */
+public class UbListenerExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private UbListenerExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        if (executor != null) {
+            executor.drain(10);
+        }
+    }
+
+    @Test
+    public void runsOnAWorker() throws Exception {
+        executor = new UbListenerExecutor(1, 1, 10);
+
+        String thread = executor.call(() -> CompletableFuture.completedFuture(Thread.currentThread().getName()));
+
+        assertThat(thread).contains(UbBuildListener.class.getSimpleName());
+    }
+
+    @Test
+    public void waitsForTheOutcome() throws Exception {
+        executor = new UbListenerExecutor(1, 1, 10);
+        CompletableFuture<String> outcome = new CompletableFuture<>();
+        new Thread(() -> outcome.complete("answered")).start();
+
+        assertThat(executor.call(() -> outcome)).isEqualTo("answered");
+    }
+
+    @Test
+    public void givesUpAfterTheTimeout() {
+        executor = new UbListenerExecutor(1, 1, 1);
+
+        // the outcome never comes
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> executor.call(CompletableFuture::new));
+    }
+
+    @Test
+    public void callerRunsWhenTheQueueIsFull() throws Exception {
+        executor = new UbListenerExecutor(1, 1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        // one running, one waiting
+        for (int i = 0; i < 2; i++) {
+            new Thread(() -> {
+                try {
+                    executor.call(() -> {
+                        started.countDown();
+                        release.await();
+                        return CompletableFuture.completedFuture(null);
+                    });
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    // released by the tear down
+                }
+            }).start();
+        }
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        while (executor.getQueuedCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        String thread = executor.call(() -> CompletableFuture.completedFuture(Thread.currentThread().getName()));
+
+        assertThat(thread).isEqualTo(Thread.currentThread().getName());
+    }
+
+    @Test
+    public void offeredTasksAreDroppedWhenTheQueueIsFull() throws Exception {
+        executor = new UbListenerExecutor(1, 1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        // one running, one waiting
+        assertThat(executor.offer(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })).isTrue();
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.offer(() -> {
+        })).isTrue();
+
+        String[] thread = new String[1];
+        assertThat(executor.offer(() -> thread[0] = Thread.currentThread().getName())).isFalse();
+        assertThat(thread[0]).isNull();
+    }
+
+    @Test
+    public void exceptionsAreGivenToTheCaller() {
+        executor = new UbListenerExecutor(1, 1, 10);
+
+        assertThatExceptionOfType(ExecutionException.class)
+                .isThrownBy(() -> executor.call(() -> {
+                    throw new IllegalStateException("no credentials");
+                }))
+                .withCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void drainsThePendingTasks() throws Exception {
+        executor = new UbListenerExecutor(1, 1, 10);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        new Thread(() -> {
+            try {
+                executor.call(() -> {
+                    release.await();
+                    done.complete(null);
+                    return done;
+                });
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                done.completeExceptionally(e);
+            }
+        }).start();
+        while (executor.getActiveCount() == 0) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertThat(executor.drain(10)).isTrue();
+        assertThat(done).isCompleted();
+    }
+}
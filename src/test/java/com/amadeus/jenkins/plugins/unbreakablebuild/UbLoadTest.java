@@ -0,0 +1,197 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.amadeus.jenkins.plugins.unbreakablebuild.UbJenkinsEnvBean.EnvVarName;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import hudson.EnvVars;
+import hudson.model.Action;
+import hudson.model.EnvironmentContributor;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
+import jenkins.branch.BranchSource;
+import jenkins.plugins.git.GitSCMSource;
+import jenkins.plugins.git.GitSampleRepoRule;
+import jenkins.plugins.git.traits.BranchDiscoveryTrait;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * Load test: many unbreakable build runs completing together, against a Bitbucket simulator with latency, errors
+ * and connection resets. A third of the runs call ubValidate, a third ubFail, the others rely on the
+ * {@link UbBuildListener}.
+ * <p>
+ * Not run by default, run it with
+ * {@code mvn test -Dtest=UbLoadTest -Dub.loadTest=true [-Dub.loadTest.runs=200 -Dub.loadTest.latencyMillis=50
+ * -Dub.loadTest.errorRate=0.05 -Dub.loadTest.resetRate=0.01 -Dub.loadTest.repositories=20]}
+ */
+public class UbLoadTest {
+
+    private static final int RUNS = Integer.getInteger("ub.loadTest.runs", 200);
+    private static final int LATENCY_MILLIS = Integer.getInteger("ub.loadTest.latencyMillis", 50);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("ub.loadTest.errorRate", "0.05"));
+    private static final double RESET_RATE = Double.parseDouble(System.getProperty("ub.loadTest.resetRate", "0.01"));
+    // the notifications of a repository are sent one after the other
+    private static final int REPOSITORIES = Integer.getInteger("ub.loadTest.repositories", 20);
+
+    private static final String CREDS_ID = "IZ_USER";
+    private static final String USER = "git-user";
+    private static final String PASSWORD = "git-secret";
+
+    private final UbBitbucketSimulator simulator = new UbBitbucketSimulator(LATENCY_MILLIS, ERROR_RATE, RESET_RATE);
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(simulator.configure(options().dynamicPort()));
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public GitSampleRepoRule sampleRepo = new GitSampleRepoRule();
+
+    {
+        // the default timeout is for a single build
+        j.timeout = 900;
+    }
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue("load test, run with -Dub.loadTest=true", Boolean.getBoolean("ub.loadTest"));
+    }
+
+    /**
+     * Schedules each run on its own, the queue would otherwise merge the runs of the job
+     */
+    public static final class Distinct extends InvisibleAction implements Queue.QueueAction {
+        @Override
+        public boolean shouldSchedule(List<Action> actions) {
+            return true;
+        }
+    }
+
+    @Test
+    public void load() throws Exception {
+        SystemCredentialsProvider.getInstance().setDomainCredentialsMap(Collections.singletonMap(Domain.global(),
+                Collections.singletonList(
+                        new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, CREDS_ID, null, USER, PASSWORD))));
+        simulator.stub(wireMockRule);
+        environment.port = wireMockRule.port();
+
+        sampleRepo.init();
+        sampleRepo.write("Jenkinsfile", "switch (currentBuild.number % 3) {\n"
+                + "  case 0: ubValidate(); break\n"
+                + "  case 1: ubFail(); break\n"
+                + "  default: def notifiedByTheListener = true\n"
+                + "}\n");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("commit", "--all", "--message=flow");
+        WorkflowMultiBranchProject mp = j.jenkins.createProject(WorkflowMultiBranchProject.class, "project");
+        GitSCMSource source = new GitSCMSource(sampleRepo.toString());
+        source.setCredentialsId(CREDS_ID);
+        source.setTraits(Collections.singletonList(new BranchDiscoveryTrait()));
+        mp.getSourcesList().add(new BranchSource(source));
+        mp.scheduleBuild2(0).getFuture().get();
+        WorkflowJob p = mp.getItem("master");
+        assertThat(p).isNotNull();
+        // the first run, triggered by the indexing, warms up Jenkins
+        j.waitUntilNoActivity();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        long requestsBefore = simulator.getRequests();
+
+        long start = System.nanoTime();
+        List<QueueTaskFuture<WorkflowRun>> scheduled = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            scheduled.add(p.scheduleBuild2(0, new Distinct()));
+        }
+        List<WorkflowRun> runs = new ArrayList<>();
+        for (QueueTaskFuture<WorkflowRun> run : scheduled) {
+            assertThat(run).isNotNull();
+            runs.add(run.get());
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        int peakThreads = threads.getPeakThreadCount();
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        List<Long> latencies = new ArrayList<>();
+        for (WorkflowRun run : runs) {
+            UbAction claim = run.getAction(UbAction.class);
+            assertThat(claim).as(run.toString()).isNotNull();
+            assertThat(claim.getStatusCode()).as(run.toString()).isEqualTo(200);
+            latencies.add(claim.getBitbucketNanos());
+            Result expected = run.getNumber() % 3 == 1 ? Result.FAILURE : Result.SUCCESS;
+            assertThat(run.getResult()).as(run.toString()).isEqualTo(expected);
+        }
+        Collections.sort(latencies);
+
+        System.out.printf("%n----- UNBREAKABLE BUILD LOAD TEST -----%n"
+                        + "runs: %d in %d ms, %.1f notifications/s%n"
+                        + "requests to Bitbucket: %d (server errors: %d, connection resets: %d)%n"
+                        + "notification latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n"
+                        + "threads: %d before, %d peak, %d after%n"
+                        + "heap: %d MB before, %d MB after (%+d MB)%n",
+                RUNS, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), RUNS * 1e9 / elapsedNanos,
+                simulator.getRequests() - requestsBefore, simulator.getErrors(), simulator.getResets(),
+                percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                latencies.get(latencies.size() - 1) / 1e6,
+                threadsBefore, peakThreads, threads.getThreadCount(),
+                heapBefore >> 20, heapAfter >> 20, (heapAfter - heapBefore) >> 20);
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    /**
+     * The environment of the patched Bitbucket Branch Source Plugin, a merge request and a repository per run
+     */
+    @TestExtension("load")
+    public static final Environment environment = new Environment();
+
+    public static class Environment extends EnvironmentContributor {
+        int port;
+
+        @Override
+        public void buildEnvironmentFor(@Nonnull Run r, @Nonnull EnvVars envs, @Nonnull TaskListener listener) {
+            envs.put(EnvVarName.SCM_URL.toString(), "http://localhost:" + port);
+            envs.put(EnvVarName.UNBREAKABLE_REFSPEC.toString(), "refs/ubuilds/" + r.getNumber());
+            envs.put(EnvVarName.BITBUCKET_PROJECT.toString(), "project");
+            envs.put(EnvVarName.BITBUCKET_REPOSITORY.toString(), "repository" + r.getNumber() % REPOSITORIES);
+            envs.put(EnvVarName.COMMIT.toString(), "e2fef687f72cea001fd856bded022449fbf1a885");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import jenkins.model.Jenkins;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+/**
+ * <p>
+ * TestClass for UbMetrics Class
+ */
+public class UbMetricsTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private static UbNotification notification(String payload) {
+        return new UbNotification("id", "http://bitbucket/", "http://bitbucket/rest/ubuild/1.0/notify", payload,
+                new UbNotification.Commit("project", "repository", "1aed25f357e"),
+                "SWB2/repository/UB%2F1#12", System.currentTimeMillis());
+    }
+
+    @Test
+    public void histogramBuckets() {
+        UbMetrics.Histogram histogram = new UbMetrics.Histogram();
+        histogram.observe(0.001);
+        histogram.observe(0.005);
+        histogram.observe(0.3);
+        histogram.observe(120);
+
+        long[] cumulative = histogram.cumulativeCounts();
+
+        assertThat(cumulative).hasSize(UbMetrics.BUCKETS.length + 1);
+        // le="0.005" holds its upper bound
+        assertThat(cumulative[0]).isEqualTo(2L);
+        assertThat(cumulative[6]).isEqualTo(3L);
+        assertThat(cumulative[cumulative.length - 2]).isEqualTo(3L);
+        assertThat(cumulative[cumulative.length - 1]).isEqualTo(4L);
+        assertThat(histogram.getSum()).isEqualTo(120.306, offset(1e-9));
+    }
+
+    @Test
+    public void textFormat() throws Exception {
+        UbMetrics metrics = new UbMetrics();
+        UbNotification notification = notification(
+                UbUtils.generateBitbucketPayload("http://jenkins/job/1", "SWB2", "1", "SUCCESS"));
+        metrics.notificationDone(notification, notification.getBuildStatus(), 200);
+        metrics.notificationDone(notification, notification.getBuildStatus(), 200);
+        metrics.notificationRetried(notification);
+        metrics.httpRequest("http://bitbucket", System.nanoTime());
+        metrics.httpBatch("http://bitbucket", 3, System.nanoTime());
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+
+        assertThat(out.toString())
+                .contains("# TYPE ub_notifications_total counter\n")
+                .contains("ub_notifications_total{host=\"http://bitbucket\",zone=\"SWB2\",status=\"SUCCESS\","
+                        + "code=\"200\"} 2\n")
+                .contains("ub_notification_retries_total{host=\"http://bitbucket\",zone=\"SWB2\"} 1\n")
+                .contains("ub_http_request_duration_seconds_bucket{host=\"http://bitbucket\",le=\"+Inf\"} 1\n")
+                .contains("ub_http_request_duration_seconds_count{host=\"http://bitbucket\"} 1\n")
+                .contains("ub_http_batch_duration_seconds_count{host=\"http://bitbucket\"} 1\n")
+                .contains("ub_http_batched_requests_total{host=\"http://bitbucket\"} 3\n")
+                .contains("# TYPE ub_env_collection_duration_seconds histogram\n")
+                .contains("ub_credentials_cache_requests_total{result=\"hit\"} ")
+                .contains("ub_credentials_cache_requests_total{result=\"miss\"} ")
+                .contains("ub_credentials_cache_entries ")
+                .contains("ub_notifications_pending ");
+        assertThat(UbMetrics.labels(new String[]{"zone"}, new String[]{"a\"b\\c\nd"}))
+                .isEqualTo("{zone=\"a\\\"b\\\\c\\nd\"}");
+        assertThat(notification("{}").getBuildStatus()).isNull();
+    }
+
+    @Test
+    public void scrapeDoesNotLoadTheOutbox() throws Exception {
+        // e.g. scraped while Jenkins starts
+        UbNotificationOutbox.shutdown();
+
+        StringWriter out = new StringWriter();
+        new UbMetrics().write(out);
+
+        assertThat(out.toString()).contains("ub_notifications_pending 0\n");
+        assertThat(UbNotificationOutbox.getIfLoaded()).isNull();
+    }
+
+    @Test
+    public void endpointIsProtected() throws Exception {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("reader")
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin"));
+
+        JenkinsRule.WebClient wc = j.createWebClient().withThrowExceptionOnFailingStatusCode(false);
+
+        assertThat(wc.login("reader").goTo("ub-metrics", null).getWebResponse().getStatusCode()).isEqualTo(403);
+        String metrics = wc.login("admin").goTo("ub-metrics", "text/plain").getWebResponse()
+                .getContentAsString();
+        assertThat(metrics).contains("# TYPE ub_notifications_total counter");
+    }
+}
@@ -0,0 +1,150 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbNotificationBatcher Class
+ */
+public class UbNotificationBatcherTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    private final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("git-user", "git-secret");
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private UbNotification notification(String commitId) {
+        String bitbucketUrl = "http://localhost:" + wireMockRule.port();
+        return new UbNotification(commitId, bitbucketUrl,
+                bitbucketUrl + "/rest/ubuild/1.0/projects/project/repos/repository/commits/" + commitId + "/notify",
+                UbUtils.generateBitbucketPayload("http://jenkins/job/1", "SWB2", "1", "SUCCESS"),
+                new UbNotification.Commit("project", "repository", commitId),
+                null, System.currentTimeMillis());
+    }
+
+    @Test
+    public void sendsOneBulkRequest() throws Exception {
+        MockBitbucketHelper.stubBulkNotificationWith(wireMockRule, 2);
+        UbNotificationBatcher batcher = new UbNotificationBatcher(200, 10, scheduler);
+
+        CompletableFuture<UbUtils.BitbucketQueryResult> first = batcher.send(notification("1aed25f357e"), credentials);
+        CompletableFuture<UbUtils.BitbucketQueryResult> second = batcher.send(notification("2bfe36f468f"), credentials);
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+        assertThat(second.get(10, TimeUnit.SECONDS).getMessage()).isEqualTo("OK");
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(UbNotificationBatcher.BULK_PATH))
+                .withRequestBody(containing("1aed25f357e"))
+                .withRequestBody(containing("2bfe36f468f")));
+        wireMockRule.verify(0, postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)));
+    }
+
+    @Test
+    public void fallsBackToIndividualRequests() throws Exception {
+        // no stub for the bulk endpoint -> 404
+        MockBitbucketHelper.stubNotificationWith(wireMockRule);
+        UbNotificationBatcher batcher = new UbNotificationBatcher(200, 10, scheduler);
+
+        CompletableFuture<UbUtils.BitbucketQueryResult> first = batcher.send(notification("1aed25f357e"), credentials);
+        CompletableFuture<UbUtils.BitbucketQueryResult> second = batcher.send(notification("2bfe36f468f"), credentials);
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+        assertThat(second.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+        wireMockRule.verify(2, postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)));
+
+        // the bulk endpoint is not tried again
+        CompletableFuture<UbUtils.BitbucketQueryResult> third = batcher.send(notification("3cef47a579a"), credentials);
+        CompletableFuture<UbUtils.BitbucketQueryResult> fourth = batcher.send(notification("4dfa58b68ab"), credentials);
+        assertThat(third.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+        assertThat(fourth.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(UbNotificationBatcher.BULK_PATH)));
+        wireMockRule.verify(4, postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)));
+    }
+
+    @Test
+    public void unreadableBulkAnswerIsNotSentAgain() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo(UbNotificationBatcher.BULK_PATH))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-type", "application/json")
+                        .withBody("{ \"results\": [] }")));
+        MockBitbucketHelper.stubNotificationWith(wireMockRule);
+        UbNotificationBatcher batcher = new UbNotificationBatcher(200, 10, scheduler);
+
+        CompletableFuture<UbUtils.BitbucketQueryResult> first = batcher.send(notification("1aed25f357e"), credentials);
+        CompletableFuture<UbUtils.BitbucketQueryResult> second = batcher.send(notification("2bfe36f468f"), credentials);
+
+        UbUtils.BitbucketQueryResult result = first.get(10, TimeUnit.SECONDS);
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(result.getException()).isNotNull();
+        assertThat(UbNotificationOutbox.isRetryable(result)).isFalse();
+        assertThat(second.get(10, TimeUnit.SECONDS).getException()).isNotNull();
+        // accepted by Bitbucket, not sent one by one
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(UbNotificationBatcher.BULK_PATH)));
+        wireMockRule.verify(0, postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)));
+    }
+
+    @Test
+    public void sendsFullBatchRightAway() throws Exception {
+        MockBitbucketHelper.stubBulkNotificationWith(wireMockRule, 2);
+        // the window is way longer than the test timeout
+        UbNotificationBatcher batcher = new UbNotificationBatcher(TimeUnit.MINUTES.toMillis(5), 2, scheduler);
+
+        CompletableFuture<UbUtils.BitbucketQueryResult> first = batcher.send(notification("1aed25f357e"), credentials);
+        CompletableFuture<UbUtils.BitbucketQueryResult> second = batcher.send(notification("2bfe36f468f"), credentials);
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+        assertThat(second.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(200);
+    }
+
+    @Test
+    public void noBatchingByDefault() throws Exception {
+        MockBitbucketHelper.stubNotificationWith(wireMockRule);
+        UbNotificationBatcher batcher = new UbNotificationBatcher(0, 10, scheduler);
+
+        assertThat(batcher.send(notification("1aed25f357e"), credentials).get(10, TimeUnit.SECONDS).getStatusCode())
+                .isEqualTo(200);
+        wireMockRule.verify(0, postRequestedFor(urlEqualTo(UbNotificationBatcher.BULK_PATH)));
+    }
+
+    @Test
+    public void windowOfTheBitbucket() throws Exception {
+        MockBitbucketHelper.stubNotificationWith(wireMockRule);
+        String bitbucketUrl = "http://localhost:" + wireMockRule.port();
+        // batching enabled for another Bitbucket only
+        UbNotificationBatcher batcher = new UbNotificationBatcher(
+                url -> url.equals(bitbucketUrl) ? 0 : TimeUnit.MINUTES.toMillis(5), 10, scheduler);
+
+        assertThat(batcher.send(notification("1aed25f357e"), credentials).get(10, TimeUnit.SECONDS).getStatusCode())
+                .isEqualTo(200);
+        wireMockRule.verify(0, postRequestedFor(urlEqualTo(UbNotificationBatcher.BULK_PATH)));
+    }
+}
@@ -0,0 +1,305 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbNotificationOutbox Class
+ */
+public class UbNotificationOutboxTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("git-user", "git-secret");
+
+    private final Deque<UbUtils.BitbucketQueryResult> answers = new ArrayDeque<>();
+
+    private final AtomicInteger sent = new AtomicInteger();
+
+    private ScheduledExecutorService scheduler;
+
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        journal = new File(tmp.newFolder(), UbNotificationOutbox.JOURNAL_PATH);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private UbNotificationOutbox newOutbox() {
+        return new UbNotificationOutbox(journal, this::send, notification -> credentials, scheduler);
+    }
+
+    private synchronized CompletableFuture<UbUtils.BitbucketQueryResult> send(
+            UbNotification notification, UsernamePasswordCredentials usedCredentials) {
+        sent.incrementAndGet();
+        UbUtils.BitbucketQueryResult answer = answers.isEmpty() ? ok() : answers.poll();
+        return CompletableFuture.completedFuture(answer);
+    }
+
+    private static UbNotification notification(String id) {
+        return new UbNotification(id, "http://localhost", "http://localhost/rest/ubuild/1.0/notify", "{}",
+                new UbNotification.Commit("project", "repository", "1aed25f357e"),
+                "project/master#1", System.currentTimeMillis());
+    }
+
+    private static UbNotification notification(String id, String idempotencyKey) {
+        return new UbNotification(id, "http://localhost", "http://localhost/rest/ubuild/1.0/notify", "{}",
+                new UbNotification.Commit("project", "repository", "1aed25f357e"),
+                "project/master#1", System.currentTimeMillis(), idempotencyKey);
+    }
+
+    private static UbUtils.BitbucketQueryResult ok() {
+        return new UbUtils.BitbucketQueryResult(200, "OK", null);
+    }
+
+    private static UbUtils.BitbucketQueryResult unavailable() {
+        // retry right away
+        return new UbUtils.BitbucketQueryResult(503, "Service Unavailable", null, 0);
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        answers.add(unavailable());
+        answers.add(new UbUtils.BitbucketQueryResult(-1, "! no messages !", new IOException("Connection reset")));
+
+        UbUtils.BitbucketQueryResult result = newOutbox().submit(notification("1"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(sent).hasValue(3);
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        answers.add(new UbUtils.BitbucketQueryResult(400, "Bad Request", null));
+
+        UbUtils.BitbucketQueryResult result = newOutbox().submit(notification("1"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(result.getStatusCode()).isEqualTo(400);
+        assertThat(sent).hasValue(1);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        for (int i = 0; i < UbNotificationOutbox.MAX_ATTEMPTS + 1; i++) {
+            answers.add(unavailable());
+        }
+
+        UbUtils.BitbucketQueryResult result = newOutbox().submit(notification("1"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(result.getStatusCode()).isEqualTo(503);
+        assertThat(sent).hasValue(UbNotificationOutbox.MAX_ATTEMPTS);
+    }
+
+    @Test
+    public void supersededOutcomeIsReplayed() throws Exception {
+        answers.add(UbUtils.BitbucketQueryResult.superseded("Superseded"));
+
+        assertThat(newOutbox().submit(notification("1"), credentials, null).get(10, TimeUnit.SECONDS)
+                .isSuperseded()).isTrue();
+
+        // not sent again after a restart, still not an answer of Bitbucket
+        UbNotificationOutbox restarted = newOutbox();
+        restarted.replay();
+        UbUtils.BitbucketQueryResult result = restarted.submit(notification("1"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+        assertThat(result.isSuperseded()).isTrue();
+        assertThat(result.getMessage()).isEqualTo("Superseded");
+        assertThat(sent).hasValue(1);
+    }
+
+    @Test
+    public void withdrawnNotificationIsNotSent() throws Exception {
+        UbNotificationOutbox outbox = newOutbox();
+
+        // withdrawn before being submitted
+        assertThat(outbox.withdraw("1")).isTrue();
+        UbUtils.BitbucketQueryResult result = outbox.submit(notification("1"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+        assertThat(result.isSuperseded()).isTrue();
+        assertThat(result.getMessage()).isEqualTo(UbNotificationOutbox.WITHDRAWN_MESSAGE);
+        assertThat(sent).hasValue(0);
+
+        // already answered
+        outbox.submit(notification("2"), credentials, null).get(10, TimeUnit.SECONDS);
+        assertThat(outbox.withdraw("2")).isFalse();
+        assertThat(sent).hasValue(1);
+    }
+
+    @Test
+    public void withdrawnNotificationIsNotRetried() throws Exception {
+        // the retry waits for a while
+        answers.add(new UbUtils.BitbucketQueryResult(503, "Service Unavailable", null, 500));
+        UbNotificationOutbox outbox = newOutbox();
+        CompletableFuture<UbUtils.BitbucketQueryResult> result = outbox.submit(notification("1"), credentials, null);
+
+        assertThat(outbox.withdraw("1")).isTrue();
+
+        assertThat(result.get(10, TimeUnit.SECONDS).isSuperseded()).isTrue();
+        assertThat(sent).hasValue(1);
+
+        // nor after a restart
+        UbNotificationOutbox restarted = newOutbox();
+        restarted.replay();
+        assertThat(restarted.submit(notification("1"), credentials, null).get(10, TimeUnit.SECONDS)
+                .isSuperseded()).isTrue();
+        assertThat(sent).hasValue(1);
+    }
+
+    @Test
+    public void withdrawalIsReplayed() throws Exception {
+        JSONObject pending = notification("pending").toJson();
+        pending.put("op", "add");
+        List<String> lines = Arrays.asList(pending.toString(), "{\"op\":\"withdraw\",\"id\":\"pending\"}");
+        Files.createDirectories(journal.toPath().getParent());
+        Files.write(journal.toPath(), lines, StandardCharsets.UTF_8);
+
+        UbNotificationOutbox outbox = newOutbox();
+        outbox.replay();
+
+        assertThat(outbox.submit(notification("pending"), credentials, null).get(10, TimeUnit.SECONDS)
+                .isSuperseded()).isTrue();
+        assertThat(sent).hasValue(0);
+    }
+
+    @Test
+    public void sameNotificationIsSentOnce() throws Exception {
+        UbNotificationOutbox outbox = newOutbox();
+        outbox.submit(notification("1"), credentials, null).get(10, TimeUnit.SECONDS);
+        UbUtils.BitbucketQueryResult result = outbox.submit(notification("1"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(sent).hasValue(1);
+    }
+
+    @Test
+    public void sameIdempotencyKeyIsSentOnce() throws Exception {
+        UbNotificationOutbox outbox = newOutbox();
+        outbox.submit(notification("1", "key"), credentials, null).get(10, TimeUnit.SECONDS);
+        UbUtils.BitbucketQueryResult result = outbox.submit(notification("2", "key"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+        outbox.submit(notification("3", "other key"), credentials, null).get(10, TimeUnit.SECONDS);
+
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(sent).hasValue(2);
+    }
+
+    @Test
+    public void idempotencyKeysAreReplayed() throws Exception {
+        JSONObject done = notification("done", "key").toJson();
+        done.put("op", "add");
+        List<String> lines = Arrays.asList(
+                done.toString(),
+                "{\"op\":\"done\",\"id\":\"done\",\"statusCode\":200,\"message\":\"OK\",\"doneAt\":"
+                        + System.currentTimeMillis() + "}");
+        Files.createDirectories(journal.toPath().getParent());
+        Files.write(journal.toPath(), lines, StandardCharsets.UTF_8);
+
+        UbNotificationOutbox outbox = newOutbox();
+        outbox.replay();
+
+        // sent before the restart
+        assertThat(outbox.submit(notification("again", "key"), credentials, null).get(10, TimeUnit.SECONDS)
+                .getMessage()).isEqualTo("OK");
+        assertThat(sent).hasValue(0);
+    }
+
+    @Test
+    public void replaysPendingNotifications() throws Exception {
+        JSONObject pending = notification("pending").toJson();
+        pending.put("op", "add");
+        JSONObject done = notification("done").toJson();
+        done.put("op", "add");
+        List<String> lines = Arrays.asList(
+                pending.toString(),
+                done.toString(),
+                "{\"op\":\"done\",\"id\":\"done\",\"statusCode\":200,\"message\":\"OK\",\"doneAt\":"
+                        + System.currentTimeMillis() + "}",
+                // truncated by a crash
+                "{\"op\":\"add\",\"id\":");
+        Files.createDirectories(journal.toPath().getParent());
+        Files.write(journal.toPath(), lines, StandardCharsets.UTF_8);
+
+        UbNotificationOutbox outbox = newOutbox();
+        outbox.replay();
+
+        // the pending one is sent again, the done one is not
+        UbUtils.BitbucketQueryResult result = outbox.submit(notification("pending"), credentials, null)
+                .get(10, TimeUnit.SECONDS);
+        assertThat(result.getStatusCode()).isEqualTo(200);
+        assertThat(outbox.submit(notification("done"), credentials, null).get(10, TimeUnit.SECONDS).getMessage())
+                .isEqualTo("OK");
+        assertThat(sent).hasValue(1);
+        assertThat(outbox.getPendingCount()).isZero();
+
+        // the journal has been compacted and records the outcome
+        assertThat(Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8))
+                .filteredOn(line -> line.contains("\"op\":\"done\""))
+                .hasSize(2);
+    }
+
+    @Test
+    public void inMemoryOutbox() throws Exception {
+        UbNotificationOutbox outbox =
+                new UbNotificationOutbox(null, this::send, notification -> credentials, scheduler);
+        outbox.replay();
+        assertThat(outbox.submit(notification("1"), credentials, null).get(10, TimeUnit.SECONDS).getStatusCode())
+                .isEqualTo(200);
+    }
+
+    @Test
+    public void isRetryable() {
+        assertThat(UbNotificationOutbox.isRetryable(unavailable())).isTrue();
+        assertThat(UbNotificationOutbox.isRetryable(new UbUtils.BitbucketQueryResult(429, "", null))).isTrue();
+        assertThat(UbNotificationOutbox.isRetryable(new UbUtils.BitbucketQueryResult(404, "", null))).isFalse();
+        assertThat(UbNotificationOutbox.isRetryable(
+                new UbUtils.BitbucketQueryResult(-1, "", new IOException("reset")))).isTrue();
+        assertThat(UbNotificationOutbox.isRetryable(
+                new UbUtils.BitbucketQueryResult(-1, "", new MalformedURLException("ssh")))).isFalse();
+    }
+
+    @Test
+    public void nextDelayMillis() {
+        assertThat(UbNotificationOutbox.nextDelayMillis(3, 1234)).isEqualTo(1234);
+        assertThat(UbNotificationOutbox.nextDelayMillis(3, TimeUnit.HOURS.toMillis(2)))
+                .isEqualTo(UbNotificationOutbox.MAX_DELAY_MILLIS);
+        for (int attempts = 1; attempts < 30; attempts++) {
+            long ceiling = Math.min(UbNotificationOutbox.MAX_DELAY_MILLIS,
+                    UbNotificationOutbox.BASE_DELAY_MILLIS << Math.min(attempts, 20));
+            assertThat(UbNotificationOutbox.nextDelayMillis(attempts, -1)).isBetween(ceiling / 2, ceiling);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbPayloadEncoder Class
+ */
+public class UbPayloadEncoderTest {
+
+    @Test
+    public void encode() {
+        String payload = UbPayloadEncoder.encode(
+                "http://jenkins.example.org/job/IZ/job/repo/job/UB%2F12/3/", "IZ", "12", "SUCCESS");
+
+        assertThat(payload).isEqualTo("{\"jobUrl\":\"http://jenkins.example.org/job/IZ/job/repo/job/UB%2F12/3/\","
+                + "\"isolationZone\":\"IZ\",\"mergeRequestId\":\"12\",\"result\":\"SUCCESS\"}");
+    }
+
+    @Test
+    public void escapesJobUrls() {
+        String jobUrl = "http://jenkins.example.org/job/\"quoted\"/job/back\\slash/</script>?a=1&b=\u00e9\n";
+        JSONObject payload = new JSONObject(UbPayloadEncoder.encode(jobUrl, "IZ", "1", "FAILURE"));
+
+        assertThat(payload.getString("jobUrl")).isEqualTo(jobUrl);
+        assertThat(UbPayloadEncoder.encode(jobUrl, "IZ", "1", "FAILURE"))
+                .contains("<\\/script>")
+                .contains("\\\"quoted\\\"")
+                .contains("back\\\\slash")
+                .contains("\\n");
+    }
+
+    @Test
+    public void escapesIsolationZones() {
+        String isolationZone = "iz\t\u0001\u0085\u2028 \u00e0 \ud83d\ude00";
+        String payload = UbPayloadEncoder.encode("http://jenkins", isolationZone, "1", "SUCCESS");
+
+        assertThat(new JSONObject(payload).getString("isolationZone")).isEqualTo(isolationZone);
+        assertThat(payload).contains("iz\\t\\u0001\\u0085\\u2028 \u00e0 \ud83d\ude00");
+    }
+
+    @Test
+    public void leavesOutNullValues() {
+        assertThat(UbPayloadEncoder.encode(null, "IZ", null, "SUCCESS"))
+                .isEqualTo("{\"isolationZone\":\"IZ\",\"result\":\"SUCCESS\"}");
+        assertThat(UbPayloadEncoder.encode(null, null, null, null)).isEqualTo("{}");
+    }
+
+    @Test
+    public void escapesLikeJsonObject() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[random.nextInt(20)];
+            for (int k = 0; k < chars.length; k++) {
+                // mostly the interesting ranges
+                chars[k] = random.nextBoolean()
+                        ? (char) random.nextInt(0x100) : (char) (0x2000 + random.nextInt(0x120));
+            }
+            String value = new String(chars);
+            StringBuilder sb = new StringBuilder("\"");
+            UbPayloadEncoder.appendEscaped(sb, value);
+            sb.append('"');
+            assertThat(sb.toString()).isEqualTo(JSONObject.quote(value));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.queue.QueueSorter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+/**
+ * <p>
+ * TestClass for UbQueueSorter Class
+ */
+public class UbQueueSorterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FreeStyleProject schedule(MockFolder zone, String name, boolean unbreakable) throws Exception {
+        FreeStyleProject project = zone.createProject(FreeStyleProject.class, name);
+        if (unbreakable) {
+            UbBranchJobProperty.tag(project, true);
+        }
+        assertThat(project.scheduleBuild2(0)).isNotNull();
+        return project;
+    }
+
+    @Test
+    public void unbreakableBuildsFirst() throws Exception {
+        // nothing leaves the queue
+        j.jenkins.setNumExecutors(0);
+        MockFolder swb2 = j.createFolder("SWB2");
+        MockFolder swb3 = j.createFolder("SWB3");
+        schedule(swb2, "ordinary", false);
+        schedule(swb3, "ub-old", true);
+        schedule(swb3, "ub-new", true);
+        schedule(swb2, "ub-boosted", true);
+        Queue queue = j.jenkins.getQueue();
+        queue.maintain();
+        List<Queue.BuildableItem> buildables = new ArrayList<>(queue.getBuildableItems());
+        buildables.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+
+        new UbQueueSorter(null, UbQueueSorter.parseZoneBoosts("SWB2=5")).sortBuildableItems(buildables);
+
+        assertThat(buildables.stream().map(item -> ((Item) item.task).getFullName()).collect(Collectors.toList()))
+                .containsExactly("SWB2/ub-boosted", "SWB3/ub-old", "SWB3/ub-new", "SWB2/ordinary");
+    }
+
+    @Test
+    public void orderKeptWithoutUnbreakableBuilds() throws Exception {
+        j.jenkins.setNumExecutors(0);
+        MockFolder swb2 = j.createFolder("SWB2");
+        schedule(swb2, "b", false);
+        schedule(swb2, "a", false);
+        Queue queue = j.jenkins.getQueue();
+        queue.maintain();
+        List<Queue.BuildableItem> buildables = new ArrayList<>(queue.getBuildableItems());
+        Collections.reverse(buildables);
+        List<Queue.BuildableItem> expected = new ArrayList<>(buildables);
+
+        new UbQueueSorter(null, Collections.emptyMap()).sortBuildableItems(buildables);
+
+        assertThat(buildables).isEqualTo(expected);
+    }
+
+    @Test
+    public void installed() {
+        QueueSorter former = j.jenkins.getQueue().getSorter();
+        UbGlobalConfiguration configuration = UbGlobalConfiguration.getOrNull();
+        configuration.setQueueZoneBoosts("SWB2=5");
+        configuration.setQueuePriority(true);
+        assertThat(j.jenkins.getQueue().getSorter()).isInstanceOf(UbQueueSorter.class);
+
+        // configured again, not wrapped twice
+        configuration.setQueueZoneBoosts("SWB2=10");
+        UbQueueSorter sorter = (UbQueueSorter) j.jenkins.getQueue().getSorter();
+        assertThat(sorter.getDelegate()).isSameAs(former);
+
+        configuration.setQueuePriority(false);
+        assertThat(j.jenkins.getQueue().getSorter()).isSameAs(former);
+    }
+
+    @Test
+    public void zoneBoosts() {
+        assertThat(UbQueueSorter.parseZoneBoosts(null)).isEmpty();
+        assertThat(UbQueueSorter.parseZoneBoosts(" SWB2 = 10, SWB3=-1,SWB4=huge, =3, SWB5=99999"))
+                .containsOnly(entry("SWB2", 10), entry("SWB3", 0), entry("SWB5", UbQueueSorter.MAX_BOOST));
+    }
+}
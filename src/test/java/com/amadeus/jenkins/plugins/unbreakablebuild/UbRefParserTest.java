@@ -0,0 +1,93 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbRefParser Class
+ */
+public class UbRefParserTest {
+
+    private static final Pattern UB_BRANCH_PATTERN = Pattern.compile(UbBranchPojo.UB_BRANCH_REGEX);
+
+    private static final String[] PIECES = {
+        "refs/", "ubuilds/", "refs/ubuilds/", "refs/ubuild", "0", "1", "9", "42", "/", "a", "?", " ", "\u0660", ""
+    };
+
+    @Test
+    public void sameAsTheRegexOnRandomRefs() {
+        UbRefParser parser = UbRefParser.of(Collections.singletonList(UbBranchPojo.UB_BRANCH_PREFIX));
+        // fixed seed: a failure can be reproduced
+        Random random = new Random(20221018L);
+        for (int i = 0; i < 100_000; i++) {
+            StringBuilder ref = new StringBuilder();
+            int pieces = random.nextInt(6);
+            if (random.nextBoolean()) {
+                ref.append(UbBranchPojo.UB_BRANCH_PREFIX);
+            }
+            for (int p = 0; p < pieces; p++) {
+                ref.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertSameAsRegex(parser, ref.toString());
+        }
+    }
+
+    private static void assertSameAsRegex(UbRefParser parser, String ref) {
+        Matcher m = UB_BRANCH_PATTERN.matcher(ref);
+        UbBranchPojo pojo = parser.parse(ref);
+        if (m.matches()) {
+            assertThat(pojo).as(ref).isNotNull();
+            assertThat(pojo.getMergeRequestId()).as(ref).isEqualTo(m.group("mergeRequestId"));
+            assertThat(pojo.getTargetBranchName()).isEqualTo(ref);
+            assertThat(pojo.getNamespace()).isEqualTo(UbBranchPojo.UB_BRANCH_PREFIX);
+        } else {
+            assertThat(pojo).as(ref).isNull();
+        }
+    }
+
+    @Test
+    public void mergeRequestNumber() {
+        UbRefParser parser = UbRefParser.of(Collections.singletonList(UbBranchPojo.UB_BRANCH_PREFIX));
+
+        assertThat(parser.parse("refs/ubuilds/0042").getMergeRequestNumber()).isEqualTo(42L);
+        assertThat(parser.parse("refs/ubuilds/" + Long.MAX_VALUE).getMergeRequestNumber()).isEqualTo(Long.MAX_VALUE);
+        // too large for a long, still an unbreakable build
+        UbBranchPojo overflow = parser.parse("refs/ubuilds/9223372036854775808");
+        assertThat(overflow.getMergeRequestId()).isEqualTo("9223372036854775808");
+        assertThat(overflow.getMergeRequestNumber()).isEqualTo(-1L);
+    }
+
+    @Test
+    public void severalNamespaces() {
+        UbRefParser parser = UbRefParser.of(Arrays.asList(
+                "refs/ubuilds/", "refs/merge-queue/", "refs/merge-queue/1/", "refs/ubuilds/", ""));
+
+        assertThat(parser.getNamespaces()).containsExactly("refs/ubuilds/", "refs/merge-queue/", "refs/merge-queue/1/");
+        assertThat(parser.parse("refs/merge-queue/12").getNamespace()).isEqualTo("refs/merge-queue/");
+        assertThat(parser.parse("refs/ubuilds/12").getMergeRequestId()).isEqualTo("12");
+        // the longest namespace wins
+        UbBranchPojo nested = parser.parse("refs/merge-queue/1/2");
+        assertThat(nested.getNamespace()).isEqualTo("refs/merge-queue/1/");
+        assertThat(nested.getMergeRequestNumber()).isEqualTo(2L);
+        // falls back on the shorter one
+        assertThat(parser.parse("refs/merge-queue/13").getMergeRequestId()).isEqualTo("13");
+
+        assertThat(parser.parse("refs/merge-queue/")).isNull();
+        assertThat(parser.parse("refs/merge-queue/1/")).isNull();
+        assertThat(parser.parse("refs/heads/12")).isNull();
+        assertThat(parser.parse("")).isNull();
+    }
+
+    @Test
+    public void noNamespace() {
+        assertThat(UbRefParser.of(Collections.emptyList()).parse("refs/ubuilds/1")).isNull();
+    }
+}
@@ -1,10 +1,16 @@
 package com.amadeus.jenkins.plugins.unbreakablebuild;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 
@@ -14,6 +20,7 @@ import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
@@ -31,6 +38,7 @@ import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.Domain;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 
 import hudson.EnvVars;
 import hudson.model.EnvironmentContributor;
@@ -40,6 +48,7 @@ import hudson.model.TaskListener;
 import jenkins.branch.BranchProperty;
 import jenkins.branch.BranchSource;
 import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.model.InterruptedBuildAction;
 import jenkins.plugins.git.GitSCMSource;
 import jenkins.plugins.git.GitSampleRepoRule;
 import jenkins.plugins.git.traits.BranchDiscoveryTrait;
@@ -258,6 +267,21 @@ public class UbStepTest {
         assertThat(ubAction.getDisplayName()).isEqualTo("Unbreakable Build Action");
         assertThat(ubAction.getIconFileName()).isNull();
         assertThat(ubAction.getUrlName()).isNull();
+
+        // the context of the unbreakable build is kept with the run
+        assertThat(b1.getAction(UbContextAction.class).getRefSpec()).startsWith(UbBranchPojo.UB_BRANCH_PREFIX);
+
+        // so are the timings of the notification
+        assertThat(ubAction.getCredentialsNanos()).isPositive();
+        assertThat(ubAction.getBitbucketNanos()).isPositive();
+        assertThat(ubAction.getAttempts()).isEqualTo(1);
+        assertThat(ubAction.getStatusCode()).isEqualTo(200);
+        assertThat(j.getJSON(b1.getUrl() + "api/json?tree=actions[claimedBy,statusCode,bitbucketNanos]")
+                .getJSONObject().toString())
+                .contains("\"claimedBy\":\"" + UbValidateStep.UB_ACTION_NAME + "\"")
+                .contains("\"statusCode\":200");
+        assertThat(j.createWebClient().getPage(b1).getWebResponse().getContentAsString())
+                .contains("Bitbucket notification");
     }
 
 
@@ -296,6 +320,30 @@ public class UbStepTest {
     }
 
 
+    /**
+     * Two parallel branches call the verb, we check that
+     * - that the build is passed
+     * - that only the first verb notified bitbucket, with an idempotency key
+     */
+    @Test
+    public void parallelVerbsNotifyOnce() throws Exception {
+        addCredz();
+        WorkflowMultiBranchProject mp = createMultiBranchProject();
+
+        createSampleGitRepo("parallel(a: { ubValidate() }, b: { ubValidate() })");
+        attachSampleRepoToProject(mp);
+
+        WorkflowJob p = scheduleAndFindBranchProject(mp, "master");
+        j.waitUntilNoActivity();
+        WorkflowRun b1 = p.getLastBuild();
+
+        j.assertBuildStatusSuccess(b1);
+        j.assertLogContains("already called by ubValidate", b1);
+        wireMockRule.verify(1, postRequestedFor(urlMatching("/rest/ubuild/.*"))
+                .withHeader(UbUtils.IDEMPOTENCY_KEY_HEADER, matching("[0-9a-f]{64}")));
+        assertThat(b1.getAction(UbAction.class).getClaimedBy()).isEqualTo(UbValidateStep.UB_ACTION_NAME);
+    }
+
     /**
      * We don't call manually the unbreakableBuild verb, but we
      * checkNotificationReceived that
@@ -369,6 +417,160 @@ public class UbStepTest {
         checkNotificationReceived(UbJenkinsEnvBean.Status.FAILURE);
     }
 
+    /**
+     * Bitbucket answers the notification of the buildListener too late, we check
+     * - that the build is marked as failed, its outcome is unknown
+     * - that the log tells why
+     * - that the last notification received by Bitbucket is the failure
+     */
+    @Test
+    public void unbreakableBuildListenerTimesOut() throws Exception {
+        addCredz();
+        wireMockRule.stubFor(post(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)).willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("Content-type", "application/json")
+                .withBody("{ \"message\": \"Too late\" }")
+                .withFixedDelay(5000)));
+        UbListenerExecutor executor = UbListenerExecutor.get();
+        long timeoutSeconds = executor.getTimeoutSeconds();
+        executor.setTimeoutSeconds(1);
+        try {
+            WorkflowMultiBranchProject mp = createMultiBranchProject();
+            createSampleGitRepo("def iSay = 'hi'");
+            attachSampleRepoToProject(mp);
+
+            WorkflowJob p = scheduleAndFindBranchProject(mp, "master");
+            j.waitUntilNoActivity();
+            WorkflowRun b1 = p.getLastBuild();
+
+            j.assertBuildStatus(Result.FAILURE, b1);
+            j.assertLogContains("no answer of Bitbucket within 1 seconds, the build has been marked as failed", b1);
+
+            // the success (unless withdrawn before being sent) is answered, then the failure queued after it
+            List<LoggedRequest> requests = Collections.emptyList();
+            for (int i = 0; i < 300 && !lastRequestIs(requests, UbJenkinsEnvBean.Status.FAILURE); i++) {
+                Thread.sleep(100);
+                requests = wireMockRule.findAll(postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)));
+            }
+            assertThat(lastRequestIs(requests, UbJenkinsEnvBean.Status.FAILURE)).isTrue();
+            assertThat(requests).hasSizeLessThanOrEqualTo(2);
+        } finally {
+            executor.setTimeoutSeconds(timeoutSeconds);
+        }
+    }
+
+    /**
+     * The build is aborted while ubValidate waits for Bitbucket, we check
+     * - that the build is aborted
+     * - that the buildListener notifies Bitbucket instead of the verb
+     * - that the last notification received by Bitbucket is the failure
+     */
+    @Test
+    public void abortedVerbLetsTheListenerNotify() throws Exception {
+        addCredz();
+        wireMockRule.stubFor(post(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)).willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("Content-type", "application/json")
+                .withBody("{ \"message\": \"Slow\" }")
+                .withFixedDelay(2000)));
+        WorkflowMultiBranchProject mp = createMultiBranchProject();
+        createSampleGitRepo("ubValidate()");
+        attachSampleRepoToProject(mp);
+
+        WorkflowJob p = scheduleAndFindBranchProject(mp, "master");
+        // the success is being sent
+        for (int i = 0; i < 300
+                && wireMockRule.findAll(postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX))).isEmpty();
+             i++) {
+            Thread.sleep(100);
+        }
+        WorkflowRun b1 = p.getLastBuild();
+        b1.doStop();
+        j.waitForCompletion(b1);
+
+        j.assertBuildStatus(Result.ABORTED, b1);
+        j.assertLogContains("We will call it with current build status: ABORTED", b1);
+        List<LoggedRequest> requests = Collections.emptyList();
+        for (int i = 0; i < 300 && !lastRequestIs(requests, UbJenkinsEnvBean.Status.FAILURE); i++) {
+            Thread.sleep(100);
+            requests = wireMockRule.findAll(postRequestedFor(urlMatching(MockBitbucketHelper.BB_UB_API_REGEX)));
+        }
+        assertThat(lastRequestIs(requests, UbJenkinsEnvBean.Status.FAILURE)).isTrue();
+    }
+
+    private static boolean lastRequestIs(List<LoggedRequest> requests, UbJenkinsEnvBean.Status status) {
+        return requests.stream()
+                .max(Comparator.comparing(LoggedRequest::getLoggedDate))
+                .filter(last -> last.getBodyAsString().contains("\"result\":\"" + status + "\""))
+                .isPresent();
+    }
+
+    /**
+     * A stage fails, in fail fast mode we checkNotificationReceived
+     * - that the first run of the job is known as an unbreakable build once started
+     * - that Bitbucket is notified of the failure by the fail fast listener, not by the verb called afterwards
+     * - that Bitbucket is notified only once per run
+     */
+    @Test
+    public void failedStageNotifiesRightAway() throws Exception {
+        addCredz();
+        UbGlobalConfiguration.getOrNull().setFailFast(true);
+        WorkflowMultiBranchProject mp = createMultiBranchProject();
+        createSampleGitRepo("semaphore 'wait'\ntry {\n  stage('build') { fail }\n} finally {\n  ubFail()\n}");
+        attachSampleRepoToProject(mp);
+
+        WorkflowJob p = scheduleAndFindBranchProject(mp, "master");
+        SemaphoreStep.waitForStart("wait/1", null);
+        WorkflowRun b1 = Objects.requireNonNull(p.getBuildByNumber(1));
+        // the context of the run is taken by the supersede tracker in the background, then the job is tagged
+        for (int i = 0; i < 300 && UbBranchJobProperty.isUnbreakable(p) == null; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(UbBranchJobProperty.isUnbreakable(p)).isTrue();
+        assertThat(b1.getAction(UbContextAction.class)).isNotNull();
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatus(Result.FAILURE, j.waitForCompletion(b1));
+
+        UbAction ubAction = b1.getAction(UbAction.class);
+        assertThat(ubAction.getClaimedBy()).isEqualTo(UbFailFastListener.LISTENER_NAME);
+        // the notification does not hold the run
+        for (int i = 0; i < 300 && ubAction.getStatusCode() == null; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(ubAction.getStatusCode()).isEqualTo(200);
+        j.assertLogContains("ubFail already called by " + UbFailFastListener.LISTENER_NAME, b1);
+        checkNotificationReceived(UbJenkinsEnvBean.Status.FAILURE);
+        wireMockRule.verify(1, postRequestedFor(urlMatching("/rest/ubuild/.*")));
+    }
+
+    /**
+     * A newer build of the same merge request starts while the former one is running, we check
+     * - that the former build is aborted as superseded
+     * - that Bitbucket is not notified of the former build, only of the newer one
+     */
+    @Test
+    public void newerBuildSupersedesOlder() throws Exception {
+        addCredz();
+        WorkflowMultiBranchProject mp = createMultiBranchProject();
+        createSampleGitRepo("if (currentBuild.number == 1) {\n  semaphore 'wait'\n}");
+        attachSampleRepoToProject(mp);
+
+        // the first run of the job is tracked, the job is not known yet
+        WorkflowJob p = scheduleAndFindBranchProject(mp, "master");
+        SemaphoreStep.waitForStart("wait/1", null);
+        WorkflowRun b1 = Objects.requireNonNull(p.getBuildByNumber(1));
+        WorkflowRun b2 = j.buildAndAssertSuccess(p);
+
+        j.assertBuildStatus(Result.NOT_BUILT, j.waitForCompletion(b1));
+        assertThat(b1.getAction(InterruptedBuildAction.class).getCauses())
+                .hasOnlyElementsOfType(UbSupersedeTracker.Superseded.class)
+                .extracting(cause -> ((UbSupersedeTracker.Superseded) cause).getSupersededBy())
+                .containsExactly(b2.getExternalizableId());
+        assertThat(b1.getAction(UbAction.class).getClaimedBy()).isEqualTo(UbSupersedeTracker.CLAIM_NAME);
+        assertThat(b2.getAction(UbAction.class).getStatusCode()).isEqualTo(200);
+        wireMockRule.verify(1, postRequestedFor(urlMatching("/rest/ubuild/.*")));
+    }
+
     /**
      * In order to have the unbreakableBuild work there is a dependency
      * on the a patched Bitbucket Branch Source Plugin.
@@ -377,8 +579,13 @@ public class UbStepTest {
     @TestExtension({
             "unbreakableBuildFailed",
             "unbreakableBuildPassed",
+            "parallelVerbsNotifyOnce",
+            "failedStageNotifiesRightAway",
             "unbreakableBuildListenerCallsUbValidate",
             "unbreakableBuildListenerCallsUbFail",
+            "unbreakableBuildListenerTimesOut",
+            "abortedVerbLetsTheListenerNotify",
+            "newerBuildSupersedesOlder",
             "testComplainIfNoCreds",
             "testComplainNotMultibranchPipeline"
     })
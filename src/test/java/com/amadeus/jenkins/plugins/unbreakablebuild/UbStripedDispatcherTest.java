@@ -0,0 +1,135 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbStripedDispatcher Class
+ */
+public class UbStripedDispatcherTest {
+
+    private final List<UbNotification> sent = new ArrayList<>();
+
+    private final List<CompletableFuture<UbUtils.BitbucketQueryResult>> calls = new ArrayList<>();
+
+    private long now = 1000L;
+
+    private final UbStripedDispatcher dispatcher = new UbStripedDispatcher((notification, credentials) -> {
+        CompletableFuture<UbUtils.BitbucketQueryResult> call = new CompletableFuture<>();
+        sent.add(notification);
+        calls.add(call);
+        return call;
+    }, 100, () -> now);
+
+    private UbNotification notification(String id, String repositorySlug, String mergeRequestId) {
+        long sequence = dispatcher.nextSequence("http://localhost", "project", repositorySlug, mergeRequestId);
+        return new UbNotification(id, "http://localhost", "http://localhost/rest/ubuild/1.0/notify", "{}",
+                new UbNotification.Commit("project", repositorySlug, "1aed25f357e"),
+                "project/master#1", now, null, mergeRequestId, sequence);
+    }
+
+    private static UbUtils.BitbucketQueryResult ok() {
+        return new UbUtils.BitbucketQueryResult(200, "OK", null);
+    }
+
+    @Test
+    public void sequencesIncrease() {
+        long first = dispatcher.nextSequence("http://localhost", "project", "repository", "1");
+        long second = dispatcher.nextSequence("http://localhost", "project", "repository", "1");
+        now = 1;
+        long third = dispatcher.nextSequence("http://localhost/", "project", "repository", "1");
+
+        assertThat(first).isEqualTo(1000L);
+        assertThat(second).isEqualTo(1001L);
+        // even if the clock goes back
+        assertThat(third).isEqualTo(1002L);
+        // other merge request
+        assertThat(dispatcher.nextSequence("http://localhost", "project", "repository", "2")).isEqualTo(1L);
+    }
+
+    @Test
+    public void serialWithinAStripe() {
+        CompletableFuture<UbUtils.BitbucketQueryResult> first =
+                dispatcher.send(notification("first", "repository", "1"), null);
+        CompletableFuture<UbUtils.BitbucketQueryResult> second =
+                dispatcher.send(notification("second", "repository", "2"), null);
+
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("first");
+
+        calls.get(0).complete(ok());
+
+        assertThat(first).isCompletedWithValue(calls.get(0).join());
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("first", "second");
+        assertThat(second).isNotDone();
+
+        calls.get(1).complete(ok());
+
+        assertThat(second).isCompleted();
+        assertThat(dispatcher.getActiveStripes()).isZero();
+    }
+
+    @Test
+    public void parallelAcrossStripes() {
+        dispatcher.send(notification("slow", "slow-repository", "1"), null);
+        CompletableFuture<UbUtils.BitbucketQueryResult> other =
+                dispatcher.send(notification("other", "repository", "1"), null);
+
+        // the slow repository does not hold the other one
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("slow", "other");
+        calls.get(1).complete(ok());
+        assertThat(other).isCompleted();
+        assertThat(dispatcher.getActiveStripes()).isEqualTo(1);
+    }
+
+    @Test
+    public void lateNotificationIsSuperseded() {
+        UbNotification failure = notification("failure", "repository", "1");
+        UbNotification success = notification("success", "repository", "1");
+
+        // the success of the later build is sent, while the failure is waiting for a retry
+        dispatcher.send(success, null);
+        calls.get(0).complete(ok());
+
+        CompletableFuture<UbUtils.BitbucketQueryResult> retry = dispatcher.send(failure, null);
+
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("success");
+        assertThat(retry.join().isSuperseded()).isTrue();
+        assertThat(UbNotificationOutbox.isRetryable(retry.join())).isFalse();
+
+        // the other merge requests are not concerned, nor the retries of the same notification
+        dispatcher.send(notification("other", "repository", "2"), null);
+        dispatcher.send(success, null);
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("success", "other");
+        calls.get(1).complete(ok());
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("success", "other", "success");
+    }
+
+    @Test
+    public void notificationsWithoutMergeRequestAreNotRanked() {
+        UbNotification legacy = new UbNotification("legacy", "http://localhost", "http://localhost/notify", "{}",
+                new UbNotification.Commit("project", "repository", "1aed25f357e"), null, now);
+        dispatcher.send(notification("ranked", "repository", "1"), null);
+        calls.get(0).complete(ok());
+
+        dispatcher.send(legacy, null);
+
+        assertThat(sent).extracting(UbNotification::getId).containsExactly("ranked", "legacy");
+    }
+
+    @Test
+    public void sequenceIsJournaled() {
+        UbNotification notification = notification("id", "repository", "42");
+
+        UbNotification read = UbNotification.fromJson(new JSONObject(notification.toJson().toString()));
+
+        assertThat(read.getMergeRequestId()).isEqualTo("42");
+        assertThat(read.getSequence()).isEqualTo(notification.getSequence());
+    }
+}
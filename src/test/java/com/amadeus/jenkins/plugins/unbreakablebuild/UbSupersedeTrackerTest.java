@@ -0,0 +1,65 @@
+package com.amadeus.jenkins.plugins.unbreakablebuild;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>
+ * TestClass for UbSupersedeTracker Class
+ */
+public class UbSupersedeTrackerTest {
+
+    private final UbSupersedeTracker tracker = new UbSupersedeTracker();
+
+    private static UbContextAction context(String repositorySlug, String refSpec) {
+        return new UbContextAction("http://localhost/", "project", repositorySlug, refSpec, "1aed25f357e",
+                "http://jenkins/job/1", "SWB2");
+    }
+
+    @Test
+    public void key() {
+        assertThat(UbSupersedeTracker.key(context("repository", "refs/ubuilds/12")))
+                .isEqualTo(UbSupersedeTracker.key(context("repository", "refs/ubuilds/12")))
+                .isNotEqualTo(UbSupersedeTracker.key(context("repository", "refs/ubuilds/13")))
+                .isNotEqualTo(UbSupersedeTracker.key(context("other", "refs/ubuilds/12")));
+        assertThat(UbSupersedeTracker.key(context("repository", "master"))).isNull();
+    }
+
+    @Test
+    public void newerSupersedesOlder() {
+        assertThat(tracker.track("mr12", "project/UB#1", 1000L)).isNull();
+        // tracked again, e.g. when the index is rebuilt
+        assertThat(tracker.track("mr12", "project/UB#1", 1000L)).isNull();
+        assertThat(tracker.track("mr13", "project/UB#2", 1500L)).isNull();
+
+        assertThat(tracker.track("mr12", "project/UB#3", 2000L)).isEqualTo("project/UB#1");
+
+        assertThat(tracker.getActive("mr12")).isEqualTo("project/UB#3");
+        assertThat(tracker.getActiveCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void lateOlderIsSuperseded() {
+        tracker.track("mr12", "project/UB#3", 2000L);
+
+        // started before the active build, but tracked after it
+        assertThat(tracker.track("mr12", "project/UB#1", 1000L)).isEqualTo("project/UB#1");
+
+        assertThat(tracker.getActive("mr12")).isEqualTo("project/UB#3");
+    }
+
+    @Test
+    public void untrack() {
+        tracker.track("mr12", "project/UB#1", 1000L);
+        tracker.track("mr12", "project/UB#3", 2000L);
+
+        // the superseded build completes
+        tracker.untrack("mr12", "project/UB#1");
+        assertThat(tracker.getActive("mr12")).isEqualTo("project/UB#3");
+
+        tracker.untrack("mr12", "project/UB#3");
+        assertThat(tracker.getActive("mr12")).isNull();
+        assertThat(tracker.getActiveCount()).isZero();
+    }
+}
@@ -27,6 +27,25 @@ public class UbUtilsTest {
         new JSONObject(payload);
     }
 
+    @Test
+    public void generateBitbucketPayloadWithIdempotencyKey() throws JSONException {
+        JSONObject payload = new JSONObject(UbUtils.generateBitbucketPayload(
+                "myJobUrl", "myIsolationZone", "1", "SUCCESS", "myKey"));
+        assertThat(payload.getString("idempotencyKey")).isEqualTo("myKey");
+    }
+
+    @Test
+    public void generateIdempotencyKey() {
+        String key = UbUtils.generateIdempotencyKey("project/UB%2Ftarget#1", "1aed25f357e", "SUCCESS");
+        assertThat(key).matches("[0-9a-f]{64}");
+        assertThat(UbUtils.generateIdempotencyKey("project/UB%2Ftarget#1", "1aed25f357e", "SUCCESS"))
+                .isEqualTo(key);
+        assertThat(UbUtils.generateIdempotencyKey("project/UB%2Ftarget#1", "1aed25f357e", "FAILURE"))
+                .isNotEqualTo(key);
+        assertThat(UbUtils.generateIdempotencyKey("project/UB%2Ftarget#2", "1aed25f357e", "SUCCESS"))
+                .isNotEqualTo(key);
+    }
+
     @Test
     public void getIsolationZoneName() {
         String validBranchName = "SWB2/pipeline-unbreakable-build-plugin/UB%2Ftarget%2FbranchName%2FPR%2F12%2Ftry%2F1";